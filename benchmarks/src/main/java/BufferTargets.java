@@ -0,0 +1,37 @@
+import bench.Target;
+
+//take and give back the way a frame read does, run with -prof gc to compare allocation rates against NewArrayTarget
+class PooledArrayTarget implements Target {
+    BufferPool pool;
+    int size;
+
+    @Override
+    public void setup(String param) {
+        pool = new BufferPool(256, 64 * 1024, 32L * 1024 * 1024, false);
+        size = Integer.parseInt(param);
+    }
+
+    @Override
+    public Object run() {
+        byte[] array = pool.take(size);
+        array[size - 1] = 1;
+        pool.give(array);
+        return array;
+    }
+}
+
+class NewArrayTarget implements Target {
+    int size;
+
+    @Override
+    public void setup(String param) {
+        size = Integer.parseInt(param);
+    }
+
+    @Override
+    public Object run() {
+        byte[] array = new byte[size];
+        array[size - 1] = 1;
+        return array;
+    }
+}
@@ -0,0 +1,84 @@
+import bench.Target;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+//an sdp offer for one audio and one video track, about the size and shape browsers send
+class SdpOffer {
+    static byte[] bytes() {
+        StringBuilder sdp = new StringBuilder()
+                .append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n")
+                .append("a=group:BUNDLE 0 1\r\na=extmap-allow-mixed\r\na=msid-semantic: WMS 7d3f9a2c\r\n");
+        String[] kinds = {"audio", "video"};
+        for (int m = 0; m < kinds.length; m++) {
+            sdp.append("m=").append(kinds[m]).append(" 9 UDP/TLS/RTP/SAVPF 111 63 9 0 8 13 110 126 96 97 98 99 100 101 102\r\n")
+                    .append("c=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\n")
+                    .append("a=ice-ufrag:Xk2p\r\na=ice-pwd:v8cSg2Jx1q8mZy3lQ7rT0bNe\r\na=ice-options:trickle\r\n")
+                    .append("a=fingerprint:sha-256 4A:AD:B9:B1:3F:82:18:3B:54:02:12:DF:3E:5D:49:6B:19:E5:7C:AB:4A:AD:B9:B1:3F:82:18:3B:54:02:12:DF\r\n")
+                    .append("a=setup:actpass\r\na=mid:").append(m).append("\r\n")
+                    .append("a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n")
+                    .append("a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n")
+                    .append("a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n")
+                    .append("a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\n")
+                    .append("a=sendrecv\r\na=msid:7d3f9a2c 0b1e7c5d-").append(kinds[m]).append("\r\na=rtcp-mux\r\na=rtcp-rsize\r\n");
+            for (int pt = 96; pt < 103; pt++) {
+                sdp.append("a=rtpmap:").append(pt).append(pt % 2 == 0 ? " VP8/90000" : " rtx/90000").append("\r\n")
+                        .append("a=rtcp-fb:").append(pt).append(" goog-remb\r\n")
+                        .append("a=rtcp-fb:").append(pt).append(" transport-cc\r\n")
+                        .append("a=rtcp-fb:").append(pt).append(" ccm fir\r\n")
+                        .append("a=rtcp-fb:").append(pt).append(" nack\r\n")
+                        .append("a=rtcp-fb:").append(pt).append(" nack pli\r\n")
+                        .append("a=fmtp:").append(pt).append(" level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n");
+            }
+            sdp.append("a=ssrc-group:FID 1234567890 987654321\r\n")
+                    .append("a=ssrc:1234567890 cname:Zb5cF3kq9Lr2Tw8x\r\na=ssrc:987654321 cname:Zb5cF3kq9Lr2Tw8x\r\n");
+        }
+        return sdp.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
+
+//param is takeover or no_takeover, the first keeps one deflater for the connection and the second borrows one per message
+class DeflateTarget implements Target {
+    PerMessageDeflate deflate;
+    byte[] offer;
+
+    @Override
+    public void setup(String param) {
+        boolean noTakeover = param.equals("no_takeover");
+        deflate = new PerMessageDeflate(new ZipPool(16, 6), noTakeover, noTakeover, true, 256, "permessage-deflate");
+        offer = SdpOffer.bytes();
+    }
+
+    @Override
+    public Object run() {
+        return deflate.compress(offer);
+    }
+
+    @Override
+    public void tearDown() {
+        deflate.release();
+    }
+}
+
+class InflateTarget implements Target {
+    PerMessageDeflate deflate;
+    byte[] compressed;
+
+    //compressed without history so every run can inflate the same bytes, even into a kept inflater
+    @Override
+    public void setup(String param) {
+        boolean noTakeover = param.equals("no_takeover");
+        deflate = new PerMessageDeflate(new ZipPool(16, 6), noTakeover, noTakeover, true, 256, "permessage-deflate");
+        compressed = PerMessageDeflate.compress(new Deflater(6, true), SdpOffer.bytes());
+    }
+
+    @Override
+    public Object run() throws Exception {
+        return deflate.decompress(compressed, 0, compressed.length, 1024 * 1024);
+    }
+
+    @Override
+    public void tearDown() {
+        deflate.release();
+    }
+}
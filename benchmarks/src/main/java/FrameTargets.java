@@ -0,0 +1,135 @@
+import bench.Target;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//a read buffer full of masked text frames the way a browser sends them, decoded like the event loop does
+class FrameDecodeTarget implements Target {
+    static final int FRAMES = 64;
+
+    ByteBuffer frames;
+    FrameDecoder decoder;
+
+    static byte[] maskedFrame(int flags, byte[] payload, int mask) {
+        int lengthBytes = payload.length < 126 ? 0 : payload.length < 65536 ? 2 : 8;
+        byte[] frame = new byte[2 + lengthBytes + 4 + payload.length];
+        FrameEncoder.writeHeader(frame, 0, flags, payload.length);
+        frame[1] |= (byte) 0x80;
+        int position = 2 + lengthBytes;
+        ByteBuffer.wrap(frame, position, 4).putInt(mask);
+        //unmask lines the key up with the array index, so it's turned to start where the payload does
+        System.arraycopy(payload, 0, frame, position + 4, payload.length);
+        FrameDecoder.unmask(frame, position + 4, payload.length, Integer.rotateRight(mask, ((position + 4) & 0x3) * 8));
+        return frame;
+    }
+
+    static byte[] text(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        return payload;
+    }
+
+    @Override
+    public void setup(String param) throws Exception {
+        byte[] frame = maskedFrame(0x81, text(Integer.parseInt(param)), 0x1B2C3D4E);
+        frames = ByteBuffer.allocate(frame.length * FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            frames.put(frame);
+        }
+        decoder = new FrameDecoder(Integer.MAX_VALUE, BufferPool.shared);
+        if(!decoder.decode(frames.flip()) || !Arrays.equals(decoder.payload, 0, decoder.length, text(Integer.parseInt(param)), 0, decoder.length)) {
+            throw new IllegalStateException("Frame didn't decode.");
+        }
+        decoder.reset();
+    }
+
+    @Override
+    public Object run() throws Exception {
+        frames.rewind();
+        long decoded = 0;
+        while (frames.hasRemaining()) {
+            if(!decoder.decode(frames)) break;
+            decoded += decoder.length;
+            decoder.reset();
+        }
+        return decoded;
+    }
+}
+
+class FrameEncodeTarget implements Target {
+    byte[] payload;
+
+    @Override
+    public void setup(String param) {
+        payload = FrameDecodeTarget.text(Integer.parseInt(param));
+    }
+
+    @Override
+    public Object run() {
+        return FrameEncoder.encode(0x81, payload);
+    }
+}
+
+//what a broadcast does per recipient once the message is framed, without the sockets
+class FanOutTarget implements Target {
+    OutboundQueue[] queues;
+    byte[] payload;
+
+    @Override
+    public void setup(String param) {
+        queues = new OutboundQueue[Integer.parseInt(param)];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new OutboundQueue();
+        }
+        payload = "add_peer::::3f2b8c1e-5d4a-4e6f-9a7b-1c2d3e4f5a6b".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object run() {
+        ByteBuffer frame = WebSocketServer.sharedFrame(0x81, payload);
+        for(OutboundQueue queue : queues) {
+            queue.add(frame.duplicate());
+        }
+        for(OutboundQueue queue : queues) {
+            queue.clear();
+        }
+        return frame;
+    }
+}
+
+class UnmaskTarget implements Target {
+    byte[] payload;
+
+    @Override
+    public void setup(String param) {
+        payload = FrameDecodeTarget.text(Integer.parseInt(param));
+    }
+
+    @Override
+    public Object run() {
+        FrameDecoder.unmask(payload, 0, payload.length, 0x1B2C3D4E);
+        return payload;
+    }
+}
+
+//the loop the decoder had before it unmasked a word at a time, kept to compare against
+class BytewiseUnmaskTarget extends UnmaskTarget {
+    byte[] mask;
+
+    @Override
+    public void setup(String param) {
+        super.setup(param);
+        mask = ByteBuffer.allocate(4).putInt(0x1B2C3D4E).array();
+    }
+
+    @Override
+    public Object run() {
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= mask[i & 0x3];
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,169 @@
+import bench.Target;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+//one whole request per run through a parser that's reused like a keep-alive connection reuses it
+class HttpParseTarget implements Target {
+    static final String UPGRADE = "GET /upgrade HTTP/1.1\r\n"
+            + "Host: signal.example.com\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Origin: https://example.com\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n"
+            + "\r\n";
+    //what a current browser sends for a page, cookies and client hints included
+    static final String BROWSER = "GET /index.html HTTP/1.1\r\n"
+            + "Host: signal.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Sec-CH-UA: \"Chromium\";v=\"128\", \"Not;A=Brand\";v=\"24\", \"Google Chrome\";v=\"128\"\r\n"
+            + "Sec-CH-UA-Mobile: ?0\r\n"
+            + "Sec-CH-UA-Platform: \"Windows\"\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/128.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-User: ?1\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Cookie: session=4f1c2a9e8b7d6c5e; theme=dark; _ga=GA1.1.123456789.1700000000\r\n"
+            + "If-None-Match: \"5e1c-62a1f0c8\"\r\n"
+            + "\r\n";
+
+    ByteBuffer request;
+    HttpRequestParser parser;
+
+    @Override
+    public void setup(String param) {
+        request = ByteBuffer.wrap((param.equals("upgrade") ? UPGRADE : BROWSER).getBytes(StandardCharsets.ISO_8859_1));
+        parser = new HttpRequestParser();
+    }
+
+    @Override
+    public Object run() throws Exception {
+        request.rewind();
+        parser.reset();
+        if(!parser.parse(request)) throw new IllegalStateException("Request didn't parse.");
+        return parser.headers;
+    }
+}
+
+class AcceptKeyTarget implements Target {
+    @Override
+    public void setup(String param) throws Exception {
+        //the example from RFC 6455
+        if(!new String(WebSocketServer.encodeKey("dGhlIHNhbXBsZSBub25jZQ==")).equals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=")) throw new IllegalStateException("Wrong accept key.");
+    }
+
+    @Override
+    public Object run() throws Exception {
+        return WebSocketServer.encodeKey("dGhlIHNhbXBsZSBub25jZQ==");
+    }
+}
+
+//how the key was computed before the digest was kept per thread, to compare against
+class LegacyAcceptKeyTarget implements Target {
+    @Override
+    public void setup(String param) {}
+
+    @Override
+    public Object run() throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(("dGhlIHNhbXBsZSBub25jZQ==" + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(hash).getBytes(StandardCharsets.UTF_8);
+    }
+}
+
+//the whole 101 with a negotiated extension, what one upgrade writes
+class UpgradeResponseTarget implements Target {
+    @Override
+    public void setup(String param) {}
+
+    @Override
+    public Object run() throws Exception {
+        return WebSocketServer.upgradeResponse("dGhlIHNhbXBsZSBub25jZQ==", "permessage-deflate; server_no_context_takeover; client_no_context_takeover");
+    }
+}
+
+//a table of the given size where a tenth of the routes are regexes, three tenths prefixes and the rest exact paths
+//the path looked up is the last one added of its kind, which is the worst case for anything that scans in order
+class RouteTarget implements Target {
+    Router router;
+    String path;
+
+    static String route(int i) {
+        return switch (i % 10) {
+            case 6, 7, 8 -> "/files" + i + "/(.*)";
+            case 9 -> "/users" + i + "/[0-9]+";
+            default -> "/api/v" + i % 3 + "/resource" + i;
+        };
+    }
+
+    static String path(String kind, int routes) {
+        int last = -1;
+        for (int i = 0; i < routes; i++) {
+            String route = route(i);
+            boolean matches = switch (kind) {
+                case "exact" -> route.startsWith("/api");
+                case "prefix" -> route.startsWith("/files");
+                case "pattern" -> route.startsWith("/users");
+                default -> false;
+            };
+            if(matches) last = i;
+        }
+        return switch (kind) {
+            case "exact" -> "/api/v" + last % 3 + "/resource" + last;
+            case "prefix" -> "/files" + last + "/js/vendor/app.min.js";
+            case "pattern" -> "/users" + last + "/48213";
+            default -> "/nothing/here";
+        };
+    }
+
+    @Override
+    public void setup(String param) {
+        String[] params = param.split(":");
+        int routes = Integer.parseInt(params[1]);
+        router = new Router();
+        for (int i = 0; i < routes; i++) {
+            router.add("GET", route(i), (bundle) -> {});
+        }
+        path = path(params[0], routes);
+        if((router.route("GET", path) == null) != params[0].equals("miss")) throw new IllegalStateException("Bad route table.");
+    }
+
+    @Override
+    public Object run() {
+        return router.route("GET", path);
+    }
+}
+
+//how HttpServer routed before the route table, every pattern tried in order
+class RouteScanTarget extends RouteTarget {
+    Map<Pattern, HttpPathHandler> patterns;
+
+    @Override
+    public void setup(String param) {
+        super.setup(param);
+        patterns = new LinkedHashMap<>();
+        for(Route route : router.routes) {
+            patterns.put(Pattern.compile(route.path), route.handler);
+        }
+    }
+
+    @Override
+    public Object run() {
+        for(Map.Entry<Pattern, HttpPathHandler> entry : patterns.entrySet()) {
+            if(entry.getKey().matcher(path).matches()) return entry.getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,596 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//what the clients saw, every histogram is in nanoseconds
+class LoadStats {
+    final Histogram upgrade = new Histogram();
+    final Histogram offerAnswer = new Histogram();
+    final Histogram relay = new Histogram();
+    final AtomicInteger upgraded = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger paired = new AtomicInteger();
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    //when each client got its 1001 after the server started draining
+    final Histogram goAway = new Histogram();
+    volatile long drainStarted = Long.MAX_VALUE;
+    //only candidates due to be sent in this window count toward throughput and latency, System.nanoTime()
+    volatile long measureFrom = Long.MAX_VALUE;
+    volatile long measureUntil = Long.MAX_VALUE;
+
+    boolean measured(long due) {
+        return due >= measureFrom && due < measureUntil;
+    }
+}
+
+//one browser tab, only ever touched by its worker's thread
+class LoadClient {
+    final LoadWorker worker;
+    final String room;
+    final SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer in;
+    final ArrayDeque<ByteBuffer> out;
+    boolean upgraded;
+    boolean closed;
+    final long connectStarted;
+    final int mask;
+
+    //peers an offer and answer went between, candidates go to them in turn
+    final List<UUID> peers;
+    final Map<UUID, Long> offersSent;
+    int nextPeer;
+    long nextSend;
+
+    public LoadClient(LoadWorker worker, String room, SocketChannel channel) {
+        this.worker = worker;
+        this.room = room;
+        this.channel = channel;
+        this.key = null;
+        this.in = ByteBuffer.allocate(16 * 1024);
+        this.out = new ArrayDeque<>();
+        this.upgraded = false;
+        this.closed = false;
+        this.connectStarted = System.nanoTime();
+        this.mask = ThreadLocalRandom.current().nextInt();
+        this.peers = new ArrayList<>();
+        this.offersSent = new HashMap<>();
+        this.nextPeer = 0;
+        this.nextSend = 0;
+    }
+}
+
+//a selector thread driving its share of the clients: upgrade, join, answer offers and send candidates on schedule
+class LoadWorker extends Thread {
+    final LoadGen gen;
+    final Selector selector;
+    final List<LoadClient> clients;
+    final ConcurrentLinkedQueue<LoadClient> connecting;
+    volatile boolean sending;
+    volatile boolean running;
+
+    static final String SEPARATOR = "::::";
+
+    public LoadWorker(LoadGen gen, int index) throws IOException {
+        super("load-worker-" + index);
+        this.gen = gen;
+        this.selector = Selector.open();
+        this.clients = new ArrayList<>();
+        this.connecting = new ConcurrentLinkedQueue<>();
+        this.sending = false;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    void connect(LoadClient client) {
+        connecting.add(client);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                LoadClient client;
+                while ((client = connecting.poll()) != null) {
+                    client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    clients.add(client);
+                }
+                selector.select(1);
+                for(SelectionKey key : selector.selectedKeys()) {
+                    handle((LoadClient) key.attachment(), key);
+                }
+                selector.selectedKeys().clear();
+                if(sending) sendCandidates(System.nanoTime());
+            }
+        } catch (IOException e) {
+            Log.error(e, "Load worker failed.");
+        }
+    }
+
+    void handle(LoadClient client, SelectionKey key) {
+        try {
+            if(key.isValid() && key.isConnectable() && client.channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                write(client, ByteBuffer.wrap(gen.upgradeRequest().getBytes(StandardCharsets.ISO_8859_1)));
+            }
+            if(key.isValid() && key.isWritable()) flush(client);
+            if(key.isValid() && key.isReadable()) read(client);
+        } catch (IOException e) {
+            fail(client);
+        }
+    }
+
+    void fail(LoadClient client) {
+        if(client.closed) return;
+        client.closed = true;
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ignored) {}
+        if(!client.upgraded) {
+            gen.stats.failed.incrementAndGet();
+            gen.pending.release();
+        }
+    }
+
+    void write(LoadClient client, ByteBuffer buffer) throws IOException {
+        if(client.out.isEmpty()) client.channel.write(buffer);
+        if(!buffer.hasRemaining()) return;
+        client.out.add(buffer);
+        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void flush(LoadClient client) throws IOException {
+        while (!client.out.isEmpty()) {
+            ByteBuffer buffer = client.out.peek();
+            client.channel.write(buffer);
+            if(buffer.hasRemaining()) return;
+            client.out.poll();
+        }
+        client.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void read(LoadClient client) throws IOException {
+        if(!client.in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(client.in.capacity() * 2);
+            client.in.flip();
+            client.in = bigger.put(client.in);
+        }
+        if(client.channel.read(client.in) == -1) {
+            fail(client);
+            return;
+        }
+        client.in.flip();
+        if(!client.upgraded && !readUpgrade(client)) {
+            client.in.compact();
+            return;
+        }
+        while (!client.closed && readFrame(client)) ;
+        if(!client.closed) client.in.compact();
+    }
+
+    boolean readUpgrade(LoadClient client) throws IOException {
+        ByteBuffer in = client.in;
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if(in.get(i) != '\r' || in.get(i + 1) != '\n' || in.get(i + 2) != '\r' || in.get(i + 3) != '\n') continue;
+            String response = StandardCharsets.ISO_8859_1.decode(in.slice(in.position(), i - in.position())).toString();
+            in.position(i + 4);
+            if(!response.startsWith("HTTP/1.1 101")) throw new IOException("Upgrade refused: " + response.lines().findFirst().orElse(""));
+            client.upgraded = true;
+            gen.stats.upgrade.record(System.nanoTime() - client.connectStarted);
+            gen.stats.upgraded.incrementAndGet();
+            gen.pending.release();
+            join(client);
+            return true;
+        }
+        return false;
+    }
+
+    //server frames are never masked
+    boolean readFrame(LoadClient client) throws IOException {
+        ByteBuffer in = client.in;
+        if(in.remaining() < 2) return false;
+        int start = in.position();
+        int flags = in.get(start) & 0xFF;
+        int length = in.get(start + 1) & 0x7F;
+        int headerLength = length == 127 ? 10 : length == 126 ? 4 : 2;
+        if(in.remaining() < headerLength) return false;
+        if(length == 126) length = in.getShort(start + 2) & 0xFFFF;
+        if(length == 127) length = (int) in.getLong(start + 2);
+        if(in.remaining() < headerLength + length) return false;
+
+        byte[] payload = new byte[length];
+        in.position(start + headerLength);
+        in.get(payload);
+        gen.stats.framesIn.increment();
+        switch (flags & 0xF) {
+            case 0x1 -> onText(client, new String(payload, StandardCharsets.UTF_8));
+            case 0x2 -> onBinary(client, payload);
+            case 0x8 -> {
+                if(length >= 2 && ((payload[0] & 0xFF) << 8 | payload[1] & 0xFF) == 1001) gen.stats.goAway.record(System.nanoTime() - gen.stats.drainStarted);
+                fail(client);
+            }
+            case 0x9 -> write(client, frame(client, 0x8A, payload));
+        }
+        return true;
+    }
+
+    ByteBuffer frame(LoadClient client, int flags, byte[] payload) {
+        int lengthBytes = payload.length < 126 ? 0 : payload.length < 65536 ? 2 : 8;
+        ByteBuffer frame = ByteBuffer.allocate(2 + lengthBytes + 4 + payload.length);
+        frame.put((byte) flags);
+        if(lengthBytes == 0) frame.put((byte) (0x80 | payload.length));
+        else if(lengthBytes == 2) frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        else frame.put((byte) (0x80 | 127)).putLong(payload.length);
+        frame.putInt(client.mask);
+        int position = frame.position();
+        frame.put(payload);
+        //unmask lines the key up with the array index, so it's turned to start where the payload does
+        FrameDecoder.unmask(frame.array(), position, payload.length, Integer.rotateRight(client.mask, (position & 0x3) * 8));
+        return frame.flip();
+    }
+
+    void sendText(LoadClient client, String text) throws IOException {
+        write(client, frame(client, 0x81, text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    //[type | uuid flag][peer uuid][varint length][payload], the binary form RtcWSC reads
+    void sendBinary(LoadClient client, int type, UUID peer, byte[] payload) throws IOException {
+        byte[] message = new byte[1 + 16 + RtcWSC.varintLength(payload.length) + payload.length];
+        message[0] = (byte) (type | RtcWSC.UUID_IDS);
+        int position = RtcWSC.writeLong(message, 1, peer.getMostSignificantBits());
+        position = RtcWSC.writeLong(message, position, peer.getLeastSignificantBits());
+        position = RtcWSC.writeVarint(message, position, payload.length);
+        System.arraycopy(payload, 0, message, position, payload.length);
+        write(client, frame(client, 0x82, message));
+    }
+
+    void join(LoadClient client) throws IOException {
+        if(!gen.binary) {
+            sendText(client, "join" + SEPARATOR + client.room);
+            return;
+        }
+        byte[] room = client.room.getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[1 + RtcWSC.varintLength(room.length) + room.length];
+        message[0] = (byte) (RtcWSC.JOIN | RtcWSC.UUID_IDS);
+        System.arraycopy(room, 0, message, RtcWSC.writeVarint(message, 1, room.length), room.length);
+        write(client, frame(client, 0x82, message));
+    }
+
+    void send(LoadClient client, int type, UUID peer, byte[] payload) throws IOException {
+        if(gen.binary) {
+            sendBinary(client, type, peer, payload);
+            return;
+        }
+        String event = type == RtcWSC.OFFER ? "offer" : type == RtcWSC.ANSWER ? "answer" : "candidate";
+        sendText(client, event + SEPARATOR + peer + SEPARATOR + new String(payload, StandardCharsets.UTF_8));
+    }
+
+    //the one already in the room offers, the newcomer answers, after that both trickle candidates
+    void onEvent(LoadClient client, int type, UUID peer, byte[] payload, int offset, int length) throws IOException {
+        switch (type) {
+            case RtcWSC.ADD_PEER -> {
+                client.offersSent.put(peer, System.nanoTime());
+                send(client, RtcWSC.OFFER, peer, gen.offer);
+            }
+            case RtcWSC.OFFER -> {
+                send(client, RtcWSC.ANSWER, peer, gen.offer);
+                addPeer(client, peer);
+            }
+            case RtcWSC.ANSWER -> {
+                Long sent = client.offersSent.remove(peer);
+                if(sent != null) gen.stats.offerAnswer.record(System.nanoTime() - sent);
+                addPeer(client, peer);
+            }
+            case RtcWSC.CANDIDATE -> onCandidate(payload, offset, length);
+            case RtcWSC.REMOVE_PEER -> client.peers.remove(peer);
+        }
+    }
+
+    void addPeer(LoadClient client, UUID peer) {
+        if(client.peers.isEmpty()) client.nextSend = System.nanoTime() + ThreadLocalRandom.current().nextLong(gen.interval);
+        client.peers.add(peer);
+        gen.stats.paired.incrementAndGet();
+    }
+
+    //candidates start with the time they were due to be sent, in decimal
+    void onCandidate(byte[] payload, int offset, int length) {
+        long due = 0;
+        for (int i = offset; i < offset + length && payload[i] >= '0' && payload[i] <= '9'; i++) {
+            due = due * 10 + payload[i] - '0';
+        }
+        if(!gen.stats.measured(due)) return;
+        gen.stats.received.increment();
+        gen.stats.relay.record(System.nanoTime() - due);
+    }
+
+    static int type(String event) {
+        return switch (event) {
+            case "add_peer" -> RtcWSC.ADD_PEER;
+            case "remove_peer" -> RtcWSC.REMOVE_PEER;
+            case "get_offer" -> RtcWSC.OFFER;
+            case "get_answer" -> RtcWSC.ANSWER;
+            case "candidate" -> RtcWSC.CANDIDATE;
+            default -> 0;
+        };
+    }
+
+    void onText(LoadClient client, String message) throws IOException {
+        String[] event = message.split(SEPARATOR);
+        if(event.length < 2) return;
+        int type = type(event[0]);
+        UUID peer = UUID.fromString(event[1]);
+        byte[] payload = event.length > 2 ? event[2].getBytes(StandardCharsets.UTF_8) : new byte[0];
+        onEvent(client, type, peer, payload, 0, payload.length);
+    }
+
+    void onBinary(LoadClient client, byte[] message) throws IOException {
+        int type = message[0] & 0x7F;
+        UUID peer = new UUID(RtcWSC.readLong(message, 1), RtcWSC.readLong(message, 9));
+        if(type == RtcWSC.ADD_PEER || type == RtcWSC.REMOVE_PEER) {
+            onEvent(client, type, peer, null, 0, 0);
+            return;
+        }
+        long varint = RtcWSC.readVarint(message, 17);
+        int position = (int) (varint >>> 32), value = (int) varint;
+        if(type != RtcWSC.CANDIDATES) {
+            onEvent(client, type, peer, message, position, value);
+            return;
+        }
+        for (int i = 0; i < value; i++) {
+            varint = RtcWSC.readVarint(message, position);
+            position = (int) (varint >>> 32);
+            onCandidate(message, position, (int) varint);
+            position += (int) varint;
+        }
+    }
+
+    //each paired client sends one candidate every interval, stamped with when it was due rather than when it went
+    //out so a server that stalls the generator still shows up in the latencies
+    void sendCandidates(long now) {
+        for(LoadClient client : clients) {
+            if(client.closed || client.peers.isEmpty() || now < client.nextSend) continue;
+            try {
+                while (client.nextSend <= now) {
+                    UUID peer = client.peers.get(client.nextPeer++ % client.peers.size());
+                    send(client, RtcWSC.CANDIDATE, peer, gen.candidate(client.nextSend));
+                    if(gen.stats.measured(client.nextSend)) gen.stats.sent.increment();
+                    client.nextSend += gen.interval;
+                }
+            } catch (IOException e) {
+                fail(client);
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        for(LoadClient client : clients) {
+            try {
+                client.channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
+
+//opens clients against /upgrade, pairs them up in rooms through the RtcWSC offer/answer flow and has every paired client
+//trickle candidates at a fixed rate, then reports connection rate, throughput and relay latency
+//without --host it starts a server in this process the way Main does, options and their defaults:
+//  --clients 1000        --room-size 2         --rate 10 (candidates per client per second)
+//  --warmup 5            --duration 30 (s)     --threads cores/2
+//  --pending 128 (upgrades in flight)          --binary (the binary protocol instead of text)
+//  --host h --port p (an existing server)      --nio, --virtual, --candidate-window ms (the in-process one)
+//  --connect-only (stop after the upgrades, for reconnect storms)
+//  --dispatch n (handlers on n stripes instead of the reading threads, in-process server)
+//  --drain closes/s (drain the in-process server at the end and report how the go-aways spread out)
+public class LoadGen {
+    final int clients;
+    final int roomSize;
+    final long interval;
+    final boolean binary;
+    final String host;
+    final int port;
+    final LoadStats stats;
+    final Semaphore pending;
+    final byte[] offer;
+    final byte[] candidateTail;
+
+    public LoadGen(int clients, int roomSize, int rate, boolean binary, String host, int port, int maxPending) {
+        this.clients = clients;
+        this.roomSize = roomSize;
+        this.interval = TimeUnit.SECONDS.toNanos(1) / Math.max(rate, 1);
+        this.binary = binary;
+        this.host = host;
+        this.port = port;
+        this.stats = new LoadStats();
+        this.pending = new Semaphore(maxPending);
+        this.offer = SdpOffer.bytes();
+        this.candidateTail = " candidate:842163049 1 udp 1677729535 203.0.113.7 54321 typ srflx raddr 10.0.0.7 rport 54321 generation 0 ufrag Xk2p network-cost 999".getBytes(StandardCharsets.UTF_8);
+    }
+
+    String upgradeRequest() {
+        byte[] key = new byte[16];
+        ThreadLocalRandom.current().nextBytes(key);
+        return "GET /upgrade HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+                + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: " + Base64.getEncoder().encodeToString(key) + "\r\n\r\n";
+    }
+
+    byte[] candidate(long due) {
+        byte[] stamp = Long.toString(due).getBytes(StandardCharsets.US_ASCII);
+        byte[] candidate = new byte[stamp.length + candidateTail.length];
+        System.arraycopy(stamp, 0, candidate, 0, stamp.length);
+        System.arraycopy(candidateTail, 0, candidate, stamp.length, candidateTail.length);
+        return candidate;
+    }
+
+    static String option(List<String> options, String name, String otherwise) {
+        int index = options.indexOf(name);
+        return index != -1 && index + 1 < options.size() ? options.get(index + 1) : otherwise;
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    static String quantiles(Histogram histogram) {
+        long[] values = histogram.quantiles(0.5, 0.99, 0.999);
+        return "p50 " + millis(values[0]) + ", p99 " + millis(values[1]) + ", p999 " + millis(values[2]) + ", max " + millis(histogram.max.get());
+    }
+
+    static WebSocketServer webSocketServer(List<String> options, RtcWSCFactory factory) {
+        WebSocketServer wss = options.contains("--virtual")
+                ? new WebSocketServer(factory, Thread.ofVirtual().name("ws-reader-", 0).factory())
+                : new WebSocketServer(factory);
+        if(options.contains("--dispatch")) wss.setDispatch(Integer.parseInt(option(options, "--dispatch", "1")), 256);
+        return wss;
+    }
+
+    //the server Main would start, on an ephemeral port
+    static HttpServer startServer(List<String> options, WebSocketServer wss) throws IOException {
+        String resources = Files.createTempDirectory("loadgen").toString();
+        HttpServer server = options.contains("--nio")
+                ? new HttpServer(ServerSocketChannel.open().bind(new InetSocketAddress(0), 4096), resources)
+                : options.contains("--virtual")
+                ? new HttpServer(new ServerSocket(0, 4096), resources, Executors.newVirtualThreadPerTaskExecutor())
+                : new HttpServer(new ServerSocket(0, 4096), resources);
+        server.addPath("GET", "/upgrade", (bundle) -> wss.handleUpgrade(bundle.detach(), bundle.headers));
+        server.run();
+        return server;
+    }
+
+    static int localPort(HttpServer server) throws IOException {
+        return server.serverChannel != null ? ((InetSocketAddress) server.serverChannel.getLocalAddress()).getPort() : server.server.getLocalPort();
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = List.of(args);
+        int clients = Integer.parseInt(option(options, "--clients", "1000"));
+        int roomSize = Math.max(Integer.parseInt(option(options, "--room-size", "2")), 2);
+        int rate = Integer.parseInt(option(options, "--rate", "10"));
+        long warmup = Long.parseLong(option(options, "--warmup", "5"));
+        long duration = Long.parseLong(option(options, "--duration", "30"));
+        int threads = Integer.parseInt(option(options, "--threads", String.valueOf(Math.max(Runtime.getRuntime().availableProcessors() / 2, 1))));
+        int maxPending = Integer.parseInt(option(options, "--pending", "128"));
+
+        HttpServer server = null;
+        RtcWSCFactory factory = null;
+        WebSocketServer wss = null;
+        String host = option(options, "--host", null);
+        int port;
+        if(host == null) {
+            Log.setLevel(Log.WARN);
+            factory = options.contains("--candidate-window") ? new RtcWSCFactory(Long.parseLong(option(options, "--candidate-window", "10")), 16) : new RtcWSCFactory();
+            wss = webSocketServer(options, factory);
+            server = startServer(options, wss);
+            host = "localhost";
+            port = localPort(server);
+        } else {
+            port = Integer.parseInt(option(options, "--port", "80"));
+        }
+
+        LoadGen gen = new LoadGen(clients, roomSize, rate, options.contains("--binary"), host, port, maxPending);
+        LoadWorker[] workers = new LoadWorker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new LoadWorker(gen, i);
+            workers[i].start();
+        }
+        System.out.printf("%d clients in rooms of %d against %s:%d, %d candidates/s each, %s protocol%n",
+                clients, roomSize, host, port, rate, gen.binary ? "binary" : "text");
+
+        //upgrades, with a bound on how many are in flight so the accept backlog never overflows into syn retries
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            gen.pending.acquire();
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+            LoadWorker worker = workers[i % threads];
+            worker.connect(new LoadClient(worker, "load-" + i / roomSize, channel));
+        }
+        gen.pending.acquire(maxPending);
+        long connectTime = System.nanoTime() - connectStart;
+        System.out.printf("connect: %d upgraded, %d failed in %.2f s, %.0f upgrades/s, upgrade %s%n",
+                gen.stats.upgraded.get(), gen.stats.failed.get(), connectTime / 1e9, gen.stats.upgraded.get() / (connectTime / 1e9), quantiles(gen.stats.upgrade));
+
+        if(options.contains("--connect-only")) finish(workers, server);
+
+        //every pair of room members does one offer and answer, each side counts the peer once
+        long expected = (long) (clients / roomSize) * roomSize * (roomSize - 1) + (long) (clients % roomSize) * (clients % roomSize - 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (gen.stats.paired.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        System.out.printf("signaling: %d of %d peer links, offer to answer %s%n", gen.stats.paired.get(), expected, quantiles(gen.stats.offerAnswer));
+
+        for(LoadWorker worker : workers) {
+            worker.sending = true;
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        long measureStart = System.nanoTime();
+        gen.stats.measureFrom = measureStart;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        gen.stats.measureUntil = System.nanoTime();
+        long measured = gen.stats.measureUntil - measureStart;
+        //candidates still on their way count, anything later than this is as good as lost
+        Thread.sleep(1000);
+        for(LoadWorker worker : workers) {
+            worker.sending = false;
+        }
+
+        double seconds = measured / 1e9;
+        long sent = gen.stats.sent.sum(), received = gen.stats.received.sum();
+        System.out.printf("relay: %d candidates sent (%.0f/s), %d received (%.0f/s) in %.1f s, %s%n",
+                sent, sent / seconds, received, received / seconds, seconds, quantiles(gen.stats.relay));
+        if(factory != null) System.out.printf("server: candidate window %d ms, %d frames saved by batching%n", factory.candidateWindow, factory.framesSaved());
+
+        if(wss != null && options.contains("--drain")) {
+            int closesPerSecond = Integer.parseInt(option(options, "--drain", "200"));
+            server.stopAccepting();
+            gen.stats.drainStarted = System.nanoTime();
+            int forced = wss.drain(closesPerSecond, 30000);
+            long drained = System.nanoTime() - gen.stats.drainStarted;
+            Thread.sleep(100);
+            System.out.printf("drain: %d of %d clients got 1001 in %.2f s, %d cut off, go-away at %s%n",
+                    gen.stats.goAway.count.sum(), gen.stats.upgraded.get(), drained / 1e9, forced, quantiles(gen.stats.goAway));
+        }
+
+        finish(workers, server);
+    }
+
+    static void finish(LoadWorker[] workers, HttpServer server) {
+        for(LoadWorker worker : workers) {
+            worker.shutdown();
+        }
+        if(server != null) server.stop();
+        Log.flush();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,136 @@
+import bench.Target;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+
+//a whole handshake between a client engine and one from the server's TlsContext, in memory so only the crypto and
+//the engines are measured, param is full or resumed and the protocol, e.g. resumed:TLSv1.3
+//the keystore is made with keytool for each run so nothing secret has to be checked in
+class TlsHandshakeTarget implements Target {
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    static final String SECRET = "benchmark";
+
+    Path directory;
+    TlsContext tls;
+    SSLContext client;
+    boolean resume;
+    ByteBuffer clientOut, serverOut, application;
+
+    static Path keystore(Path directory) throws Exception {
+        Path keystore = directory.resolve("keystore.jks");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "2", "-storetype", "JKS", "-keystore", keystore.toString(),
+                "-storepass", SECRET, "-keypass", SECRET).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if(process.waitFor() != 0) throw new IllegalStateException("keytool failed: " + output);
+        return keystore;
+    }
+
+    //benchmarks only, the server's certificate is whatever keytool just made
+    static SSLContext trustingClient() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    @Override
+    public void setup(String param) throws Exception {
+        String[] params = param.split(":");
+        resume = params[0].equals("resumed");
+        directory = Files.createTempDirectory("tls-bench");
+        tls = new TlsContext(keystore(directory).toString(), SECRET);
+        tls.protocols = new String[] {params[1]};
+        client = trustingClient();
+
+        SSLEngine engine = tls.newEngine();
+        clientOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        serverOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        application = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+        //the first one fills the client's cache, after that a resumed run has to actually resume
+        run();
+        long started = System.currentTimeMillis();
+        SSLEngine server = (SSLEngine) run();
+        if(resume != TlsTransport.resumed(server.getSession(), started)) throw new IllegalStateException("Resumption is " + (resume ? "off" : "on") + ".");
+    }
+
+    @Override
+    public Object run() throws Exception {
+        //a client engine for a named peer looks for a session to resume, one without never does
+        SSLEngine clientEngine = resume ? client.createSSLEngine("localhost", 443) : client.createSSLEngine();
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(tls.protocols);
+        SSLEngine server = tls.newEngine();
+        clientOut.clear();
+        serverOut.clear();
+
+        clientEngine.beginHandshake();
+        server.beginHandshake();
+        for (int round = 0; round < 32; round++) {
+            boolean moved = step(clientEngine, clientOut, serverOut) | step(server, serverOut, clientOut);
+            if(!moved && done(clientEngine) && done(server)) return server;
+        }
+        throw new SSLException("Handshake didn't finish.");
+    }
+
+    static boolean done(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    //wraps whatever the engine has for the other side into out, then unwraps what the other side left in in
+    boolean step(SSLEngine engine, ByteBuffer out, ByteBuffer in) throws SSLException {
+        boolean moved = false;
+        while (true) {
+            SSLEngineResult result = engine.wrap(EMPTY, out);
+            runTasks(engine);
+            if(result.bytesProduced() == 0) break;
+            moved = true;
+        }
+        in.flip();
+        while (in.hasRemaining()) {
+            SSLEngineResult result = engine.unwrap(in, application);
+            application.clear();
+            runTasks(engine);
+            if(result.bytesConsumed() == 0) break;
+            moved = true;
+        }
+        in.compact();
+        return moved;
+    }
+
+    static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        tls.handshakeTasks.shutdown();
+        Files.deleteIfExists(directory.resolve("keystore.jks"));
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,35 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//run with -prof gc, gc.alloc.rate.norm is the point rather than the time
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferPoolBench {
+    @Param({"256", "4096", "65536"})
+    String size;
+
+    Target pooled, allocated;
+
+    @Setup
+    public void setup() throws Exception {
+        pooled = Target.load("PooledArrayTarget", size);
+        allocated = Target.load("NewArrayTarget", size);
+    }
+
+    @Benchmark
+    public Object pooled() throws Exception {
+        return pooled.run();
+    }
+
+    @Benchmark
+    public Object allocated() throws Exception {
+        return allocated.run();
+    }
+}
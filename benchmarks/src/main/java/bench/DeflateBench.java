@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//one sdp offer per op
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeflateBench {
+    @Param({"takeover", "no_takeover"})
+    String context;
+
+    Target compress, inflate;
+
+    @Setup
+    public void setup() throws Exception {
+        compress = Target.load("DeflateTarget", context);
+        inflate = Target.load("InflateTarget", context);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        compress.tearDown();
+        inflate.tearDown();
+    }
+
+    @Benchmark
+    public Object compress() throws Exception {
+        return compress.run();
+    }
+
+    @Benchmark
+    public Object inflate() throws Exception {
+        return inflate.run();
+    }
+}
@@ -0,0 +1,29 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//one broadcast framed once and queued for every recipient, run with -prof gc for the allocation per broadcast
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBench {
+    @Param({"1000", "10000"})
+    String recipients;
+
+    Target fanOut;
+
+    @Setup
+    public void setup() throws Exception {
+        fanOut = Target.load("FanOutTarget", recipients);
+    }
+
+    @Benchmark
+    public Object broadcast() throws Exception {
+        return fanOut.run();
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//decode counts 64 frames per op, the others one payload
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBench {
+    @Param({"16", "125", "1024", "16384"})
+    String size;
+
+    Target decode, encode, unmask, unmaskBytewise;
+
+    @Setup
+    public void setup() throws Exception {
+        decode = Target.load("FrameDecodeTarget", size);
+        encode = Target.load("FrameEncodeTarget", size);
+        unmask = Target.load("UnmaskTarget", size);
+        unmaskBytewise = Target.load("BytewiseUnmaskTarget", size);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return decode.run();
+    }
+
+    @Benchmark
+    public Object encode() throws Exception {
+        return encode.run();
+    }
+
+    @Benchmark
+    public Object unmask() throws Exception {
+        return unmask.run();
+    }
+
+    @Benchmark
+    public Object unmaskBytewise() throws Exception {
+        return unmaskBytewise.run();
+    }
+}
@@ -0,0 +1,28 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpBench {
+    @Param({"upgrade", "browser"})
+    String request;
+
+    Target parse;
+
+    @Setup
+    public void setup() throws Exception {
+        parse = Target.load("HttpParseTarget", request);
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return parse.run();
+    }
+}
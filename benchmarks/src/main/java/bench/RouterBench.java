@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//table is the router, scan the regex list it replaced
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBench {
+    @Param({"exact", "prefix", "pattern", "miss"})
+    String kind;
+
+    @Param({"10", "100", "1000"})
+    String routes;
+
+    Target table, scan;
+
+    @Setup
+    public void setup() throws Exception {
+        table = Target.load("RouteTarget", kind + ":" + routes);
+        scan = Target.load("RouteScanTarget", kind + ":" + routes);
+    }
+
+    @Benchmark
+    public Object table() throws Exception {
+        return table.run();
+    }
+
+    @Benchmark
+    public Object scan() throws Exception {
+        return scan.run();
+    }
+}
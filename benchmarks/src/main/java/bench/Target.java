@@ -0,0 +1,23 @@
+package bench;
+
+import java.lang.reflect.Constructor;
+
+//jmh only generates code for benchmarks in a named package and a named package can't see the server's classes,
+//so every benchmark drives a class in the unnamed package through this, each call site only ever sees one of them
+public interface Target {
+    //param is the benchmark's @Param value, null if it has none
+    void setup(String param) throws Exception;
+
+    //whatever it returns goes to jmh's blackhole
+    Object run() throws Exception;
+
+    default void tearDown() throws Exception {}
+
+    static Target load(String name, String param) throws Exception {
+        Constructor<?> constructor = Class.forName(name).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Target target = (Target) constructor.newInstance();
+        target.setup(param);
+        return target;
+    }
+}
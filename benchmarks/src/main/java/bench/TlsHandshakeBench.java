@@ -0,0 +1,37 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//handshakes per second on one core and how long each takes, full against resumed from the session cache or a ticket
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBench {
+    @Param({"full", "resumed"})
+    String mode;
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    String protocol;
+
+    Target handshake;
+
+    @Setup
+    public void setup() throws Exception {
+        handshake = Target.load("TlsHandshakeTarget", mode + ":" + protocol);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        handshake.tearDown();
+    }
+
+    @Benchmark
+    public Object handshake() throws Exception {
+        return handshake.run();
+    }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//the server's share of one upgrade, LoadGen's connect line has the same end to end over real sockets
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpgradeBench {
+    Target acceptKey, acceptKeyLegacy, response;
+
+    @Setup
+    public void setup() throws Exception {
+        acceptKey = Target.load("AcceptKeyTarget", null);
+        acceptKeyLegacy = Target.load("LegacyAcceptKeyTarget", null);
+        response = Target.load("UpgradeResponseTarget", null);
+    }
+
+    @Benchmark
+    public Object acceptKey() throws Exception {
+        return acceptKey.run();
+    }
+
+    @Benchmark
+    public Object acceptKeyLegacy() throws Exception {
+        return acceptKeyLegacy.run();
+    }
+
+    @Benchmark
+    public Object response() throws Exception {
+        return response.run();
+    }
+}
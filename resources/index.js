@@ -1,5 +1,10 @@
 const DELIMITER = "::::"
+// compact binary signaling, peers are then addressed by the server's session ids
+const BINARY_SIGNALING = false
+const EVENT_TYPES = { join: 1, offer: 2, answer: 3, candidate: 4, add_peer: 5, remove_peer: 6, candidates: 7 }
+const EVENT_NAMES = [null, "join", "get_offer", "get_answer", "candidate", "add_peer", "remove_peer", "candidates"]
 const MUTE_ON_CONNECT = true
+const ROOM = window.location.hash.slice(1)
 const ICE_SERVERS = [
     { urls: "stun:stun.l.google.com:19302" }
 ]
@@ -75,16 +80,71 @@ const remoteStreams = new Map()
 
 const path = ((window.location.protocol === "https:") ? "wss://" : "ws://") + window.location.host + '/upgrade'
 const wsc = new WebSocket(path)
+wsc.binaryType = "arraybuffer"
+
+const textEncoder = new TextEncoder()
+const textDecoder = new TextDecoder()
+
+function writeVarint(bytes, offset, value) {
+    while (value >= 0x80) {
+        bytes[offset++] = (value & 0x7f) | 0x80
+        value >>>= 7
+    }
+    bytes[offset++] = value
+    return offset
+}
+
+// [type][varint length][room] for a join, [type][peer id][varint length][payload] otherwise
+function encodeEvent(name, arg, payload) {
+    const type = EVENT_TYPES[name]
+    const text = textEncoder.encode(name === "join" ? arg : (payload ?? ""))
+    const idLength = name === "join" ? 0 : 4
+    const bytes = new Uint8Array(1 + idLength + 5 + text.length)
+    bytes[0] = type
+    if (idLength > 0) new DataView(bytes.buffer).setUint32(1, Number(arg))
+    let offset = 1 + idLength
+    if (name !== "join" && payload == null) return bytes.subarray(0, offset)
+    offset = writeVarint(bytes, offset, text.length)
+    bytes.set(text, offset)
+    return bytes.subarray(0, offset + text.length)
+}
+
+function readVarint(bytes, offset) {
+    let value = 0, shift = 0, b
+    do {
+        b = bytes[offset++]
+        value |= (b & 0x7f) << shift
+        shift += 7
+    } while (b & 0x80)
+    return [value, offset]
+}
+
+// same shape as a split text event, so the handlers don't care which form arrived
+function decodeEvent(buffer) {
+    const bytes = new Uint8Array(buffer)
+    const type = bytes[0] & 0x7f
+    const evt = [EVENT_NAMES[type], String(new DataView(buffer).getUint32(1))]
+    if (bytes.length <= 5) return evt
+
+    // a batch carries a count and then that many payloads
+    let [count, offset] = type === EVENT_TYPES.candidates ? readVarint(bytes, 5) : [1, 5]
+    for (let i = 0; i < count; i++) {
+        const [length, start] = readVarint(bytes, offset)
+        evt.push(textDecoder.decode(bytes.subarray(start, start + length)))
+        offset = start + length
+    }
+    return evt
+}
 
 function sendEvent(...data) {
     console.log(data)
-    wsc.send(data.join(DELIMITER))
+    wsc.send(BINARY_SIGNALING ? encodeEvent(...data) : data.join(DELIMITER))
 }
 
 wsc.onopen = () => {
     console.log("Connected!")
     if (localStream.stream != null) {
-        sendEvent("join")
+        sendEvent("join", ROOM)
         return
     }
 
@@ -101,7 +161,7 @@ wsc.onopen = () => {
             localGain.gain.value = MUTE_ON_CONNECT ? 0 : 1
             localStream.stream = localDest.stream
             localStream.gain = localGain
-            sendEvent("join")
+            sendEvent("join", ROOM)
         })
         .catch((err) => {
             console.log(err)
@@ -119,7 +179,7 @@ wsc.onclose = (evt) => {
 }
 
 wsc.onmessage = ({ data }) => {
-    const evt = data.split(DELIMITER)
+    const evt = typeof data === "string" ? data.split(DELIMITER) : decodeEvent(data)
     console.log(evt)
 
     switch (evt[0]) {
@@ -135,6 +195,10 @@ wsc.onmessage = ({ data }) => {
         case "candidate":
             handleIceCandidate(evt)
             break
+        case "candidates":
+            // the server batches candidates that arrive close together
+            evt.slice(2).forEach((candidate) => handleIceCandidate([evt[0], evt[1], candidate]))
+            break
         case "remove_peer":
             handleRemovePeer(evt)
             break
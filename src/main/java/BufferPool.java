@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//per thread stacks of idle arrays, one per size class, so the common take/give on the same thread skips the shared queues
+class BufferCache {
+    final byte[][][] stacks;
+    final int[] sizes;
+
+    public BufferCache(int[] capacities) {
+        stacks = new byte[capacities.length][][];
+        sizes = new int[capacities.length];
+        for (int i = 0; i < capacities.length; i++) {
+            stacks[i] = new byte[capacities[i]][];
+        }
+    }
+
+    byte[] pop(int sizeClass) {
+        if(sizes[sizeClass] == 0) return null;
+        byte[][] stack = stacks[sizeClass];
+        byte[] array = stack[--sizes[sizeClass]];
+        stack[sizes[sizeClass]] = null;
+        return array;
+    }
+
+    boolean push(int sizeClass, byte[] array) {
+        byte[][] stack = stacks[sizeClass];
+        if(sizes[sizeClass] == stack.length) return false;
+        stack[sizes[sizeClass]++] = array;
+        return true;
+    }
+}
+
+//size classed heap arrays shared by http and websocket i/o, powers of two from minSize to maxSize
+//bigger requests are allocated as usual and dropped when given back, everything here reads through array() so there's no direct variant
+public class BufferPool {
+    final int minShift;
+    final int maxShift;
+    final ConcurrentLinkedQueue<byte[]>[] queues;
+    final AtomicInteger[] idle;
+    final int[] maxIdle;
+    final int[] cacheCapacities;
+    final ThreadLocal<BufferCache> caches;
+    //debug mode remembers where every pooled array was taken, which finds leaks and double gives
+    final boolean debug;
+    final Map<byte[], Throwable> outstanding;
+
+    static final int THREAD_CACHE_BYTES = 256 * 1024;
+    static final int MAX_THREAD_CACHE_ENTRIES = 32;
+
+    //-Dbufferpool.debug=true turns on leak tracking for the shared pool
+    static final BufferPool shared = new BufferPool(256, 64 * 1024, 32L * 1024 * 1024, Boolean.getBoolean("bufferpool.debug"));
+
+    public BufferPool(int minSize, int maxSize, long maxIdleBytes, boolean debug) {
+        this.minShift = shift(minSize);
+        this.maxShift = Math.max(shift(maxSize), minShift);
+        int classes = maxShift - minShift + 1;
+        //no generic arrays, so the one cast is kept to this line
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<byte[]>[] queues = new ConcurrentLinkedQueue[classes];
+        this.queues = queues;
+        this.idle = new AtomicInteger[classes];
+        this.maxIdle = new int[classes];
+        this.cacheCapacities = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            int size = 1 << (minShift + i);
+            queues[i] = new ConcurrentLinkedQueue<>();
+            idle[i] = new AtomicInteger();
+            maxIdle[i] = (int) Math.min(maxIdleBytes / classes / size, Integer.MAX_VALUE);
+            cacheCapacities[i] = Math.max(1, Math.min(MAX_THREAD_CACHE_ENTRIES, THREAD_CACHE_BYTES / size));
+        }
+        this.caches = ThreadLocal.withInitial(() -> new BufferCache(cacheCapacities));
+        this.debug = debug;
+        this.outstanding = debug ? new IdentityHashMap<>() : null;
+    }
+
+    //smallest shift with 1 << shift >= size
+    static int shift(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    int maxSize() {
+        return 1 << maxShift;
+    }
+
+    //-1 if arrays this big aren't pooled
+    int sizeClass(int size) {
+        int shift = Math.max(shift(size), minShift);
+        return shift > maxShift ? -1 : shift - minShift;
+    }
+
+    //virtual threads come and go with their tasks, a cache on each would only strand arrays
+    BufferCache cache() {
+        return Thread.currentThread().isVirtual() ? null : caches.get();
+    }
+
+    //at least size bytes, the array may be longer
+    byte[] take(int size) {
+        int sizeClass = sizeClass(size);
+        if(sizeClass == -1) return new byte[size];
+
+        BufferCache cache = cache();
+        byte[] array = cache != null ? cache.pop(sizeClass) : null;
+        if(array == null) {
+            array = queues[sizeClass].poll();
+            if(array != null) idle[sizeClass].decrementAndGet();
+        }
+        if(array == null) array = new byte[1 << (minShift + sizeClass)];
+        if(debug) track(array);
+        return array;
+    }
+
+    void give(byte[] array) {
+        if(array == null) return;
+        int sizeClass = sizeClass(array.length);
+        if(sizeClass == -1 || array.length != 1 << (minShift + sizeClass)) return;
+        if(debug && !untrack(array)) return;
+
+        BufferCache cache = cache();
+        if(cache != null && cache.push(sizeClass, array)) return;
+        if(idle[sizeClass].incrementAndGet() <= maxIdle[sizeClass]) {
+            queues[sizeClass].add(array);
+            return;
+        }
+        idle[sizeClass].decrementAndGet();
+    }
+
+    //a fresh view over a pooled array, giving it back only returns the array so stale views can't move anyone's position
+    ByteBuffer takeBuffer(int size) {
+        return ByteBuffer.wrap(take(size));
+    }
+
+    void give(ByteBuffer buffer) {
+        if(buffer != null && buffer.hasArray()) give(buffer.array());
+    }
+
+    void track(byte[] array) {
+        synchronized (outstanding) {
+            outstanding.put(array, new Throwable("Buffer taken here"));
+        }
+    }
+
+    boolean untrack(byte[] array) {
+        synchronized (outstanding) {
+            if(outstanding.remove(array) != null) return true;
+        }
+        Log.error(new Throwable("Buffer given back twice or never taken from this pool"), "Pool misuse.");
+        return false;
+    }
+
+    //number of pooled arrays taken and not given back, always 0 outside debug mode
+    int outstanding() {
+        if(!debug) return 0;
+        synchronized (outstanding) {
+            return outstanding.size();
+        }
+    }
+
+    //prints where each array that hasn't come back was taken
+    void reportLeaks() {
+        if(!debug) return;
+        synchronized (outstanding) {
+            Log.warn("%d pooled buffers outstanding.", outstanding.size());
+            for(Throwable taken : outstanding.values()) {
+                Log.error(taken, "Leaked buffer.");
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//members are a copy-on-write array so a broadcast reads one consistent snapshot without locking or allocating
+class Room {
+    final String name;
+    volatile WebSocketClient[] members;
+    boolean closed;
+
+    static final WebSocketClient[] EMPTY = new WebSocketClient[0];
+
+    public Room(String name) {
+        this.name = name;
+        this.members = EMPTY;
+        this.closed = false;
+    }
+
+    //false if the room was emptied and dropped from the registry in the meantime
+    synchronized boolean add(WebSocketClient client) {
+        if(closed) return false;
+        WebSocketClient[] current = members;
+        for(WebSocketClient member : current) {
+            if(member == client) return true;
+        }
+        WebSocketClient[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = client;
+        members = next;
+        return true;
+    }
+
+    //returns true if this left the room empty
+    synchronized boolean remove(WebSocketClient client) {
+        WebSocketClient[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if(current[i] != client) continue;
+            WebSocketClient[] next = new WebSocketClient[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            members = next;
+            break;
+        }
+        if(members.length == 0) closed = true;
+        return closed;
+    }
+}
+
+public class ClientRegistry {
+    final ConcurrentHashMap<UUID, WebSocketClient> clients;
+    final ConcurrentHashMap<String, Room> rooms;
+
+    //session ids are a slot in the low bits and the slot's reuse count above, so an id a peer
+    //still holds after a disconnect doesn't reach whoever gets the slot next
+    volatile AtomicReferenceArray<WebSocketClient> sessions;
+    int[] sessionGenerations;
+    int[] freeSlots;
+    int freeCount;
+    int nextSlot;
+
+    static final int SLOT_BITS = 20;
+    static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    public ClientRegistry() {
+        clients = new ConcurrentHashMap<>();
+        rooms = new ConcurrentHashMap<>();
+        sessions = new AtomicReferenceArray<>(64);
+        sessionGenerations = new int[64];
+        freeSlots = new int[64];
+        freeCount = 0;
+        nextSlot = 0;
+    }
+
+    //lookup without allocating, null if the id is stale or unknown
+    WebSocketClient session(int sessionId) {
+        int slot = sessionId & SLOT_MASK;
+        AtomicReferenceArray<WebSocketClient> current = sessions;
+        if(sessionId < 0 || slot >= current.length()) return null;
+        WebSocketClient client = current.get(slot);
+        return client != null && client.sessionId == sessionId ? client : null;
+    }
+
+    synchronized void openSession(WebSocketClient client) {
+        if(client.sessionId != -1) return;
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+        if(slot > SLOT_MASK) throw new IllegalStateException("Out of session ids.");
+        if(slot >= sessions.length()) {
+            AtomicReferenceArray<WebSocketClient> grown = new AtomicReferenceArray<>(sessions.length() * 2);
+            for (int i = 0; i < sessions.length(); i++) {
+                grown.set(i, sessions.get(i));
+            }
+            sessionGenerations = Arrays.copyOf(sessionGenerations, grown.length());
+            freeSlots = Arrays.copyOf(freeSlots, grown.length());
+            sessions = grown;
+        }
+        int generation = sessionGenerations[slot] = (sessionGenerations[slot] + 1) & (Integer.MAX_VALUE >> SLOT_BITS);
+        client.sessionId = generation << SLOT_BITS | slot;
+        sessions.set(slot, client);
+    }
+
+    synchronized void closeSession(WebSocketClient client) {
+        int sessionId = client.sessionId;
+        if(sessionId == -1) return;
+        int slot = sessionId & SLOT_MASK;
+        if(sessions.get(slot) != client) return;
+        sessions.set(slot, null);
+        freeSlots[freeCount++] = slot;
+    }
+
+    WebSocketClient get(UUID id) {
+        return clients.get(id);
+    }
+
+    boolean containsKey(UUID id) {
+        return clients.containsKey(id);
+    }
+
+    //returns the client that was registered under the id before, if any
+    WebSocketClient put(UUID id, WebSocketClient client) {
+        openSession(client);
+        return clients.put(id, client);
+    }
+
+    //only removes the entry if it still belongs to this client, a reconnect may have replaced it
+    boolean remove(UUID id, WebSocketClient client) {
+        boolean removed = clients.remove(id, client);
+        leave(client);
+        closeSession(client);
+        return removed;
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    //weakly consistent view, never throws on concurrent changes
+    Collection<WebSocketClient> values() {
+        return clients.values();
+    }
+
+    void join(String name, WebSocketClient client) {
+        leave(client);
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            if(room.add(client)) {
+                client.room = room;
+                return;
+            }
+            rooms.remove(name, room);
+        }
+    }
+
+    void leave(WebSocketClient client) {
+        Room room = client.room;
+        if(room == null) return;
+        client.room = null;
+        if(room.remove(client)) rooms.remove(room.name, room);
+    }
+
+    WebSocketClient[] members(String name) {
+        Room room = rooms.get(name);
+        return room == null ? Room.EMPTY : room.members;
+    }
+}
@@ -1,19 +1,71 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 public class ClientSocket {
 
     Socket socket;
     InputStream in;
     OutputStream out;
+    NioConnection connection;
 
     public ClientSocket(Socket clientSocket) throws IOException {
         this.socket = clientSocket;
         this.in = clientSocket.getInputStream();
         this.out = clientSocket.getOutputStream();
+        this.connection = null;
+    }
+
+    //non-blocking mode, reads are pushed by the event loop so in only holds what was already parsed
+    public ClientSocket(NioConnection connection, InputStream in) {
+        this.socket = connection.channel.socket();
+        this.in = in;
+        this.out = connection.outputStream();
+        this.connection = connection;
+    }
+
+    //takes over the streams of another wrapper around the same socket
+    void adopt(ClientSocket other) {
+        this.in = other.in;
+        this.out = other.out;
+        this.connection = other.connection;
+    }
+
+    //non-blocking mode queues the buffers without copying, so they must not change afterwards
+    void write(ByteBuffer... buffers) throws IOException {
+        if(connection != null) {
+            connection.write(buffers);
+            return;
+        }
+        for(ByteBuffer buffer : buffers) {
+            if(buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                continue;
+            }
+            byte[] chunk = BufferPool.shared.take(Math.min(buffer.remaining(), 16 * 1024));
+            try {
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            } finally {
+                BufferPool.shared.give(chunk);
+            }
+        }
+    }
+
+    boolean isClosed() {
+        if(connection != null) return connection.closing;
+        return socket.isClosed();
     }
 
     void close() throws IOException {
+        if(connection != null) {
+            connection.close();
+            return;
+        }
         out.close();
         in.close();
         socket.close();
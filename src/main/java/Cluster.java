@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//moves records between nodes, records to one node arrive in the order they were sent for as long as the link stays up
+interface ClusterTransport {
+    void start(Cluster cluster) throws IOException;
+    //false if there's no link to the node right now
+    boolean send(String node, byte[] record);
+    //nodes there's a link to
+    Collection<String> nodes();
+    void stop();
+}
+
+//events the server can't deliver itself because only the client factory knows what its clients expect
+interface ClusterListener {
+    //payload is whatever the other node passed to sendDirect or sendRoom
+    void onDirect(WebSocketServer wss, UUID target, byte[] record, int offset, int length) throws IOException;
+    void onRoom(WebSocketServer wss, String room, UUID except, byte[] record, int offset, int length) throws IOException;
+    //a node went away without saying its peers left
+    void onPeerLost(WebSocketServer wss, UUID peer, String room) throws IOException;
+}
+
+//where a client connected to another node is
+class RemotePeer {
+    final String node;
+    String room;
+
+    public RemotePeer(String node) {
+        this.node = node;
+        this.room = null;
+    }
+}
+
+//ties WebSocketServers on several nodes together, every node keeps a directory of the peers on the others
+//so a message for a peer goes straight to its node and a room event only to nodes with someone in the room
+public class Cluster {
+    final String node;
+    final ClusterTransport transport;
+    WebSocketServer wss;
+    ClusterListener listener;
+    final ConcurrentHashMap<UUID, RemotePeer> directory;
+    //guarded by this, like the room of every RemotePeer
+    final Map<String, Map<String, Integer>> roomNodes;
+
+    static final int PEER_UP = 1;
+    static final int PEER_DOWN = 2;
+    static final int PEER_ROOM = 3;
+    static final int TEXT = 4;
+    static final int BROADCAST = 5;
+    static final int ROOM_BROADCAST = 6;
+    static final int DIRECT = 7;
+    static final int ROOM = 8;
+    //stands in for no peer where a record has an except field
+    static final UUID NOBODY = new UUID(0, 0);
+
+    static final LongAdder recordsIn = Metrics.shared.counter("cluster_records_in_total");
+    static final LongAdder unroutable = Metrics.shared.counter("cluster_unroutable_total");
+
+    public Cluster(String node, ClusterTransport transport) {
+        this.node = node;
+        this.transport = transport;
+        this.wss = null;
+        this.listener = null;
+        this.directory = new ConcurrentHashMap<>();
+        this.roomNodes = new HashMap<>();
+        Metrics.shared.gauge("cluster_nodes", () -> transport.nodes().size());
+        Metrics.shared.gauge("cluster_remote_peers", directory::size);
+    }
+
+    void attach(WebSocketServer wss) {
+        this.wss = wss;
+        this.listener = wss.clientFactory instanceof ClusterListener clusterListener ? clusterListener : null;
+    }
+
+    void start() throws IOException {
+        transport.start(this);
+    }
+
+    void stop() {
+        transport.stop();
+    }
+
+    boolean hosts(UUID peer) {
+        return directory.containsKey(peer);
+    }
+
+    static byte[] record(int kind, UUID id, int extra) {
+        byte[] record = new byte[17 + extra];
+        ByteBuffer.wrap(record).put((byte) kind).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+        return record;
+    }
+
+    static byte[] record(int kind, UUID id, String room, int flags, byte[] payload, int offset, int length) {
+        byte[] name = room == null ? new byte[0] : room.getBytes(StandardCharsets.UTF_8);
+        boolean hasFlags = kind == BROADCAST || kind == ROOM_BROADCAST;
+        byte[] record = record(kind, id, (room == null ? 0 : 2 + name.length) + (hasFlags ? 1 : 0) + length);
+        ByteBuffer out = ByteBuffer.wrap(record).position(17);
+        if(hasFlags) out.put((byte) flags);
+        if(room != null) out.putShort((short) name.length).put(name);
+        out.put(payload, offset, length);
+        return record;
+    }
+
+    //the same array goes to every node
+    void sendAll(Collection<String> nodes, byte[] record) {
+        for(String other : nodes) {
+            transport.send(other, record);
+        }
+    }
+
+    //local peers are announced under the lock so a node that just came up can't get a peer's down before its up
+    synchronized void peerUp(UUID peer) {
+        sendAll(transport.nodes(), record(PEER_UP, peer, 0));
+    }
+
+    synchronized void peerDown(UUID peer) {
+        sendAll(transport.nodes(), record(PEER_DOWN, peer, 0));
+    }
+
+    synchronized void peerRoom(UUID peer, String room) {
+        sendAll(transport.nodes(), record(PEER_ROOM, peer, room, 0, new byte[0], 0, 0));
+    }
+
+    //false if the peer isn't on any node we know of
+    boolean sendText(UUID target, String msg) {
+        RemotePeer peer = directory.get(target);
+        if(peer == null) return false;
+        byte[] text = msg.getBytes(StandardCharsets.UTF_8);
+        return transport.send(peer.node, record(TEXT, target, null, 0, text, 0, text.length));
+    }
+
+    boolean sendDirect(UUID target, byte[] payload, int offset, int length) {
+        RemotePeer peer = directory.get(target);
+        if(peer == null) return false;
+        return transport.send(peer.node, record(DIRECT, target, null, 0, payload, offset, length));
+    }
+
+    void broadcast(UUID except, int flags, byte[] payload) {
+        sendAll(transport.nodes(), record(BROADCAST, except == null ? NOBODY : except, null, flags, payload, 0, payload.length));
+    }
+
+    void broadcastRoom(String room, UUID except, int flags, byte[] payload) {
+        List<String> nodes = nodesIn(room);
+        if(nodes.isEmpty()) return;
+        sendAll(nodes, record(ROOM_BROADCAST, except == null ? NOBODY : except, room, flags, payload, 0, payload.length));
+    }
+
+    void sendRoom(String room, UUID except, byte[] payload, int offset, int length) {
+        List<String> nodes = nodesIn(room);
+        if(nodes.isEmpty()) return;
+        sendAll(nodes, record(ROOM, except == null ? NOBODY : except, room, 0, payload, offset, length));
+    }
+
+    synchronized List<String> nodesIn(String room) {
+        Map<String, Integer> nodes = roomNodes.get(room);
+        return nodes == null ? List.of() : List.copyOf(nodes.keySet());
+    }
+
+    //tells a node that just linked up about every local peer, under the lock so it lines up with peerUp and peerDown
+    synchronized void nodeUp(String other) {
+        Log.info("Cluster node %s up.", other);
+        for(WebSocketClient client : wss.clients.values()) {
+            transport.send(other, record(PEER_UP, client.id, 0));
+            Room room = client.room;
+            if(room != null) transport.send(other, record(PEER_ROOM, client.id, room.name, 0, new byte[0], 0, 0));
+        }
+    }
+
+    void nodeDown(String other) {
+        Log.info("Cluster node %s down.", other);
+        for(Map.Entry<UUID, RemotePeer> entry : directory.entrySet()) {
+            RemotePeer peer = entry.getValue();
+            if(!peer.node.equals(other) || !directory.remove(entry.getKey(), peer)) continue;
+            String room;
+            synchronized (this) {
+                room = peer.room;
+                moveRoom(peer, null);
+            }
+            if(room == null || listener == null) continue;
+            try {
+                listener.onPeerLost(wss, entry.getKey(), room);
+            } catch (IOException e) {
+                Log.error(e, "Couldn't announce %s left.", entry.getKey());
+            }
+        }
+    }
+
+    //guarded by this
+    void moveRoom(RemotePeer peer, String room) {
+        if(peer.room != null) {
+            Map<String, Integer> nodes = roomNodes.get(peer.room);
+            if(nodes != null && nodes.merge(peer.node, -1, Integer::sum) <= 0) {
+                nodes.remove(peer.node);
+                if(nodes.isEmpty()) roomNodes.remove(peer.room);
+            }
+        }
+        peer.room = room;
+        if(room != null) roomNodes.computeIfAbsent(room, key -> new HashMap<>()).merge(peer.node, 1, Integer::sum);
+    }
+
+    static String readRoom(ByteBuffer in) {
+        byte[] name = new byte[in.getShort() & 0xFFFF];
+        in.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    //called by the transport on its reader thread, one record at a time per node
+    void receive(String from, byte[] record) {
+        recordsIn.increment();
+        try {
+            ByteBuffer in = ByteBuffer.wrap(record);
+            int kind = in.get();
+            UUID id = new UUID(in.getLong(), in.getLong());
+            UUID except = id.equals(NOBODY) ? null : id;
+            switch (kind) {
+                case PEER_UP -> {
+                    //announced again by the same node is a no-op, it may already have a room
+                    RemotePeer old = directory.get(id);
+                    if(old != null && old.node.equals(from)) return;
+                    directory.put(id, new RemotePeer(from));
+                    if(old != null) synchronized (this) {
+                        moveRoom(old, null);
+                    }
+                }
+                case PEER_DOWN -> {
+                    RemotePeer peer = directory.get(id);
+                    if(peer == null || !peer.node.equals(from) || !directory.remove(id, peer)) return;
+                    synchronized (this) {
+                        moveRoom(peer, null);
+                    }
+                }
+                case PEER_ROOM -> {
+                    String room = readRoom(in);
+                    RemotePeer peer = directory.computeIfAbsent(id, key -> new RemotePeer(from));
+                    synchronized (this) {
+                        moveRoom(peer, room);
+                    }
+                }
+                case TEXT -> {
+                    WebSocketClient client = wss.clients.get(id);
+                    if(client == null) {
+                        unroutable.increment();
+                        return;
+                    }
+                    client.sendText(new String(record, in.position(), in.remaining(), StandardCharsets.UTF_8));
+                }
+                case BROADCAST -> {
+                    int flags = in.get() & 0xFF;
+                    wss.broadcastLocal(except, flags, remaining(in));
+                }
+                case ROOM_BROADCAST -> {
+                    int flags = in.get() & 0xFF;
+                    String room = readRoom(in);
+                    wss.broadcast(wss.clients.members(room), except, flags, remaining(in));
+                }
+                case DIRECT -> {
+                    if(listener != null) listener.onDirect(wss, id, record, in.position(), in.remaining());
+                }
+                case ROOM -> {
+                    String room = readRoom(in);
+                    if(listener != null) listener.onRoom(wss, room, except, record, in.position(), in.remaining());
+                }
+                default -> Log.warn("Unknown cluster record %d from %s.", kind, from);
+            }
+        } catch (BufferUnderflowException e) {
+            Log.warn("Short cluster record from %s.", from);
+        } catch (IOException e) {
+            Log.error(e, "Couldn't deliver a record from %s.", from);
+        }
+    }
+
+    static byte[] remaining(ByteBuffer in) {
+        byte[] payload = new byte[in.remaining()];
+        in.get(payload);
+        return payload;
+    }
+}
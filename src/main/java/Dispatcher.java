@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+interface ClientTask {
+    void run() throws IOException;
+}
+
+//a handler call waiting on a stripe, queuedAt is System.nanoTime()
+class Dispatched {
+    final WebSocketClient client;
+    final ClientTask task;
+    final long queuedAt;
+
+    public Dispatched(WebSocketClient client, ClientTask task) {
+        this.client = client;
+        this.task = task;
+        this.queuedAt = System.nanoTime();
+    }
+}
+
+//one thread running its connections' handler calls in the order they were queued
+class Stripe {
+    final Thread worker;
+    final ConcurrentLinkedQueue<Dispatched> tasks;
+    //only a hint for the worker's parking and the gauge, the queue is what's run
+    final AtomicInteger queued;
+    volatile boolean running;
+
+    public Stripe(String name) {
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.queued = new AtomicInteger(0);
+        this.running = true;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    //counted after it's queued, so the worker can't be woken for a task it then doesn't find
+    //once stopped there's no worker to wait for, the caller runs it along with anything queued before it
+    void execute(WebSocketClient client, ClientTask task) {
+        tasks.add(new Dispatched(client, task));
+        if(queued.getAndIncrement() == 0) LockSupport.unpark(worker);
+        if(!running) runQueued();
+    }
+
+    int size() {
+        return Math.max(queued.get(), 0);
+    }
+
+    void run() {
+        while (running) {
+            if(tasks.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            runQueued();
+        }
+        //calls queued before the stop still run, and finishing them resumes any reader that was waiting on them
+        runQueued();
+    }
+
+    //the lock is only ever contended after a stop, when a late call and the worker's last run could otherwise overlap
+    synchronized void runQueued() {
+        Dispatched dispatched;
+        while ((dispatched = tasks.poll()) != null) {
+            long start = System.nanoTime();
+            Dispatcher.waitTime.record(start - dispatched.queuedAt);
+            try {
+                dispatched.task.run();
+            } catch (IOException | RuntimeException e) {
+                Dispatcher.failures.increment();
+                dispatched.client.handlerFailed(e);
+            }
+            Dispatcher.handlerTime.record(System.nanoTime() - start);
+            queued.decrementAndGet();
+            dispatched.client.dispatchDone();
+        }
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+}
+
+//handler calls moved off the threads that read frames, so a slow handler holds up its stripe instead of a reader
+//each connection stays on one stripe, so its events are never reordered or run at the same time
+//a connection with maxPending calls queued isn't read again until half of them have run
+public class Dispatcher {
+    final Stripe[] stripes;
+    final AtomicInteger next;
+    final int maxPending;
+
+    static final Histogram waitTime = Metrics.shared.histogram("websocket_dispatch_wait_seconds");
+    static final Histogram handlerTime = Metrics.shared.histogram("websocket_dispatch_handler_seconds");
+    static final LongAdder pauses = Metrics.shared.counter("websocket_dispatch_paused_total");
+    static final LongAdder failures = Metrics.shared.counter("websocket_dispatch_failed_total");
+    static final long STOP_TIMEOUT = 1000;
+
+    public Dispatcher(String name, int stripes, int maxPending) {
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(name + "-" + i);
+        }
+        this.next = new AtomicInteger(0);
+        this.maxPending = Math.max(maxPending, 2);
+    }
+
+    //round robin rather than by id, connections come and go so hashing wouldn't spread them any better
+    Stripe stripe() {
+        return stripes[Math.floorMod(next.getAndIncrement(), stripes.length)];
+    }
+
+    long queued() {
+        long queued = 0;
+        for(Stripe stripe : stripes) {
+            queued += stripe.size();
+        }
+        return queued;
+    }
+
+    //what's queued still runs, the workers get a second to finish it before the caller moves on
+    void stop() {
+        for(Stripe stripe : stripes) {
+            stripe.stop();
+        }
+        try {
+            for(Stripe stripe : stripes) {
+                if(stripe.worker != Thread.currentThread()) stripe.worker.join(STOP_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
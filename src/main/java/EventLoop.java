@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop {
+    final Selector selector;
+    final Thread runningThread;
+    final Queue<Runnable> tasks;
+    volatile boolean isRunning;
+    long lastSweep;
+
+    static final long SWEEP_INTERVAL = 1000;
+
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        runningThread = new Thread(this::runThread, name);
+        isRunning = false;
+        lastSweep = 0;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == runningThread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        //tasks queued from the loop itself run at the end of the current pass
+        if(!inLoop()) selector.wakeup();
+    }
+
+    void register(SocketChannel channel, NioHandler handler) {
+        register(channel, handler, null);
+    }
+
+    //the engine is made here rather than on the accept thread, tls can be null for plain tcp
+    void register(SocketChannel channel, NioHandler handler, TlsContext tls) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(this, channel, handler, tls);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                Log.error(e, "Couldn't register a connection.");
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error(e, "Loop task failed.");
+            }
+        }
+    }
+
+    //closes connections whose handler has an idle timeout that ran out, at most once per interval
+    void sweepIdle() {
+        long now = System.currentTimeMillis();
+        if(now - lastSweep < SWEEP_INTERVAL) return;
+        lastSweep = now;
+        for(SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if(key.isValid() && connection.isIdle(now)) connection.closeNow();
+        }
+    }
+
+    void runThread() {
+        while (isRunning) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if(key.isValid() && key.isReadable()) connection.handleRead();
+                        if(key.isValid() && key.isWritable()) connection.flush();
+                    } catch (RuntimeException e) {
+                        //a broken handler takes down its own connection, not the loop and everyone on it
+                        Log.error(e, "Connection handler failed.");
+                        connection.closeNow();
+                    }
+                }
+
+                runTasks();
+                sweepIdle();
+            } catch (IOException e) {
+                Log.error(e, "Select failed.");
+            }
+        }
+
+        for(SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error(e, "Couldn't close the selector.");
+        }
+    }
+
+    public void run() {
+        isRunning = true;
+        if(!runningThread.isAlive()) runningThread.start();
+    }
+
+    public void stop() {
+        if(runningThread.isAlive()) {
+            isRunning = false;
+            selector.wakeup();
+        }
+    }
+}
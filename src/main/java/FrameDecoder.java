@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//incremental decoder for client frames, fed from whatever bytes are available
+public class FrameDecoder {
+    int flags;
+    int mask;
+    //may be longer than the frame when it came from the pool, length is what counts
+    byte[] payload;
+    int length;
+    boolean pooled;
+    int position;
+    //data bytes of the message the last frame belongs to, continuations add up
+    long messageLength;
+    final int maxMessageLength;
+    final BufferPool pool;
+
+    static final int MAX_PAYLOAD_LENGTH = Integer.MAX_VALUE - 8;
+    static final byte[] emptyPayload = new byte[0];
+    static final VarHandle longView = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public FrameDecoder(int maxMessageLength, BufferPool pool) {
+        this.maxMessageLength = maxMessageLength;
+        this.pool = pool;
+        this.messageLength = 0;
+        reset();
+    }
+
+    //gives a pooled payload back, so whatever the last frame was handed to must be done with it
+    void reset() {
+        if(pooled) pool.give(payload);
+        flags = -1;
+        payload = null;
+        length = 0;
+        pooled = false;
+        position = 0;
+    }
+
+    boolean hasHeader() {
+        return flags != -1;
+    }
+
+    //returns false until the whole header is buffered
+    boolean readHeader(ByteBuffer buffer) throws WebsocketException {
+        if(buffer.remaining() < 2) return false;
+        int start = buffer.position();
+        int lengthCode = buffer.get(start + 1);
+        if((lengthCode & 0x80) == 0) throw new WebsocketException("Not Encrypted.");
+
+        lengthCode &= 0x7f;
+        int headerLength = lengthCode == 127 ? 14 : lengthCode == 126 ? 8 : 6;
+        if(buffer.remaining() < headerLength) return false;
+
+        long payloadLength = lengthCode;
+        if(lengthCode == 126) payloadLength = buffer.getShort(start + 2) & 0xffff;
+        if(lengthCode == 127) payloadLength = buffer.getLong(start + 2);
+        if(payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) throw new WebsocketException("Way too long frame Length.");
+
+        //checked before the payload is allocated, control frames don't count toward the message
+        int opcode = buffer.get(start) & 0xf;
+        if((opcode & 0x8) == 0) {
+            long total = (opcode == 0 ? messageLength : 0) + payloadLength;
+            if(total > maxMessageLength) throw new WebsocketException("Message too big.", 1009);
+            messageLength = total;
+        }
+
+        flags = buffer.get(start) & 0xff;
+        mask = buffer.getInt(start + headerLength - 4);
+        //a whole uncompressed binary message and a close payload are passed to the handler as they are, so only those get their own array
+        boolean handedOut = (opcode == 0x2 && (flags & 0xC0) == 0x80) || opcode == 0x8;
+        length = (int) payloadLength;
+        pooled = !handedOut && length > 0 && pool != null && length <= pool.maxSize();
+        payload = length == 0 ? emptyPayload : pooled ? pool.take(length) : new byte[length];
+        position = 0;
+        buffer.position(start + headerLength);
+        return true;
+    }
+
+    //returns true once a full frame is decoded into flags and payload
+    boolean decode(ByteBuffer buffer) throws WebsocketException {
+        if(!hasHeader() && !readHeader(buffer)) return false;
+
+        int read = Math.min(length - position, buffer.remaining());
+        buffer.get(payload, position, read);
+        unmask(payload, position, read, mask);
+        position += read;
+        return position == length;
+    }
+
+    //once the header is known the payload can skip the read buffer and go straight into the array
+    boolean readPayload(InputStream in) throws IOException, WebsocketException {
+        int read = in.read(payload, position, length - position);
+        if(read == -1) throw new WebsocketException("Reached End of InputStream");
+        unmask(payload, position, read, mask);
+        position += read;
+        return position == length;
+    }
+
+    //xors 8 bytes at a time, offset decides where in the 4 byte mask the run starts
+    static void unmask(byte[] bytes, int offset, int length, int mask) {
+        long wideMask = Long.rotateLeft((mask & 0xffffffffL) | ((long) mask << 32), (offset & 0x3) * 8);
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            longView.set(bytes, i, (long) longView.get(bytes, i) ^ wideMask);
+        }
+        for (; i < end; i++) {
+            bytes[i] ^= (byte) (mask >>> (24 - (i & 0x3) * 8));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+
+//server frames are never masked, so a header is only flags plus the 7, 16 or 64 bit length
+public class FrameEncoder {
+
+    static final int MAX_HEADER_LENGTH = 10;
+    static final int[] cachedFlags = new int[] {0x81, 0x82, 0x88, 0x89, 0x8A};
+    static final ByteBuffer[][] cachedHeaders = new ByteBuffer[cachedFlags.length][126];
+
+    static {
+        for (int i = 0; i < cachedFlags.length; i++) {
+            for (int length = 0; length < 126; length++) {
+                byte[] header = new byte[2];
+                writeHeader(header, 0, cachedFlags[i], length);
+                cachedHeaders[i][length] = ByteBuffer.wrap(header).asReadOnlyBuffer();
+            }
+        }
+    }
+
+    static int headerLength(long payloadLength) {
+        if(payloadLength < 126) return 2;
+        if(payloadLength < 65536) return 4;
+        return 10;
+    }
+
+    //returns the number of bytes written into dst
+    static int writeHeader(byte[] dst, int offset, int flags, long payloadLength) {
+        dst[offset] = (byte) flags;
+        if(payloadLength < 126) {
+            dst[offset + 1] = (byte) payloadLength;
+            return 2;
+        }
+        if(payloadLength < 65536) {
+            dst[offset + 1] = 126;
+            dst[offset + 2] = (byte) (payloadLength >> 8);
+            dst[offset + 3] = (byte) payloadLength;
+            return 4;
+        }
+        dst[offset + 1] = 127;
+        for (int i = 0; i < 8; i++) {
+            dst[offset + 2 + i] = (byte) (payloadLength >> (56 - i * 8));
+        }
+        return 10;
+    }
+
+    static ByteBuffer header(int flags, int payloadLength) {
+        if(payloadLength < 126) {
+            for (int i = 0; i < cachedFlags.length; i++) {
+                if(cachedFlags[i] == flags) return cachedHeaders[i][payloadLength].duplicate();
+            }
+        }
+        byte[] header = new byte[headerLength(payloadLength)];
+        writeHeader(header, 0, flags, payloadLength);
+        return ByteBuffer.wrap(header);
+    }
+
+    //whole frame in one array
+    static byte[] encode(int flags, byte[] payload) {
+        byte[] frame = new byte[headerLength(payload.length) + payload.length];
+        int headerLength = writeHeader(frame, 0, flags, payload.length);
+        System.arraycopy(payload, 0, frame, headerLength, payload.length);
+        return frame;
+    }
+
+    static ByteBuffer frame(int flags, byte[] payload) {
+        return ByteBuffer.wrap(encode(flags, payload));
+    }
+}
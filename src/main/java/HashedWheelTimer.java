@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//a task waiting on the wheel, cancelling only marks it and the wheel drops it when its bucket comes round
+class Timeout {
+    final Runnable task;
+    //nanoseconds since the timer started
+    final long deadline;
+    long remainingRounds;
+    volatile boolean cancelled;
+
+    public Timeout(Runnable task, long deadline) {
+        this.task = task;
+        this.deadline = deadline;
+        this.remainingRounds = 0;
+        this.cancelled = false;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+}
+
+//one thread and a ring of buckets, scheduling and cancelling cost the same however many connections are waiting
+//deadlines are rounded up to the next tick, so tasks must be short and not care about a tick of lateness
+public class HashedWheelTimer {
+    final long tickNanos;
+    final ArrayList<Timeout>[] wheel;
+    final int mask;
+    //new timeouts wait here until the worker puts them in their bucket, so only the worker touches the wheel
+    final ConcurrentLinkedQueue<Timeout> pending;
+    final Thread worker;
+    final AtomicBoolean started;
+    final long startTime;
+    volatile boolean running;
+    long tick;
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayList<Timeout>[] wheel = new ArrayList[size];
+        this.wheel = wheel;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.started = new AtomicBoolean(false);
+        this.startTime = System.nanoTime();
+        this.running = true;
+        this.tick = 0;
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0));
+        pending.add(timeout);
+        if(started.compareAndSet(false, true)) worker.start();
+        return timeout;
+    }
+
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    void run() {
+        while (running) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if(timeout.cancelled) continue;
+            //a deadline already in the past goes in the current bucket
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    void expire(ArrayList<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if(timeout.cancelled) continue;
+            if(timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                Log.error(e, "Timer task failed.");
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//common header names come back as the same constant, so most lookups compare references before falling back to ignoring case
+class HttpHeaders {
+    String[] names;
+    String[] values;
+    int size;
+
+    static final HttpHeaders EMPTY = new HttpHeaders();
+    static final String[] KNOWN = {
+            "Host", "Connection", "Upgrade", "Content-Length", "Content-Type", "Transfer-Encoding",
+            "Accept", "Accept-Encoding", "Accept-Language", "User-Agent", "Cookie", "Origin", "Referer",
+            "Cache-Control", "Pragma", "If-None-Match", "If-Modified-Since", "Range", "DNT",
+            "Sec-WebSocket-Key", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol",
+            "Sec-Fetch-Dest", "Sec-Fetch-Mode", "Sec-Fetch-Site", "Sec-Fetch-User", "Upgrade-Insecure-Requests",
+            "Sec-CH-UA", "Sec-CH-UA-Mobile", "Sec-CH-UA-Platform", "Priority"
+    };
+    static final String[][] knownByLength = new String[32][];
+
+    static {
+        for(String name : KNOWN) {
+            String[] current = knownByLength[name.length()];
+            String[] next = current == null ? new String[1] : Arrays.copyOf(current, current.length + 1);
+            next[next.length - 1] = name;
+            knownByLength[name.length()] = next;
+        }
+    }
+
+    public HttpHeaders() {
+        names = new String[16];
+        values = new String[16];
+        size = 0;
+    }
+
+    //the known constant for the name if there is one, so only unusual headers allocate a name
+    static String intern(byte[] bytes, int offset, int length) {
+        String[] candidates = length < knownByLength.length ? knownByLength[length] : null;
+        if(candidates != null) {
+            for(String candidate : candidates) {
+                if(equalsIgnoreCase(candidate, bytes, offset, length)) return candidate;
+            }
+        }
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    //only valid for token characters, which is all a header name can hold
+    static boolean equalsIgnoreCase(String name, byte[] bytes, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if((name.charAt(i) | 0x20) != (bytes[offset + i] | 0x20)) return false;
+        }
+        return true;
+    }
+
+    static boolean sameName(String a, String b) {
+        return a == b || a.equalsIgnoreCase(b);
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    //a repeated header is folded into one comma separated value like the spec allows for lists
+    void add(String name, String value) {
+        int index = indexOf(name);
+        if(index != -1) {
+            values[index] = values[index] + ", " + value;
+            return;
+        }
+        if(size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
+    }
+
+    int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if(sameName(names[i], name)) return i;
+        }
+        return -1;
+    }
+
+    public boolean containsKey(String name) {
+        return indexOf(name) != -1;
+    }
+
+    public String get(String name) {
+        int index = indexOf(name);
+        return index == -1 ? null : values[index];
+    }
+
+    //true if one of the comma separated elements is token, ignoring case and any ;parameters
+    public boolean contains(String name, String token) {
+        String value = get(name);
+        if(value == null) return false;
+        int start = 0;
+        while (start <= value.length()) {
+            int end = value.indexOf(',', start);
+            if(end == -1) end = value.length();
+            int elementEnd = value.indexOf(';', start);
+            if(elementEnd == -1 || elementEnd > end) elementEnd = end;
+
+            int from = start;
+            while (from < elementEnd && value.charAt(from) == ' ') from++;
+            int to = elementEnd;
+            while (to > from && value.charAt(to - 1) == ' ') to--;
+            if(to - from == token.length() && value.regionMatches(true, from, token, 0, token.length())) return true;
+            start = end + 1;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public String value(int index) {
+        return values[index];
+    }
+}
+
+//blocking mode input, the parser works on the buffer directly and whatever it leaves there is read first by whoever takes over the stream
+class RequestInput extends InputStream {
+    final InputStream in;
+    final ByteBuffer buffer;
+    final AtomicBoolean released;
+
+    public RequestInput(InputStream in, int size) {
+        this.in = in;
+        this.buffer = BufferPool.shared.takeBuffer(size).flip();
+        this.released = new AtomicBoolean(false);
+    }
+
+    //returns the number of bytes read or -1 at the end of the stream
+    int fill() throws IOException {
+        buffer.compact();
+        int length = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if(length > 0) buffer.position(buffer.position() + length);
+        buffer.flip();
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(buffer.hasRemaining()) return buffer.get() & 0xFF;
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(!buffer.hasRemaining()) return in.read(b, off, len);
+        int length = Math.min(len, buffer.remaining());
+        buffer.get(b, off, length);
+        return length;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffer.remaining() + in.available();
+    }
+
+    //whoever owns the stream last closes it, so that's when the buffer goes back
+    @Override
+    public void close() throws IOException {
+        in.close();
+        if(released.compareAndSet(false, true)) BufferPool.shared.give(buffer);
+    }
+}
+
+//incremental request parser, fed whatever bytes have arrived and reused for every request on a connection
+public class HttpRequestParser {
+    int state;
+    byte[] line;
+    int lineLength;
+    int headerBytes;
+
+    String method;
+    String path;
+    boolean http10;
+    final HttpHeaders headers;
+    long contentLength;
+    byte[] body;
+    int bodyPosition;
+
+    int maxRequestLine;
+    int maxHeaderBytes;
+    int maxBodyLength;
+
+    static final int REQUEST_LINE = 0;
+    static final int HEADERS = 1;
+    static final int BODY = 2;
+    static final int COMPLETE = 3;
+
+    static final byte[] NO_BODY = new byte[0];
+    static final String[] METHODS = {"GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH"};
+    static final boolean[] tokenChars = new boolean[128];
+
+    static {
+        for (int c = '!'; c <= '~'; c++) {
+            tokenChars[c] = "\"(),/:;<=>?@[\\]{}".indexOf(c) == -1;
+        }
+    }
+
+    public HttpRequestParser() {
+        this(8 * 1024, 64 * 1024, 1024 * 1024);
+    }
+
+    public HttpRequestParser(int maxRequestLine, int maxHeaderBytes, int maxBodyLength) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyLength = maxBodyLength;
+        this.line = new byte[256];
+        this.headers = new HttpHeaders();
+        reset();
+    }
+
+    void reset() {
+        state = REQUEST_LINE;
+        lineLength = 0;
+        headerBytes = 0;
+        method = null;
+        path = null;
+        http10 = false;
+        headers.clear();
+        contentLength = -1;
+        body = null;
+        bodyPosition = 0;
+    }
+
+    //nothing of a request has arrived yet, so the connection can end here cleanly
+    boolean isIdle() {
+        return state == REQUEST_LINE && lineLength == 0;
+    }
+
+    //consumes bytes up to the end of one request and returns true once it is complete
+    //bytes after it stay in src for the next request or whoever takes over the connection, src has to be a heap buffer
+    boolean parse(ByteBuffer src) throws HttpParseException {
+        while (state != COMPLETE && src.hasRemaining()) {
+            if(state == BODY) {
+                int length = Math.min(src.remaining(), body.length - bodyPosition);
+                src.get(body, bodyPosition, length);
+                bodyPosition += length;
+                if(bodyPosition == body.length) state = COMPLETE;
+                continue;
+            }
+
+            //copy up to the next LF, or everything there is
+            byte[] array = src.array();
+            int start = src.arrayOffset() + src.position();
+            int end = src.arrayOffset() + src.limit();
+            int lf = start;
+            while (lf < end && array[lf] != '\n') lf++;
+            int length = lf - start;
+            appendLine(array, start, length);
+            src.position(src.position() + length);
+            if(lf == end) continue;
+
+            src.get();
+            int lineEnd = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            if(state == REQUEST_LINE) {
+                //a stray empty line before the request is allowed
+                if(lineEnd > 0) {
+                    parseRequestLine(lineEnd);
+                    state = HEADERS;
+                }
+            } else if(lineEnd == 0) {
+                endHeaders();
+            } else {
+                parseHeader(lineEnd);
+            }
+            lineLength = 0;
+        }
+        return state == COMPLETE;
+    }
+
+    void appendLine(byte[] src, int offset, int length) throws HttpParseException {
+        int limit = state == REQUEST_LINE ? maxRequestLine : maxHeaderBytes - headerBytes;
+        if(lineLength + length > limit) {
+            if(state == REQUEST_LINE) throw new HttpParseException(414, "URI Too Long.");
+            throw new HttpParseException(431, "Headers too Large.");
+        }
+        if(lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, lineLength + length), Math.max(maxRequestLine, maxHeaderBytes)));
+        }
+        System.arraycopy(src, offset, line, lineLength, length);
+        lineLength += length;
+        if(state == HEADERS) headerBytes += length;
+    }
+
+    void parseRequestLine(int length) throws HttpParseException {
+        int methodEnd = 0;
+        while (methodEnd < length && line[methodEnd] != ' ') {
+            if(!isToken(line[methodEnd])) throw new HttpParseException(400, "This is not a HTTP Request");
+            methodEnd++;
+        }
+        int pathEnd = methodEnd + 1;
+        if(methodEnd == 0 || pathEnd >= length || line[pathEnd] != '/') throw new HttpParseException(400, "This is not a HTTP Request");
+        while (pathEnd < length && line[pathEnd] != ' ') {
+            if(line[pathEnd] < '!' || line[pathEnd] > '~') throw new HttpParseException(400, "This is not a HTTP Request");
+            pathEnd++;
+        }
+
+        int versionStart = pathEnd + 1;
+        if(versionStart + 8 != length || !HttpHeaders.equalsIgnoreCase("HTTP/1.", line, versionStart, 7)) throw new HttpParseException(400, "This is not a HTTP Request");
+        if(line[length - 1] == '0') http10 = true;
+        else if(line[length - 1] != '1') throw new HttpParseException(505, "HTTP Version Not Supported.");
+
+        method = method(methodEnd);
+        path = new String(line, methodEnd + 1, pathEnd - methodEnd - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    String method(int length) {
+        for(String known : METHODS) {
+            if(known.length() == length && HttpHeaders.equalsIgnoreCase(known, line, 0, length)) return known;
+        }
+        return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    void parseHeader(int length) throws HttpParseException {
+        //obsolete line folding is refused rather than guessed at
+        if(line[0] == ' ' || line[0] == '\t') throw new HttpParseException(400, "Headers are wrong Format.");
+        int colon = 0;
+        while (colon < length && line[colon] != ':') {
+            if(!isToken(line[colon])) throw new HttpParseException(400, "Headers are wrong Format.");
+            colon++;
+        }
+        if(colon == 0 || colon == length) throw new HttpParseException(400, "Headers are wrong Format.");
+
+        int start = colon + 1;
+        while (start < length && (line[start] == ' ' || line[start] == '\t')) start++;
+        int end = length;
+        while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) end--;
+        for (int i = start; i < end; i++) {
+            int b = line[i] & 0xFF;
+            if((b < 0x20 && b != '\t') || b == 0x7F) throw new HttpParseException(400, "Headers are wrong Format.");
+        }
+
+        String name = HttpHeaders.intern(line, 0, colon);
+        if(name == "Content-Length") {
+            long value = parseLength(start, end);
+            if(contentLength != -1 && contentLength != value) throw new HttpParseException(400, "Body is wrong Length");
+            contentLength = value;
+        }
+        headers.add(name, new String(line, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    long parseLength(int start, int end) throws HttpParseException {
+        if(start == end || end - start > 18) throw new HttpParseException(400, "Body is wrong Length");
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if(line[i] < '0' || line[i] > '9') throw new HttpParseException(400, "Body is wrong Length");
+            value = value * 10 + line[i] - '0';
+        }
+        return value;
+    }
+
+    void endHeaders() throws HttpParseException {
+        if(headers.containsKey("Transfer-Encoding")) throw new HttpParseException(501, "Transfer-Encoding not Supported.");
+        if(contentLength > maxBodyLength) throw new HttpParseException(413, "Content Too Large.");
+        if(contentLength <= 0) {
+            body = contentLength == 0 ? NO_BODY : null;
+            state = COMPLETE;
+            return;
+        }
+        body = new byte[(int) contentLength];
+        state = BODY;
+    }
+
+    static boolean isToken(byte b) {
+        return b > 0 && tokenChars[b];
+    }
+}
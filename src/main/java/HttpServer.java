@@ -1,29 +1,52 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class HttpBundle {
     ClientSocket client;
     String method;
     MatchResult path;
-    Map<String, Set<String>> headers;
+    //owned by the connection's parser and reused for its next request, so only valid until the handler returns
+    HttpHeaders headers;
     byte[] body;
+    //whether the server reads another request from the connection after this one
+    boolean keepAlive;
+    boolean detached;
+    //only for metrics, handlers that answer with something other than 200 can say so here
+    int status;
 
-    public HttpBundle(ClientSocket client, String method, MatchResult path, Map<String, Set<String>> headers, byte[] body) {
+    public HttpBundle(ClientSocket client, String method, MatchResult path, HttpHeaders headers, byte[] body, boolean keepAlive) {
         this.client = client;
         this.method = method;
         this.path = path;
         this.headers = headers;
         this.body = body;
+        this.keepAlive = keepAlive;
+        this.detached = false;
+        this.status = 200;
+    }
+
+    //closes the connection once the response is written instead of waiting for the next request
+    public void close() {
+        keepAlive = false;
+    }
+
+    //the caller takes over the connection, e.g. for an upgrade, and the server stops reading requests from it
+    public ClientSocket detach() {
+        detached = true;
+        return client;
     }
 }
 
@@ -31,161 +54,395 @@ interface HttpPathHandler {
     void run(HttpBundle bundle) throws IOException, HttpParseException;
 }
 
+//parses requests for non-blocking mode straight out of the connection's read buffer
+class HttpRequestReader implements NioHandler {
+    final HttpServer server;
+    final HttpRequestParser parser;
+    ClientSocket client;
+    int requests;
+
+    public HttpRequestReader(HttpServer server) {
+        this.server = server;
+        this.parser = new HttpRequestParser();
+        this.client = null;
+        this.requests = 0;
+    }
+
+    @Override
+    public void onRead(NioConnection connection, ByteBuffer buffer) {
+        while (buffer.hasRemaining() && connection.handler == this && !connection.closing) {
+            try {
+                if(!parser.parse(buffer)) return;
+            } catch (HttpParseException e) {
+                HttpServer.countRequest(null, e.status, 0);
+                connection.write(ByteBuffer.wrap(HttpServer.errorResponse(e.status, e.getMessage())));
+                connection.close();
+                return;
+            }
+
+            if(client == null) client = new ClientSocket(connection, InputStream.nullInputStream());
+            //pipelined requests are answered in order since each response is queued before the next is parsed
+            boolean reuse = server.httpRequest(client, parser, ++requests >= server.maxRequests);
+            parser.reset();
+            if(!reuse) return;
+        }
+    }
+
+    @Override
+    public void onDisconnect(NioConnection connection) {
+    }
+
+    @Override
+    public long idleTimeout() {
+        return server.idleTimeout;
+    }
+}
+
 public class HttpServer {
     final ServerSocket server;
+    final ServerSocketChannel serverChannel;
+    final EventLoop[] eventLoops;
+    int nextLoop;
     final ExecutorService requestHandlerPool;
     final Thread runningThread;
-    boolean isRunning;
+    volatile boolean isRunning;
     final Path resourcesPath;
-    Map<Pattern, HttpPathHandler> pathHandlers;
+    final StaticFiles staticFiles;
+    final Router router;
 
     HttpPathHandler defaultHandler;
+    //set by HttpsServer
+    TlsContext tls;
+    int idleTimeout;
+    int maxRequests;
+
+    static final LongAdder connectionsAccepted = Metrics.shared.counter("http_connections_total");
 
-    final static Pattern requestLine = Pattern.compile("^([!-~]+) (/[!-~]*) HTTP/1\\.1$");
-    final static Pattern headerLine = Pattern.compile("([!#$%&'*+\\-.^`|~\\w]+):\\s*([!-~]+([ \\t][!-~]+)*)");
-    final static Pattern anyChars = Pattern.compile(".*");
+    final static Map<String, String> fileTypes = Map.ofEntries(
+            Map.entry("html", "text/html"),
+            Map.entry("htm", "text/html"),
+            Map.entry("js", "text/javascript"),
+            Map.entry("mjs", "text/javascript"),
+            Map.entry("css", "text/css"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("txt", "text/plain"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("ogg", "audio/ogg")
+    );
 
+    //bound through a channel so accepted sockets can take FileChannel.transferTo
     public HttpServer(int port, String resPath) throws IOException {
-        this(new ServerSocket(port), resPath);
+        this(ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket(), resPath);
     }
 
     public HttpServer(ServerSocket ss, String resPath) {
+        this(ss, resPath, Executors.newFixedThreadPool(20));
+    }
+
+    //e.g. Executors.newVirtualThreadPerTaskExecutor() so slow clients don't starve a fixed pool
+    public HttpServer(int port, String resPath, ExecutorService requestHandlerPool) throws IOException {
+        this(ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket(), resPath, requestHandlerPool);
+    }
+
+    public HttpServer(ServerSocket ss, String resPath, ExecutorService requestHandlerPool) {
+        this(ss, null, new EventLoop[0], requestHandlerPool, resPath);
+    }
+
+    //non-blocking mode, one event loop per core does the parsing, upgrades and websocket io
+    public HttpServer(ServerSocketChannel channel, String resPath) throws IOException {
+        this(channel, Runtime.getRuntime().availableProcessors(), resPath);
+    }
+
+    public HttpServer(ServerSocketChannel channel, int loopCount, String resPath) throws IOException {
+        this(channel.socket(), channel, createLoops(loopCount), null, resPath);
+    }
+
+    HttpServer(ServerSocket ss, ServerSocketChannel channel, EventLoop[] loops, ExecutorService pool, String resPath) {
         server = ss;
-        requestHandlerPool = Executors.newFixedThreadPool(20);
+        serverChannel = channel;
+        eventLoops = loops;
+        nextLoop = 0;
+        requestHandlerPool = pool;
         runningThread = new Thread(this::runThread);
         isRunning = false;
 
         resourcesPath = Paths.get(resPath).normalize();
-        pathHandlers = new LinkedHashMap<>();
+        staticFiles = new StaticFiles(resourcesPath, this::getFileType);
+        router = new Router();
         defaultHandler = (bundle) -> {
             if(!bundle.method.equalsIgnoreCase("get")) throw new HttpParseException(404, "Not Found.");
-            httpSendFile(bundle.path.group(), bundle.client);
-            bundle.client.close();
+            bundle.status = httpSendFile(bundle.path.group(), bundle.client, bundle.headers);
         };
+        tls = null;
+        idleTimeout = 5000;
+        maxRequests = 1000;
+    }
+
+    static EventLoop[] createLoops(int loopCount) throws IOException {
+        EventLoop[] loops = new EventLoop[Math.max(loopCount, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+        }
+        return loops;
     }
 
+    //plain paths are matched exactly and paths ending in .* or (.*) by prefix, anything else is a regex
     public void addPath(String path, HttpPathHandler pathHandler) {
-        pathHandlers.put(Pattern.compile(path), pathHandler);
+        router.add(null, path, pathHandler);
+    }
+
+    public void addPath(String method, String path, HttpPathHandler pathHandler) {
+        router.add(method, path, pathHandler);
     }
 
     public boolean removePath(String path) {
-        Pattern pathPattern = Pattern.compile(path);
-        if(!pathHandlers.containsKey(pathPattern)) return false;
-        pathHandlers.remove(pathPattern);
-        return true;
+        return router.remove(null, path);
+    }
+
+    public boolean removePath(String method, String path) {
+        return router.remove(method, path);
     }
 
     public void setDefaultPath(HttpPathHandler handler) {
         this.defaultHandler = handler;
     }
 
-    String getFileType(String fileName) {
-        if(fileName.endsWith(".html")) return "text/html";
-        if(fileName.endsWith(".js")) return "text/javascript";
-        if(fileName.endsWith(".css")) return "text/css";
-        if(fileName.endsWith(".svg")) return "image/svg+xml";
-        return "text/plain";
+    //serves Metrics.shared in the prometheus text format
+    public void addMetricsPath(String path) {
+        addPath("GET", path, (bundle) -> {
+            byte[] body = Metrics.shared.render().getBytes(StandardCharsets.UTF_8);
+            String head = String.format("HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: %d\r\nCache-Control: no-cache\r\n\r\n", body.length);
+            bundle.client.write(ByteBuffer.wrap(head.getBytes(StandardCharsets.UTF_8)), ByteBuffer.wrap(body));
+        });
     }
 
-    public void httpSendFile(String fileName, ClientSocket client) throws HttpParseException, IOException {
-        Path filePath = Paths.get(resourcesPath.toString(), fileName).normalize();
-        if(!filePath.startsWith(resourcesPath)) throw new HttpParseException(400, "File not in Resources Directory.");
-        if(!Files.exists(filePath) || Files.isDirectory(filePath)) throw new HttpParseException(404, "File does not Exist");
-        long fileLength = filePath.toFile().length();
-        InputStream file = new FileInputStream(filePath.toFile());
-
-        client.out.write("HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.UTF_8));
-        client.out.write(String.format("Content-Type: %s\r\n", getFileType(filePath.toString())).getBytes(StandardCharsets.UTF_8));
-        client.out.write(String.format("Content-Length: %d\r\n\r\n", fileLength).getBytes(StandardCharsets.UTF_8));
-
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = file.read(buffer)) != -1) {
-            client.out.write(buffer, 0, len);
-        }
+    //route is the path a route was added with, null when nothing matched
+    static void countRequest(String route, int status, long nanos) {
+        String label = route == null ? "none" : route;
+        Metrics.shared.counter("http_requests_total", "route", label, "status", Integer.toString(status)).increment();
+        if(nanos > 0) Metrics.shared.histogram("http_request_seconds", "route", label).record(nanos);
+    }
 
-        file.close();
+    //an idle connection holds a pool thread in blocking mode, so keep the timeout short there
+    //maxRequests of 1 closes after every response like before
+    public void setKeepAlive(int idleTimeout, int maxRequests) {
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = Math.max(maxRequests, 1);
     }
 
-    void handleHttpRequest(ClientSocket client) throws IOException, HttpParseException {
-        BufferedReader inBuf = new BufferedReader(new InputStreamReader(client.in));
-        Map<String, Set<String>> headers = new HashMap<>();
+    static byte[] errorResponse(int status, String message) {
+        return String.format("HTTP/1.1 %d %s\r\nContent-Length: 0\r\n\r\n", status, message).getBytes(StandardCharsets.UTF_8);
+    }
 
-        String line = inBuf.readLine();
-        Matcher requestMatcher = requestLine.matcher(line);
-        if(!requestMatcher.matches()) throw new HttpParseException(400, "This is not a HTTP Request");
+    //1.0 clients have to ask for keep-alive, 1.1 clients have to ask for close
+    static boolean keepAlive(HttpRequestParser request) {
+        if(request.http10) return request.headers.contains("Connection", "keep-alive");
+        return !request.headers.contains("Connection", "close");
+    }
 
-        //System.out.println("Got Request!");
-        System.out.println(line);
+    String getFileType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if(dot == -1) return "text/plain";
+        return fileTypes.getOrDefault(fileName.substring(dot + 1).toLowerCase(), "text/plain");
+    }
 
-        String method = requestMatcher.group(1);
-        String path = requestMatcher.group(2);
+    public int httpSendFile(String fileName, ClientSocket client) throws HttpParseException, IOException {
+        return httpSendFile(fileName, client, HttpHeaders.EMPTY);
+    }
 
-        while (!(line = inBuf.readLine()).isEmpty()) {
-            Matcher headerMatcher = headerLine.matcher(line);
-            if(!headerMatcher.matches()) throw new HttpParseException(400, "Headers are wrong Format.");
-            headers.put(headerMatcher.group(1), new HashSet<>(List.of(headerMatcher.group(2).split(", "))));
-        }
+    //request headers are only used for If-None-Match and If-Modified-Since, returns the status that was sent
+    public int httpSendFile(String fileName, ClientSocket client, HttpHeaders headers) throws HttpParseException, IOException {
+        Path filePath = Paths.get(resourcesPath.toString(), fileName).normalize();
+        if(!filePath.startsWith(resourcesPath)) throw new HttpParseException(400, "File not in Resources Directory.");
+        return staticFiles.send(filePath, client, headers);
+    }
 
-        //System.out.println("Parsed Headers!");
+    //dispatches a parsed request and returns the bundle it was handled with
+    HttpBundle handleHttpRequest(ClientSocket client, HttpRequestParser request, boolean lastRequest) throws IOException, HttpParseException {
+        Log.debug("%s %s", request.method, request.path);
 
-        byte[] body = null;
-        if(headers.containsKey("Content-Length")) {
-            int length = Integer.parseInt(headers.get("Content-Length").toArray(String[]::new)[0]);
-            body = new byte[length];
-            int readLength = client.in.read(body);
-            if(readLength == -1) throw new HttpParseException(400, "Body is wrong Length");
-            //System.out.println("Parsed Body!");
-        }
-        for(Pattern pathPattern : pathHandlers.keySet()) {
-            Matcher pathMatch = pathPattern.matcher(path);
-            if(pathMatch.matches()) {
-                HttpBundle bundle = new HttpBundle(client, method, pathMatch, headers, body);
-                pathHandlers.get(pathPattern).run(bundle);
-                return;
-            }
+        long start = System.nanoTime();
+        String method = request.method;
+        String path = request.path;
+        boolean keepAlive = !lastRequest && keepAlive(request);
+        RouteMatch route = router.route(method, path);
+        if(route != null) {
+            HttpBundle bundle = new HttpBundle(client, method, route.result(), request.headers, request.body, keepAlive);
+            return count(route.route, runHandler(route.handler, bundle), start);
         }
 
         if(defaultHandler != null) {
-            Matcher allMatch = anyChars.matcher(path);
-            if(!allMatch.matches()) throw new HttpParseException(404, "Bad Path");
-            HttpBundle bundle = new HttpBundle(client, method, allMatch, headers, body);
-            defaultHandler.run(bundle);
+            HttpBundle bundle = new HttpBundle(client, method, new RouteMatch(defaultHandler, null, path, -1, null), request.headers, request.body, keepAlive);
+            return count("default", runHandler(defaultHandler, bundle), start);
         }
 
-        throw new HttpParseException(404, String.format("Bad Path '%s'", path));
+        //the request was read completely, so the connection can still be reused
+        client.out.write(errorResponse(404, "Bad Path"));
+        HttpBundle bundle = new HttpBundle(client, method, null, request.headers, request.body, keepAlive);
+        bundle.status = 404;
+        return count(null, bundle, start);
     }
 
-    void httpThread(ClientSocket client) {
+    static HttpBundle count(String route, HttpBundle bundle, long start) {
+        if(bundle.detached) bundle.status = 101;
+        countRequest(route, bundle.status, System.nanoTime() - start);
+        return bundle;
+    }
+
+    //a handler error comes after the whole request was read, so it doesn't cost the connection
+    HttpBundle runHandler(HttpPathHandler handler, HttpBundle bundle) throws IOException {
+        try {
+            handler.run(bundle);
+        } catch (HttpParseException e) {
+            bundle.detached = false;
+            bundle.status = e.status;
+            bundle.client.out.write(errorResponse(e.status, e.getMessage()));
+        }
+        return bundle;
+    }
+
+    //handles one parsed request and closes the connection unless it can take another, returns true if it can
+    boolean httpRequest(ClientSocket client, HttpRequestParser request, boolean lastRequest) {
         try {
             try {
-                handleHttpRequest(client);
+                HttpBundle bundle = handleHttpRequest(client, request, lastRequest);
+                //a handler that closed the socket itself is done with it too
+                if(bundle.detached || client.isClosed()) return false;
+                if(bundle.keepAlive) return true;
             } catch (HttpParseException e) {
-                client.out.write(String.format("HTTP/1.1 %d %s\r\n\r\n", e.status, e.getMessage()).getBytes(StandardCharsets.UTF_8));
-                client.close();
+                client.out.write(errorResponse(e.status, e.getMessage()));
             }
-        }catch (IOException e) {
-            e.printStackTrace();
+            client.close();
+        } catch (IOException e) {
+            Log.error(e, "Request failed.");
+            closeQuietly(client);
         }
+        return false;
+    }
+
+    static void closeQuietly(ClientSocket client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {}
+    }
+
+    //blocking mode, serves requests off one connection until it closes, times out or hits maxRequests
+    void httpThread(ClientSocket client) {
+        HttpRequestParser parser = new HttpRequestParser();
+        int requests = 0;
+        try {
+            //whatever is read past a request stays in the buffer for the next one or an upgraded websocket
+            RequestInput input = new RequestInput(client.in, 8 * 1024);
+            client.in = input;
+            client.socket.setSoTimeout(idleTimeout);
+            while (true) {
+                try {
+                    while (!parser.parse(input.buffer)) {
+                        if(input.fill() != -1) continue;
+                        if(!parser.isIdle()) throw new HttpParseException(400, "Request ended early.");
+                        client.close();
+                        return;
+                    }
+                } catch (HttpParseException e) {
+                    //the stream position is unknown after a bad request, so it can't be reused
+                    countRequest(null, e.status, 0);
+                    client.out.write(errorResponse(e.status, e.getMessage()));
+                    client.close();
+                    return;
+                }
+                if(!httpRequest(client, parser, ++requests >= maxRequests)) return;
+                parser.reset();
+            }
+        } catch (SocketTimeoutException e) {
+            //idle keep-alive connection
+            closeQuietly(client);
+        } catch (IOException e) {
+            Log.error(e, "Connection failed.");
+            closeQuietly(client);
+        }
+    }
+
+    void acceptChannel() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        connectionsAccepted.increment();
+        eventLoops[nextLoop].register(channel, new HttpRequestReader(this), tls);
+        nextLoop = (nextLoop + 1) % eventLoops.length;
     }
 
     void runThread() {
         while (isRunning) {
             try {
-                ClientSocket client = new ClientSocket(server.accept());
+                if(serverChannel != null) {
+                    acceptChannel();
+                    continue;
+                }
+                //the handshake happens on the first read, in the handler thread
+                ClientSocket client = new ClientSocket(tls == null ? server.accept() : tls.wrap(server.accept()));
+                connectionsAccepted.increment();
                 requestHandlerPool.execute(() -> httpThread(client));
             } catch (IOException e) {
-                e.printStackTrace();
+                //closing the listener is how stopAccepting wakes this thread up
+                if(!isRunning) return;
+                Log.error(e, "Accept failed.");
             }
         }
     }
 
     public void run() {
         isRunning = true;
+        if(staticFiles.watchThread == null) {
+            try {
+                staticFiles.watch();
+            } catch (IOException e) {
+                //without change notifications a cached file could go stale
+                Log.error(e, "Can't watch %s, file caching is off.", resourcesPath);
+                staticFiles.setCacheLimits(0, 0);
+            }
+        }
+        for(EventLoop loop : eventLoops) {
+            loop.run();
+        }
         if(!runningThread.isAlive()) runningThread.start();
     }
 
+    //connections already open carry on, e.g. websockets while they're drained
+    public void stopAccepting() {
+        isRunning = false;
+        try {
+            //the same listener in both modes, the socket of a channel closes the channel
+            server.close();
+        } catch (IOException e) {
+            Log.error(e, "Couldn't close the listener.");
+        }
+        //a channel closed while blocked in accept only lets go of the port once accept returns
+        if(Thread.currentThread() == runningThread) return;
+        try {
+            runningThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //closes whatever is still open on the event loops, blocking handlers finish the request they're on
     public void stop() {
-        if(runningThread.isAlive()) isRunning = false;
+        stopAccepting();
+        for(EventLoop loop : eventLoops) {
+            loop.stop();
+        }
+        if(requestHandlerPool != null) requestHandlerPool.shutdown();
+        if(staticFiles.watchThread != null) staticFiles.watchThread.interrupt();
     }
 }
@@ -1,27 +1,239 @@
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyStore;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
-public class HttpsServer extends HttpServer {
+//the current SSLContext plus what every engine and socket made from it should share
+//reloading swaps in a new context for new connections, ones already open keep the old one
+class TlsContext {
+    final Path keyPath;
+    //asked again for every load, what it returns is zeroed once the keystore is open
+    final Supplier<char[]> keySecret;
+    //a password given as a string is kept for reloads, zeroed on stop, null when it comes from a source
+    char[] keptSecret;
+    //delegated handshake work for non-blocking connections, signatures are what makes handshakes expensive
+    final ExecutorService handshakeTasks;
+    volatile SSLContext context;
+    int sessionCacheSize;
+    int sessionTimeout;
+    //tls 1.3 first, it saves a round trip on full handshakes and resumes with a ticket
+    String[] protocols;
+    long loadedModified;
+    long loadedSize;
+    long reloadInterval;
+    Thread watchThread;
+
+    public TlsContext(String keyPath, String keySecret) throws Exception {
+        this(keyPath, keySecret.toCharArray());
+    }
+
+    TlsContext(String keyPath, char[] keySecret) throws Exception {
+        this(keyPath, keySecret::clone);
+        this.keptSecret = keySecret;
+    }
+
+    //e.g. secretFile for a password mounted next to the keystore, a rotated pair is then picked up together
+    public TlsContext(String keyPath, Supplier<char[]> keySecret) throws Exception {
+        this.keyPath = Path.of(keyPath);
+        this.keySecret = keySecret;
+        this.keptSecret = null;
+        this.handshakeTasks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), Thread.ofPlatform().name("tls-handshake-", 0).daemon().factory());
+        //the jdk defaults, stateless tickets are on by default too (jdk.tls.server.enableSessionTicketExtension)
+        this.sessionCacheSize = 20480;
+        this.sessionTimeout = 86400;
+        this.protocols = new String[] {"TLSv1.3", "TLSv1.2"};
+        this.reloadInterval = 10000;
+        this.watchThread = null;
+        load();
+    }
 
-    static ServerSocket getServerSocket(InetSocketAddress address, String keyPath, String keySecret) throws Exception {
-        char[] keyStorePass = keySecret.toCharArray();
+    synchronized void load() throws Exception {
+        long modified = Files.getLastModifiedTime(keyPath).toMillis();
+        long size = Files.size(keyPath);
+        char[] secret = keySecret.get();
         KeyStore keyStore = KeyStore.getInstance("JKS");
-        keyStore.load(new FileInputStream(Path.of(keyPath).toFile()), keyStorePass);
         KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-        keyManagerFactory.init(keyStore, keyStorePass);
+        try (FileInputStream in = new FileInputStream(keyPath.toFile())) {
+            keyStore.load(in, secret);
+            keyManagerFactory.init(keyStore, secret);
+        } finally {
+            Arrays.fill(secret, '0');
+        }
         SSLContext sslContext = SSLContext.getInstance("TLS");
         sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-        ServerSocket ss = sslContext.getServerSocketFactory().createServerSocket(address.getPort(), 0, address.getAddress());
-        Arrays.fill(keyStorePass, '0');
-        return ss;
+        setSessionCache(sslContext.getServerSessionContext());
+        context = sslContext;
+        loadedModified = modified;
+        loadedSize = size;
+    }
+
+    synchronized void setSessionCache(int size, int timeoutSeconds) {
+        sessionCacheSize = size;
+        sessionTimeout = timeoutSeconds;
+        setSessionCache(context.getServerSessionContext());
+    }
+
+    void setSessionCache(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+    }
+
+    SSLParameters parameters(SSLContext sslContext) {
+        SSLParameters params = sslContext.getDefaultSSLParameters();
+        params.setProtocols(Arrays.stream(protocols).filter(p -> Arrays.asList(params.getProtocols()).contains(p)).toArray(String[]::new));
+        params.setUseCipherSuitesOrder(true);
+        return params;
+    }
+
+    SSLEngine newEngine() {
+        SSLContext sslContext = context;
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(parameters(sslContext));
+        return engine;
+    }
+
+    //server mode over an accepted plain socket, the handshake starts with the first read or write
+    Socket wrap(Socket socket) throws IOException {
+        SSLContext sslContext = context;
+        SSLSocket ssl = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, null, true);
+        ssl.setSSLParameters(parameters(sslContext));
+        long started = System.nanoTime();
+        ssl.addHandshakeCompletedListener(event -> TlsTransport.countHandshake(event.getSession(), started));
+        return ssl;
+    }
+
+    //a new context also means a new session cache and ticket keys, so clients do one full handshake after a reload
+    boolean reloadIfChanged() {
+        try {
+            if(Files.getLastModifiedTime(keyPath).toMillis() == loadedModified && Files.size(keyPath) == loadedSize) return false;
+            load();
+            Log.info("Reloaded keystore %s.", keyPath);
+            return true;
+        } catch (Exception e) {
+            //half written or wrong password, keep serving with the old keys and try again next time
+            Log.error(e, "Couldn't reload keystore %s.", keyPath);
+            return false;
+        }
+    }
+
+    //polls rather than using a WatchService so replaced symlinks (mounted secrets) are seen too
+    void watch() {
+        if(watchThread != null || reloadInterval <= 0) return;
+        watchThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(reloadInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reloadIfChanged();
+            }
+        }, "tls-keystore-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    //reads the password from a file each time, a trailing newline isn't part of it
+    static Supplier<char[]> secretFile(Path path) {
+        return () -> {
+            try {
+                byte[] bytes = Files.readAllBytes(path);
+                int length = bytes.length;
+                while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) length--;
+                CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes, 0, length));
+                Arrays.fill(bytes, (byte) 0);
+                char[] secret = new char[chars.remaining()];
+                chars.get(secret);
+                Arrays.fill(chars.array(), '0');
+                return secret;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    //connections still open keep their engines, only new handshake work is refused
+    synchronized void stop() {
+        if(watchThread != null) watchThread.interrupt();
+        watchThread = null;
+        handshakeTasks.shutdown();
+        if(keptSecret != null) Arrays.fill(keptSecret, '0');
     }
+}
+
+public class HttpsServer extends HttpServer {
+
     public HttpsServer(int port, String resPath, String keyPath, String keySecret) throws Exception {
-        super(getServerSocket(new InetSocketAddress(port), keyPath, keySecret), resPath);
+        this(new TlsContext(keyPath, keySecret), new ServerSocket(port), resPath);
+    }
+
+    //non-blocking mode, handshakes run on the event loops and the handshake pool instead of holding a handler thread
+    public HttpsServer(ServerSocketChannel channel, String resPath, String keyPath, String keySecret) throws Exception {
+        this(new TlsContext(keyPath, keySecret), channel, resPath);
+    }
+
+    //the password is asked for again on every reload instead of being kept, see TlsContext.secretFile
+    public HttpsServer(int port, String resPath, String keyPath, Supplier<char[]> keySecret) throws Exception {
+        this(new TlsContext(keyPath, keySecret), new ServerSocket(port), resPath);
+    }
+
+    public HttpsServer(ServerSocketChannel channel, String resPath, String keyPath, Supplier<char[]> keySecret) throws Exception {
+        this(new TlsContext(keyPath, keySecret), channel, resPath);
+    }
+
+    HttpsServer(TlsContext tls, ServerSocket ss, String resPath) {
+        super(ss, resPath);
+        this.tls = tls;
+    }
+
+    HttpsServer(TlsContext tls, ServerSocketChannel channel, String resPath) throws IOException {
+        super(channel, resPath);
+        this.tls = tls;
+    }
+
+    public void setSessionCache(int size, int timeoutSeconds) {
+        tls.setSessionCache(size, timeoutSeconds);
+    }
+
+    //how often the keystore file is checked for changes, 0 turns reloading off
+    public void setKeyReloadInterval(long millis) {
+        tls.reloadInterval = millis;
+    }
+
+    public void setProtocols(String... protocols) {
+        tls.protocols = protocols;
+    }
+
+    @Override
+    public void run() {
+        tls.watch();
+        super.run();
+    }
+
+    //the event loops go first so none of them hands the handshake pool more work once it's shut down
+    @Override
+    public void stop() {
+        super.stop();
+        tls.stop();
     }
 }
@@ -0,0 +1,136 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+//one line waiting to be written, formatting is left to the log thread
+class LogRecord {
+    final int level;
+    final long time;
+    final String thread;
+    final Throwable error;
+    final String format;
+    final Object[] args;
+
+    public LogRecord(int level, Throwable error, String format, Object[] args) {
+        this.level = level;
+        this.time = System.currentTimeMillis();
+        this.thread = Thread.currentThread().getName();
+        this.error = error;
+        this.format = format;
+        this.args = args;
+    }
+}
+
+//level gated logging off the hot path, callers only queue a record and a daemon thread formats and prints in batches
+//records are dropped rather than blocking when the queue is full, the count of dropped ones is printed once there's room
+public class Log {
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    static final int OFF = 4;
+    static final String[] NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+
+    //-Dlog.level=debug|info|warn|error|off
+    static volatile int level = parseLevel(System.getProperty("log.level", "info"));
+    static final ArrayBlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(16 * 1024);
+    static final LongAdder dropped = new LongAdder();
+    static final Thread writer = new Thread(Log::run, "log-writer");
+    static final ZoneId zone = ZoneId.systemDefault();
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        //whatever is still queued at exit gets printed
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    static int parseLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if(NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        return INFO;
+    }
+
+    static void setLevel(int level) {
+        Log.level = level;
+    }
+
+    static boolean enabled(int level) {
+        return level >= Log.level;
+    }
+
+    static void debug(String format, Object... args) {
+        log(DEBUG, null, format, args);
+    }
+
+    static void info(String format, Object... args) {
+        log(INFO, null, format, args);
+    }
+
+    static void warn(String format, Object... args) {
+        log(WARN, null, format, args);
+    }
+
+    static void error(Throwable error, String format, Object... args) {
+        log(ERROR, error, format, args);
+    }
+
+    static void log(int level, Throwable error, String format, Object... args) {
+        if(level < Log.level) return;
+        if(!queue.offer(new LogRecord(level, error, format, args))) dropped.increment();
+    }
+
+    static void run() {
+        ArrayList<LogRecord> batch = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            write(batch, out);
+        }
+    }
+
+    static synchronized void flush() {
+        ArrayList<LogRecord> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        write(batch, new StringBuilder());
+    }
+
+    static synchronized void write(ArrayList<LogRecord> batch, StringBuilder out) {
+        long lost = dropped.sumThenReset();
+        if(lost > 0) out.append(String.format("%s WARN  [log-writer] %d log records dropped.%n", LocalTime.now(), lost));
+        for(LogRecord record : batch) {
+            format(record, out);
+        }
+        batch.clear();
+        if(out.isEmpty()) return;
+        System.out.print(out);
+        System.out.flush();
+        out.setLength(0);
+    }
+
+    static void format(LogRecord record, StringBuilder out) {
+        String message;
+        try {
+            message = record.args.length == 0 ? record.format : String.format(record.format, record.args);
+        } catch (RuntimeException e) {
+            message = record.format;
+        }
+        out.append(String.format("%s %-5s [%s] %s%n", LocalTime.ofInstant(Instant.ofEpochMilli(record.time), zone), NAMES[record.level], record.thread, message));
+        if(record.error != null) {
+            StringWriter trace = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+}
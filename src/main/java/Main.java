@@ -1,25 +1,83 @@
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        System.out.println(new File(".").getAbsoluteFile());
-        HttpServer server = new HttpServer(80,"./resources");
-        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory());
+        Log.info("Serving from %s", new File(".").getAbsoluteFile());
+        List<String> options = List.of(args);
+        boolean virtual = options.contains("--virtual");
+        int port = options.contains("--port") ? Integer.parseInt(options.get(options.indexOf("--port") + 1)) : 80;
+        HttpServer server = options.contains("--nio")
+                ? new HttpServer(ServerSocketChannel.open().bind(new InetSocketAddress(port)), "./resources")
+                : virtual
+                ? new HttpServer(port, "./resources", Executors.newVirtualThreadPerTaskExecutor())
+                : new HttpServer(port,"./resources");
+        WebSocketServer wss = virtual
+                ? new WebSocketServer(new RtcWSCFactory(), Thread.ofVirtual().name("ws-reader-", 0).factory())
+                : new WebSocketServer(new RtcWSCFactory());
 
-        server.addPath("/", (bundle) -> {
-            if(!bundle.method.equalsIgnoreCase("get")) throw new HttpParseException(404, "Not Found.");
-            server.httpSendFile("index.html", bundle.client);
+        //--dispatch <stripes> runs handlers off the reading threads, each connection keeps its order on one stripe
+        int dispatch = options.indexOf("--dispatch");
+        if(dispatch != -1) wss.setDispatch(Integer.parseInt(options.get(dispatch + 1)), 256);
+
+        server.addPath("GET", "/", (bundle) -> {
+            bundle.status = server.httpSendFile("index.html", bundle.client, bundle.headers);
             //System.out.println("Sent Index File");
-            bundle.client.close();
         });
 
-        server.addPath("/upgrade", (bundle) -> {
-            if(!bundle.method.equalsIgnoreCase("get")) throw new HttpParseException(404, "Not Found.");
-            wss.handleUpgrade(bundle.client, bundle.headers);
+        server.addPath("GET", "/upgrade", (bundle) -> {
+            wss.handleUpgrade(bundle.detach(), bundle.headers);
             //System.out.println("Upgraded new WebSocket.");
         });
 
+        server.addMetricsPath("/metrics");
+
+        //--cluster <this node>:<mesh port> <node>=<host>:<port>,... e.g. --cluster a:7001 b=localhost:7002,c=localhost:7003
+        //--cluster-secret <file> holds the secret every node shares, nodes that can't prove they know it are refused
+        int cluster = options.indexOf("--cluster");
+        int clusterSecret = options.indexOf("--cluster-secret");
+        if(cluster != -1 && clusterSecret == -1) throw new IllegalArgumentException("--cluster needs --cluster-secret <file>.");
+        if(cluster != -1) {
+            String nodes = cluster + 2 < options.size() && !options.get(cluster + 2).startsWith("--") ? options.get(cluster + 2) : "";
+            wss.joinCluster(cluster(options.get(cluster + 1), nodes, TcpMesh.secretFile(Path.of(options.get(clusterSecret + 1)))));
+        }
+
+        //a deploy's SIGTERM drains instead of dropping everyone at once
+        //--drain <closes per second> <timeout seconds>, e.g. --drain 200 20
+        int drain = options.indexOf("--drain");
+        int closesPerSecond = drain != -1 ? Integer.parseInt(options.get(drain + 1)) : 200;
+        long drainTimeout = drain != -1 ? Long.parseLong(options.get(drain + 2)) : 20;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stopAccepting();
+            try {
+                wss.drain(closesPerSecond, TimeUnit.SECONDS.toMillis(drainTimeout));
+            } catch (InterruptedException e) {
+                Log.warn("Drain interrupted.");
+            }
+            server.stop();
+            Log.flush();
+        }, "drain"));
+
         server.run();
     }
+
+    static Cluster cluster(String self, String nodes, byte[] secret) {
+        String[] name = self.split(":");
+        Map<String, InetSocketAddress> peers = new HashMap<>();
+        for(String node : nodes.split(",")) {
+            if(node.isBlank()) continue;
+            String[] entry = node.split("=");
+            int colon = entry[1].lastIndexOf(':');
+            peers.put(entry[0], new InetSocketAddress(entry[1].substring(0, colon), Integer.parseInt(entry[1].substring(colon + 1))));
+        }
+        return new Cluster(name[0], new TcpMesh(name[0], Integer.parseInt(name[1]), peers, secret));
+    }
 }
@@ -0,0 +1,57 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//idle reassembly buffers, ones that grew past maxRetained are left to the gc so a single huge message doesn't stay pinned
+class MessageBufferPool {
+    final ConcurrentLinkedQueue<MessageBuffer> buffers;
+    final AtomicInteger idle;
+    final int maxIdle;
+    final int initialCapacity;
+    final int maxRetained;
+
+    public MessageBufferPool(int maxIdle, int initialCapacity, int maxRetained) {
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.idle = new AtomicInteger();
+        this.maxIdle = maxIdle;
+        this.initialCapacity = initialCapacity;
+        this.maxRetained = maxRetained;
+    }
+
+    MessageBuffer borrow() {
+        MessageBuffer buffer = buffers.poll();
+        if(buffer == null) return new MessageBuffer(initialCapacity);
+        idle.decrementAndGet();
+        return buffer;
+    }
+
+    void release(MessageBuffer buffer) {
+        buffer.length = 0;
+        if(buffer.bytes.length > maxRetained) return;
+        if(idle.incrementAndGet() <= maxIdle) {
+            buffers.add(buffer);
+            return;
+        }
+        idle.decrementAndGet();
+    }
+}
+
+//growable array the fragments of one message are appended to
+public class MessageBuffer {
+    byte[] bytes;
+    int length;
+
+    public MessageBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+        this.length = 0;
+    }
+
+    void append(byte[] chunk, int offset, int length) {
+        int needed = this.length + length;
+        if(needed > bytes.length) {
+            bytes = Arrays.copyOf(bytes, (int) Math.min(Math.max(bytes.length * 2L, needed), FrameDecoder.MAX_PAYLOAD_LENGTH));
+        }
+        System.arraycopy(chunk, offset, bytes, this.length, length);
+        this.length = needed;
+    }
+}
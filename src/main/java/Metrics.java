@@ -0,0 +1,169 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//log-linear buckets like HdrHistogram, every power of two is split in SUB_BUCKETS equal steps
+//so a quantile is off by at most one step, about 1/8 of its value, and recording is a couple of atomic adds
+class Histogram {
+    final AtomicLongArray counts;
+    final LongAdder count;
+    final LongAdder sum;
+    final LongAccumulator max;
+
+    static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    public Histogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //largest value that lands in the bucket
+    static long upperBound(int index) {
+        if(index + 1 >= BUCKETS) return Long.MAX_VALUE;
+        int block = (index + 1) / SUB_BUCKETS;
+        int sub = (index + 1) % SUB_BUCKETS;
+        if(block == 0) return sub - 1;
+        int exponent = block + SUB_BITS - 1;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BITS)) - 1;
+    }
+
+    void record(long value) {
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    //walks a copy so concurrent records can't push the rank past the end
+    long[] quantiles(double... quantiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] values = new long[quantiles.length];
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = (long) Math.ceil(quantiles[q] * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && total > 0; i++) {
+                seen += snapshot[i];
+                if(seen < rank || snapshot[i] == 0) continue;
+                values[q] = Math.min(upperBound(i), max.get());
+                break;
+            }
+        }
+        return values;
+    }
+}
+
+//process wide registry, counters are LongAdders so contended increments don't bounce one cache line between cores
+//hot paths keep the adder they got instead of looking it up every time, /metrics renders it in the prometheus text format
+public class Metrics {
+    final Map<String, LongAdder> counters;
+    final Map<String, Histogram> histograms;
+    final Map<String, LongSupplier> gauges;
+
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    static final Metrics shared = new Metrics();
+
+    public Metrics() {
+        counters = new ConcurrentHashMap<>();
+        histograms = new ConcurrentHashMap<>();
+        gauges = new ConcurrentHashMap<>();
+    }
+
+    //labels come in name, value pairs
+    static String key(String name, String... labels) {
+        if(labels.length == 0) return name;
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if(i > 0) key.append(',');
+            key.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if(c == '\\' || c == '"') key.append('\\');
+                if(c == '\n') {
+                    key.append("\\n");
+                    continue;
+                }
+                key.append(c);
+            }
+            key.append('"');
+        }
+        return key.append('}').toString();
+    }
+
+    LongAdder counter(String name, String... labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new LongAdder());
+    }
+
+    //histograms are recorded in nanoseconds and rendered in seconds
+    Histogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Histogram());
+    }
+
+    //read when rendered, registering the same name again replaces it
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    static String family(String key) {
+        int brace = key.indexOf('{');
+        return brace == -1 ? key : key.substring(0, brace);
+    }
+
+    //adds a label to a key that may already have some
+    static String withLabel(String key, String label) {
+        int brace = key.indexOf('{');
+        if(brace == -1) return key + "{" + label + "}";
+        return key.substring(0, brace + 1) + label + "," + key.substring(brace + 1);
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder();
+        String lastFamily = null;
+        for(Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            String family = family(counter.getKey());
+            if(!family.equals(lastFamily)) out.append("# TYPE ").append(family).append(" counter\n");
+            lastFamily = family;
+            out.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for(Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            out.append("# TYPE ").append(family(gauge.getKey())).append(" gauge\n");
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        lastFamily = null;
+        for(Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String key = entry.getKey();
+            String family = family(key);
+            Histogram histogram = entry.getValue();
+            if(!family.equals(lastFamily)) out.append("# TYPE ").append(family).append(" summary\n");
+            lastFamily = family;
+            long[] values = histogram.quantiles(QUANTILES);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.append(withLabel(key, "quantile=\"" + QUANTILES[i] + "\"")).append(' ').append(values[i] / 1e9).append('\n');
+            }
+            String labels = key.substring(family.length());
+            out.append(family).append("_sum").append(labels).append(' ').append(histogram.sum.sum() / 1e9).append('\n');
+            out.append(family).append("_count").append(labels).append(' ').append(histogram.count.sum()).append('\n');
+        }
+        return out.toString();
+    }
+}
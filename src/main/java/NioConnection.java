@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+interface NioHandler {
+    //must consume everything it can from buffer, anything left over is kept for the next read
+    void onRead(NioConnection connection, ByteBuffer buffer) throws IOException;
+    void onDisconnect(NioConnection connection);
+
+    //milliseconds without reads or writes before the event loop closes the connection, 0 for never
+    default long idleTimeout() {
+        return 0;
+    }
+}
+
+public class NioConnection {
+    final EventLoop loop;
+    final SocketChannel channel;
+    SelectionKey key;
+    volatile NioHandler handler;
+    //null for plain tcp
+    final TlsTransport tls;
+
+    //from the shared pool, given back when the connection closes
+    ByteBuffer readBuffer;
+    final OutboundQueue outbound;
+    final AtomicBoolean flushScheduled;
+    final ByteBuffer[] gatherCache;
+    volatile boolean closing;
+    boolean closed;
+    //the handler can't take more yet, whatever was read stays in readBuffer until it resumes
+    boolean readsPaused;
+    long lastActivity;
+
+    static final int READ_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_GATHER = 64;
+
+    public NioConnection(EventLoop loop, SocketChannel channel, NioHandler handler) {
+        this(loop, channel, handler, null);
+    }
+
+    public NioConnection(EventLoop loop, SocketChannel channel, NioHandler handler, TlsContext tlsContext) {
+        this.loop = loop;
+        this.channel = channel;
+        this.handler = handler;
+        tls = tlsContext == null ? null : new TlsTransport(tlsContext.newEngine(), tlsContext.handshakeTasks);
+        //unwrap won't start on a record unless the whole plaintext fits
+        readBuffer = BufferPool.shared.takeBuffer(tls == null ? READ_BUFFER_SIZE : Math.max(READ_BUFFER_SIZE, tls.applicationBufferSize()));
+        outbound = new OutboundQueue();
+        flushScheduled = new AtomicBoolean(false);
+        gatherCache = new ByteBuffer[MAX_GATHER];
+        closing = false;
+        closed = false;
+        readsPaused = false;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    void setHandler(NioHandler handler) {
+        this.handler = handler;
+    }
+
+    //safe to call from any thread, the actual write happens on the event loop
+    void write(ByteBuffer... frame) {
+        if(closing) return;
+        outbound.add(frame);
+        scheduleFlush();
+    }
+
+    void scheduleFlush() {
+        if(flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    void flush() {
+        flushScheduled.set(false);
+        if(closed) return;
+
+        //with tls, frames wait in the queue until the handshake is done so only unsent ciphertext counts as pending
+        boolean pending;
+        try {
+            pending = tls == null ? !writeOutbound() : !tls.flush(this);
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+
+        if(!pending && outbound.isEmpty() && closing) {
+            if(tls != null) tls.closeOutbound(this);
+            closeNow();
+            return;
+        }
+        if(key.isValid()) key.interestOps(pending ? readOps() | SelectionKey.OP_WRITE : readOps());
+    }
+
+    //false if the socket buffer filled up before the queue was empty
+    boolean writeOutbound() throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = outbound.gather(gatherCache);
+            long written = channel.write(gatherCache, 0, count);
+            Arrays.fill(gatherCache, 0, count, null);
+            outbound.written(written);
+            if(written > 0) lastActivity = System.currentTimeMillis();
+
+            //socket buffer is full, wait until the selector says we can write again
+            if(!outbound.completed()) return false;
+        }
+        return true;
+    }
+
+    //reads are off while tls handshake tasks run or the handler has paused them
+    int readOps() {
+        return readsPaused || tls != null && tls.tasksRunning ? 0 : SelectionKey.OP_READ;
+    }
+
+    //only from the handler's onRead, on the loop
+    void pauseReads() {
+        readsPaused = true;
+        if(key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    //safe from any thread, hands the handler what was left over before reading anything new
+    void resumeReads() {
+        if(!loop.inLoop()) {
+            loop.execute(this::resumeReads);
+            return;
+        }
+        if(closed || !readsPaused) return;
+        readsPaused = false;
+        try {
+            deliver();
+            if(tls != null && !readsPaused && !closed) tls.unwrap(this);
+        } catch (IOException e) {
+            closeNow();
+            return;
+        } catch (RuntimeException e) {
+            Log.error(e, "Connection handler failed.");
+            closeNow();
+            return;
+        }
+        if(!closed && key.isValid()) key.interestOps(key.interestOps() | readOps());
+    }
+
+    void handleRead() {
+        if(closed) return;
+        try {
+            int length = channel.read(tls == null ? readBuffer : tls.netIn);
+            if(length == -1) {
+                closeNow();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+
+            if(tls != null) {
+                tls.unwrap(this);
+                return;
+            }
+            deliver();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    //hands everything read so far to the handler, what it leaves stays for the next read
+    void deliver() throws IOException {
+        readBuffer.flip();
+        NioHandler current;
+        do {
+            //an upgrade can swap the handler mid buffer, the rest belongs to the new one
+            current = handler;
+            current.onRead(this, readBuffer);
+        } while (handler != current && readBuffer.hasRemaining() && !closed);
+        if(!closed) readBuffer.compact();
+    }
+
+    void growReadBuffer(int size) {
+        ByteBuffer bigger = BufferPool.shared.takeBuffer(size);
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        BufferPool.shared.give(readBuffer);
+        readBuffer = bigger;
+    }
+
+    boolean isIdle(long now) {
+        long timeout = handler.idleTimeout();
+        return timeout > 0 && now - lastActivity > timeout;
+    }
+
+    OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                NioConnection.this.write(ByteBuffer.wrap(new byte[] {(byte) b}));
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                NioConnection.this.write(ByteBuffer.wrap(copy));
+            }
+
+            @Override
+            public void close() {
+                NioConnection.this.close();
+            }
+        };
+    }
+
+    //closes once everything queued so far has been written
+    void close() {
+        closing = true;
+        scheduleFlush();
+    }
+
+    void closeNow() {
+        if(!loop.inLoop()) {
+            loop.execute(this::closeNow);
+            return;
+        }
+        if(closed) return;
+        closed = true;
+        closing = true;
+
+        if(key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error(e, "Couldn't close a connection.");
+        }
+        outbound.clear();
+        try {
+            handler.onDisconnect(this);
+        } catch (RuntimeException e) {
+            Log.error(e, "Disconnect handler failed.");
+        }
+        BufferPool.shared.give(readBuffer);
+        readBuffer = null;
+        if(tls != null) tls.release();
+    }
+}
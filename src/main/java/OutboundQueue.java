@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+enum OverflowPolicy {
+    DROP_OLDEST(0),
+    DROP_NEWEST(0),
+    CLOSE_POLICY_VIOLATION(1008),
+    CLOSE_TRY_AGAIN_LATER(1013);
+
+    final int closeCode;
+
+    OverflowPolicy(int closeCode) {
+        this.closeCode = closeCode;
+    }
+}
+
+//frames waiting to be written to one connection, each frame is one or more buffers that stay together
+public class OutboundQueue {
+    final ArrayDeque<ByteBuffer[]> frames;
+    long queuedBytes;
+    long droppedFrames;
+    //frames at the head that a writer has started on and so can't be dropped any more
+    int inFlight;
+
+    int maxMessages;
+    long maxBytes;
+    OverflowPolicy policy;
+
+    public OutboundQueue() {
+        frames = new ArrayDeque<>();
+        queuedBytes = 0;
+        droppedFrames = 0;
+        inFlight = 0;
+        maxMessages = Integer.MAX_VALUE;
+        maxBytes = Long.MAX_VALUE;
+        policy = OverflowPolicy.DROP_NEWEST;
+    }
+
+    synchronized void limit(int maxMessages, long maxBytes, OverflowPolicy policy) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    static long length(ByteBuffer[] frame) {
+        long length = 0;
+        for(ByteBuffer buffer : frame) {
+            length += buffer.remaining();
+        }
+        return length;
+    }
+
+    boolean fits(long length) {
+        return frames.size() < maxMessages && queuedBytes + length <= maxBytes;
+    }
+
+    //ignores the limits, for frames that have to go out like a close
+    synchronized void add(ByteBuffer... frame) {
+        frames.add(frame);
+        queuedBytes += length(frame);
+    }
+
+    //returns false if the frame didn't fit and the policy wants the connection closed
+    synchronized boolean offer(ByteBuffer... frame) {
+        long length = length(frame);
+        if(!fits(length)) {
+            if(policy != OverflowPolicy.DROP_OLDEST && policy != OverflowPolicy.DROP_NEWEST) return false;
+            //when nothing droppable is left the oldest policy drops this one instead, like the newest one always does
+            if(policy == OverflowPolicy.DROP_NEWEST || !dropOldest(length)) {
+                droppedFrames++;
+                return true;
+            }
+        }
+        frames.add(frame);
+        queuedBytes += length;
+        return true;
+    }
+
+    //false if even dropping every frame not yet being written wouldn't make room
+    boolean dropOldest(long length) {
+        while (frames.size() > inFlight && !fits(length)) {
+            ByteBuffer[] oldest = removeAfterInFlight();
+            queuedBytes -= length(oldest);
+            droppedFrames++;
+        }
+        return fits(length);
+    }
+
+    ByteBuffer[] removeAfterInFlight() {
+        Iterator<ByteBuffer[]> iterator = frames.iterator();
+        for (int i = 0; i < inFlight; i++) {
+            iterator.next();
+        }
+        ByteBuffer[] frame = iterator.next();
+        iterator.remove();
+        return frame;
+    }
+
+    //for a writer that takes whole frames off the queue
+    synchronized ByteBuffer[] poll() {
+        ByteBuffer[] frame = frames.poll();
+        if(frame != null) queuedBytes -= length(frame);
+        return frame;
+    }
+
+    //for a gathering writer, fills dst with buffers from the head and pins their frames until completed
+    synchronized int gather(ByteBuffer[] dst) {
+        int count = 0;
+        inFlight = 0;
+        for(ByteBuffer[] frame : frames) {
+            if(count + frame.length > dst.length) break;
+            for(ByteBuffer buffer : frame) {
+                dst[count++] = buffer;
+            }
+            inFlight++;
+        }
+        return count;
+    }
+
+    //removes the frames a gathering write finished, returns false if one is only partly written
+    //bytes are accounted separately through written as they go out
+    synchronized boolean completed() {
+        while (inFlight > 0) {
+            ByteBuffer[] frame = frames.peek();
+            if(length(frame) > 0) {
+                inFlight = 1;
+                return false;
+            }
+            frames.poll();
+            inFlight--;
+        }
+        return true;
+    }
+
+    //gathering writers report bytes as they go out instead of per frame
+    synchronized void written(long length) {
+        queuedBytes -= length;
+    }
+
+    //keeps a partly written head so the stream of frames stays valid
+    synchronized void clear() {
+        while (frames.size() > inFlight) {
+            queuedBytes -= length(frames.pollLast());
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    synchronized int size() {
+        return frames.size();
+    }
+
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    synchronized long droppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//idle raw deflate streams shared by every connection without context takeover, each one holds a few hundred KB of native memory
+class ZipPool {
+    final ConcurrentLinkedQueue<Deflater> deflaters;
+    final ConcurrentLinkedQueue<Inflater> inflaters;
+    final AtomicInteger idleDeflaters;
+    final AtomicInteger idleInflaters;
+    final int maxIdle;
+    final int level;
+
+    public ZipPool(int maxIdle, int level) {
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.inflaters = new ConcurrentLinkedQueue<>();
+        this.idleDeflaters = new AtomicInteger();
+        this.idleInflaters = new AtomicInteger();
+        this.maxIdle = maxIdle;
+        this.level = level;
+    }
+
+    Deflater deflater() {
+        Deflater deflater = deflaters.poll();
+        if(deflater == null) return new Deflater(level, true);
+        idleDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    void release(Deflater deflater) {
+        deflater.reset();
+        if(idleDeflaters.incrementAndGet() <= maxIdle) {
+            deflaters.add(deflater);
+            return;
+        }
+        idleDeflaters.decrementAndGet();
+        deflater.end();
+    }
+
+    Inflater inflater() {
+        Inflater inflater = inflaters.poll();
+        if(inflater == null) return new Inflater(true);
+        idleInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    void release(Inflater inflater) {
+        inflater.reset();
+        if(idleInflaters.incrementAndGet() <= maxIdle) {
+            inflaters.add(inflater);
+            return;
+        }
+        idleInflaters.decrementAndGet();
+        inflater.end();
+    }
+}
+
+//permessage-deflate (RFC 7692) for one connection, streams are borrowed per message unless context takeover keeps them
+public class PerMessageDeflate {
+    final ZipPool pool;
+    final boolean serverNoContextTakeover;
+    final boolean clientNoContextTakeover;
+    //java can't shrink the deflate window, so a client asking for less than 15 bits only ever gets uncompressed messages
+    final boolean compressOutbound;
+    final int threshold;
+    final String response;
+
+    Deflater deflater;
+    Inflater inflater;
+    boolean released;
+
+    static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    //bytes before and after each side, their ratio is what compression saves
+    static final LongAdder deflateIn = Metrics.shared.counter("websocket_deflate_bytes_total", "side", "uncompressed");
+    static final LongAdder deflateOut = Metrics.shared.counter("websocket_deflate_bytes_total", "side", "compressed");
+    static final LongAdder inflateIn = Metrics.shared.counter("websocket_inflate_bytes_total", "side", "compressed");
+    static final LongAdder inflateOut = Metrics.shared.counter("websocket_inflate_bytes_total", "side", "uncompressed");
+
+    public PerMessageDeflate(ZipPool pool, boolean serverNoContextTakeover, boolean clientNoContextTakeover, boolean compressOutbound, int threshold, String response) {
+        this.pool = pool;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.compressOutbound = compressOutbound;
+        this.threshold = threshold;
+        this.response = response;
+        this.deflater = null;
+        this.inflater = null;
+        this.released = false;
+    }
+
+    //picks the first permessage-deflate offer in Sec-WebSocket-Extensions that can be accepted, null if none
+    static PerMessageDeflate negotiate(String offers, WebSocketServer wss) {
+        if(offers == null || wss.deflateThreshold < 0) return null;
+        for(String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if(!params[0].trim().equalsIgnoreCase("permessage-deflate")) continue;
+
+            boolean serverNoContextTakeover = !wss.deflateContextTakeover;
+            boolean clientNoContextTakeover = !wss.deflateContextTakeover;
+            int serverMaxWindowBits = 15;
+            boolean accepted = true;
+            for (int i = 1; i < params.length && accepted; i++) {
+                String[] param = params[i].split("=", 2);
+                String name = param[0].trim().toLowerCase();
+                String value = param.length > 1 ? param[1].trim().replace("\"", "") : null;
+                switch (name) {
+                    case "server_no_context_takeover" -> serverNoContextTakeover = true;
+                    case "client_no_context_takeover" -> clientNoContextTakeover = true;
+                    case "server_max_window_bits" -> {
+                        serverMaxWindowBits = windowBits(value);
+                        accepted = serverMaxWindowBits != -1;
+                    }
+                    //any window the client uses can be inflated, so there's nothing to limit
+                    case "client_max_window_bits" -> accepted = value == null || windowBits(value) != -1;
+                    default -> accepted = false;
+                }
+            }
+            if(!accepted) continue;
+
+            String response = "permessage-deflate"
+                    + (serverNoContextTakeover ? "; server_no_context_takeover" : "")
+                    + (clientNoContextTakeover ? "; client_no_context_takeover" : "")
+                    + (serverMaxWindowBits < 15 ? "; server_max_window_bits=" + serverMaxWindowBits : "");
+            return new PerMessageDeflate(wss.zipPool, serverNoContextTakeover, clientNoContextTakeover, serverMaxWindowBits == 15, wss.deflateThreshold, response);
+        }
+        return null;
+    }
+
+    static int windowBits(String value) {
+        if(value == null) return -1;
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15 ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    boolean compresses(int length) {
+        return compressOutbound && length >= threshold;
+    }
+
+    //without context takeover a compressed message doesn't depend on the connection, so one copy serves many clients
+    boolean sharesFrames() {
+        return serverNoContextTakeover;
+    }
+
+    //null if compressing didn't help and it's allowed to send the message as is
+    byte[] compress(byte[] payload) {
+        if(serverNoContextTakeover) {
+            Deflater borrowed = pool.deflater();
+            try {
+                byte[] compressed = compress(borrowed, payload);
+                return compressed.length < payload.length ? compressed : null;
+            } finally {
+                pool.release(borrowed);
+            }
+        }
+        //the client's inflater already saw what went into the context, so this has to go out compressed
+        //callers hold the lock until the frame is queued so messages leave in the order they were compressed
+        if(released) return null;
+        if(deflater == null) deflater = new Deflater(pool.level, true);
+        return compress(deflater, payload);
+    }
+
+    static byte[] compress(Deflater deflater, byte[] payload) {
+        deflater.setInput(payload);
+        byte[] out = new byte[Math.max(payload.length / 2, 64)];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            if(length < out.length) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        deflateIn.add(payload.length);
+        deflateOut.add(length - TAIL.length);
+        //a sync flush always ends in the empty stored block the spec says to leave off
+        return Arrays.copyOf(out, length - TAIL.length);
+    }
+
+    //maxLength bounds the inflated size so a small message can't expand without limit
+    byte[] decompress(byte[] payload, int offset, int length, int maxLength) throws WebsocketException {
+        if(clientNoContextTakeover) {
+            Inflater borrowed = pool.inflater();
+            try {
+                return decompress(borrowed, payload, offset, length, maxLength);
+            } finally {
+                pool.release(borrowed);
+            }
+        }
+        synchronized (this) {
+            if(released) throw new WebsocketException("Connection closed.");
+            if(inflater == null) inflater = new Inflater(true);
+            return decompress(inflater, payload, offset, length, maxLength);
+        }
+    }
+
+    static byte[] decompress(Inflater inflater, byte[] payload, int offset, int length, int maxLength) throws WebsocketException {
+        inflater.setInput(payload, offset, length);
+        boolean tailAdded = false;
+        byte[] out = new byte[(int) Math.min(Math.max(length * 4L, 256), maxLength + 1L)];
+        int inflatedLength = 0;
+        try {
+            while (true) {
+                if(inflatedLength == out.length) {
+                    //one byte of room past the limit tells a message that fills it from one that doesn't fit
+                    if(out.length > maxLength) throw new WebsocketException("Message too big.", 1009);
+                    out = Arrays.copyOf(out, (int) Math.min(out.length * 2L, maxLength + 1L));
+                }
+                int inflated = inflater.inflate(out, inflatedLength, out.length - inflatedLength);
+                inflatedLength += inflated;
+                if(inflated > 0) continue;
+                if(inflater.finished()) {
+                    inflater.reset();
+                    break;
+                }
+                if(!inflater.needsInput()) throw new WebsocketException("Bad compressed message.");
+                if(tailAdded) break;
+                inflater.setInput(TAIL);
+                tailAdded = true;
+            }
+        } catch (DataFormatException e) {
+            throw new WebsocketException("Bad compressed message.");
+        }
+        inflateIn.add(length);
+        inflateOut.add(inflatedLength);
+        return Arrays.copyOf(out, inflatedLength);
+    }
+
+    //frees the streams this connection kept for context takeover
+    synchronized void release() {
+        released = true;
+        if(deflater != null) deflater.end();
+        if(inflater != null) inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+}
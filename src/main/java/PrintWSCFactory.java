@@ -10,32 +10,33 @@ class PrintWSC extends WebSocketClient{
 
     @Override
     void onMessage(String msg) throws IOException {
-        System.out.printf("%4s: %s\n", id, msg);
+        Log.info("%4s: %s", id, msg);
         wss.sendAll(msg);
     }
 
     @Override
     void onBytes(byte[] bytes) {
-        System.out.printf("%4s: ", id);
+        if(!Log.enabled(Log.INFO)) return;
+        StringBuilder hex = new StringBuilder();
         for (byte b : bytes) {
-            System.out.printf("%x", b);
+            hex.append(String.format("%x", b));
         }
-        System.out.println();
+        Log.info("%4s: %s", id, hex);
     }
 
     @Override
     void onClose(byte[] payload) {
-        System.out.printf("%4s: Closed!\n", id);
+        Log.info("%4s: Closed!", id);
     }
 
     @Override
     void onPing() {
-        System.out.printf("%4s: Ping!\n", id);
+        Log.info("%4s: Ping!", id);
     }
 
     @Override
     void onPong() {
-        System.out.printf("%4s: Pong!\n", id);
+        Log.info("%4s: Pong!", id);
     }
 }
 
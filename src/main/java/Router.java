@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//one addPath call, the table is rebuilt from these whenever they change
+class Route {
+    final String method;
+    final String path;
+    final HttpPathHandler handler;
+    //literal text for exact and prefix routes, null for regex routes
+    final String literal;
+    final boolean prefix;
+    //prefix routes written as (.*) expose the rest of the path as group 1
+    final boolean capture;
+    final Pattern pattern;
+
+    static final String METACHARS = "\\[](){}.*+?^$|";
+
+    public Route(String method, String path, HttpPathHandler handler) {
+        this.method = method;
+        this.path = path;
+        this.handler = handler;
+
+        String body = path;
+        if(body.startsWith("^")) body = body.substring(1);
+        if(body.endsWith("$") && !body.endsWith("\\$")) body = body.substring(0, body.length() - 1);
+        boolean capture = body.endsWith("(.*)");
+        boolean prefix = capture || body.endsWith(".*");
+        String literal = literal(prefix ? body.substring(0, body.length() - (capture ? 4 : 2)) : body);
+
+        this.literal = literal;
+        this.prefix = literal != null && prefix;
+        this.capture = literal != null && capture;
+        this.pattern = literal == null ? Pattern.compile(path) : null;
+    }
+
+    //the text a pattern matches if it only matches one string, null if it needs a real regex
+    //a lone dot is taken as a dot since that's what it means in a path
+    static String literal(String pattern) {
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if(c == '\\') {
+                if(i + 1 == pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) return null;
+                literal.append(pattern.charAt(++i));
+                continue;
+            }
+            boolean quantified = i + 1 < pattern.length() && "*+?{".indexOf(pattern.charAt(i + 1)) != -1;
+            if(c == '.' && !quantified) {
+                literal.append(c);
+                continue;
+            }
+            if(METACHARS.indexOf(c) != -1 || quantified) return null;
+            literal.append(c);
+        }
+        return literal.toString();
+    }
+
+    boolean accepts(String requestMethod) {
+        return method == null || method.equalsIgnoreCase(requestMethod);
+    }
+}
+
+//what a request was routed to, also stands in for a Matcher on literal routes so handlers can keep using group()
+class RouteMatch implements MatchResult {
+    final HttpPathHandler handler;
+    //the path the route was added with, null if none matched
+    final String route;
+    final String path;
+    //start of the captured rest of a prefix route, -1 if there is no group
+    final int captureStart;
+    final MatchResult regex;
+
+    public RouteMatch(HttpPathHandler handler, String route, String path, int captureStart, MatchResult regex) {
+        this.handler = handler;
+        this.route = route;
+        this.path = path;
+        this.captureStart = captureStart;
+        this.regex = regex;
+    }
+
+    MatchResult result() {
+        return regex != null ? regex : this;
+    }
+
+    @Override
+    public int start() {
+        return 0;
+    }
+
+    @Override
+    public int start(int group) {
+        if(group == 0) return 0;
+        if(group == 1 && captureStart != -1) return captureStart;
+        throw new IndexOutOfBoundsException("No group " + group);
+    }
+
+    @Override
+    public int end() {
+        return path.length();
+    }
+
+    @Override
+    public int end(int group) {
+        start(group);
+        return path.length();
+    }
+
+    @Override
+    public String group() {
+        return path;
+    }
+
+    @Override
+    public String group(int group) {
+        return path.substring(start(group));
+    }
+
+    @Override
+    public int groupCount() {
+        return captureStart == -1 ? 0 : 1;
+    }
+}
+
+//character trie over the literal text of prefix routes, walking a path visits every prefix of it in one pass
+class RouteNode {
+    char[] keys;
+    RouteNode[] children;
+    List<Route> routes;
+
+    static final char[] NO_KEYS = new char[0];
+    static final RouteNode[] NO_CHILDREN = new RouteNode[0];
+
+    public RouteNode() {
+        keys = NO_KEYS;
+        children = NO_CHILDREN;
+        routes = null;
+    }
+
+    RouteNode child(char key) {
+        for (int i = 0; i < keys.length; i++) {
+            if(keys[i] == key) return children[i];
+        }
+        return null;
+    }
+
+    RouteNode addChild(char key) {
+        RouteNode child = child(key);
+        if(child != null) return child;
+        child = new RouteNode();
+        keys = Arrays.copyOf(keys, keys.length + 1);
+        children = Arrays.copyOf(children, children.length + 1);
+        keys[keys.length - 1] = key;
+        children[children.length - 1] = child;
+        return child;
+    }
+}
+
+//immutable lookup structures built from the route list, swapped as a whole so requests never see a half built table
+class RouteTable {
+    final Map<String, List<Route>> exact;
+    final RouteNode prefixes;
+    final Route[] patterns;
+
+    public RouteTable(List<Route> routes) {
+        exact = new HashMap<>();
+        prefixes = new RouteNode();
+        List<Route> patterns = new ArrayList<>();
+        for(Route route : routes) {
+            if(route.literal == null) {
+                patterns.add(route);
+            } else if(!route.prefix) {
+                exact.computeIfAbsent(route.literal, key -> new ArrayList<>()).add(route);
+            } else {
+                RouteNode node = prefixes;
+                for (int i = 0; i < route.literal.length(); i++) {
+                    node = node.addChild(route.literal.charAt(i));
+                }
+                if(node.routes == null) node.routes = new ArrayList<>();
+                node.routes.add(route);
+            }
+        }
+        this.patterns = patterns.toArray(Route[]::new);
+    }
+}
+
+//exact routes win over the longest matching prefix, which wins over regex routes tried in the order they were added
+public class Router {
+    final List<Route> routes;
+    volatile RouteTable table;
+
+    static final HttpPathHandler methodNotAllowed = (bundle) -> {
+        throw new HttpParseException(405, "Method Not Allowed.");
+    };
+
+    public Router() {
+        routes = new ArrayList<>();
+        table = new RouteTable(routes);
+    }
+
+    //method null matches any method
+    synchronized void add(String method, String path, HttpPathHandler handler) {
+        routes.add(new Route(method, path, handler));
+        table = new RouteTable(routes);
+    }
+
+    synchronized boolean remove(String method, String path) {
+        boolean removed = routes.removeIf(route -> route.path.equals(path) && (method == null ? route.method == null : method.equalsIgnoreCase(route.method)));
+        if(removed) table = new RouteTable(routes);
+        return removed;
+    }
+
+    static Route first(List<Route> routes, String method) {
+        if(routes == null) return null;
+        for(Route route : routes) {
+            if(route.accepts(method)) return route;
+        }
+        return null;
+    }
+
+    //null if no route has the path, a 405 handler if some do but not for this method
+    RouteMatch route(String method, String path) {
+        RouteTable table = this.table;
+        List<Route> exact = table.exact.get(path);
+        Route route = first(exact, method);
+        if(route != null) return new RouteMatch(route.handler, route.path, path, -1, null);
+        boolean pathMatched = exact != null;
+
+        //the deepest node with a fitting route is the longest prefix
+        RouteNode node = table.prefixes;
+        Route longest = first(node.routes, method);
+        int longestLength = 0;
+        pathMatched |= node.routes != null;
+        for (int i = 0; i < path.length() && (node = node.child(path.charAt(i))) != null; i++) {
+            if(node.routes == null) continue;
+            pathMatched = true;
+            Route candidate = first(node.routes, method);
+            if(candidate == null) continue;
+            longest = candidate;
+            longestLength = i + 1;
+        }
+        if(longest != null) return new RouteMatch(longest.handler, longest.path, path, longest.capture ? longestLength : -1, null);
+
+        for(Route pattern : table.patterns) {
+            Matcher matcher = pattern.pattern.matcher(path);
+            if(!matcher.matches()) continue;
+            if(pattern.accepts(method)) return new RouteMatch(pattern.handler, pattern.path, path, -1, matcher);
+            pathMatched = true;
+        }
+        return pathMatched ? new RouteMatch(methodNotAllowed, null, path, -1, null) : null;
+    }
+}
@@ -1,17 +1,313 @@
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//text events are "event::::peer id::::payload", binary ones are opt in and start with a type byte
+//whose high bit says peer ids are 16 byte uuids instead of 4 byte session ids:
+//  join                      [type][varint length][room]
+//  offer, answer, candidate  [type][peer id][varint length][payload]
+//  add_peer, remove_peer     [type][peer id]
+//  candidates                [type][peer id][varint count]([varint length][payload])*
+//the form a client joins with is the form it gets events in, so old text clients and binary ones can share a room
+//peers on other cluster nodes have no session id here, binary clients always get their events in the uuid form
+//candidates from one client waiting to go to one peer as a single frame
+class CandidateBatch {
+    final List<ByteBuffer> candidates;
+    ScheduledFuture<?> flush;
+
+    public CandidateBatch() {
+        this.candidates = new ArrayList<>();
+        this.flush = null;
+    }
+}
 
 class RtcWSC extends WebSocketClient {
 
     static final String SEPARATOR = "::::";
+    static final String DEFAULT_ROOM = "";
 
+    static final int JOIN = 1;
+    static final int OFFER = 2;
+    static final int ANSWER = 3;
+    static final int CANDIDATE = 4;
+    static final int ADD_PEER = 5;
+    static final int REMOVE_PEER = 6;
+    static final int CANDIDATES = 7;
+    static final int UUID_IDS = 0x80;
+    //what a text client gets for each binary type, a batch of candidates is binary only
+    static final String[] textEvents = {null, "join", "get_offer", "get_answer", "candidate", "add_peer", "remove_peer", null};
+
+    final RtcWSCFactory factory;
     String addMsg, closeMsg;
+    volatile boolean binary;
+    volatile boolean uuidIds;
+    //keyed by the peer the candidates are for, guarded by this
+    final Map<WebSocketClient, CandidateBatch> pendingCandidates;
 
-    public RtcWSC(Socket clientSocket, UUID id, WebSocketServer wss) throws IOException {
+    public RtcWSC(Socket clientSocket, UUID id, WebSocketServer wss, RtcWSCFactory factory) throws IOException {
         super(clientSocket, id, wss);
+        this.factory = factory;
+        this.pendingCandidates = new HashMap<>();
         addMsg = String.join(SEPARATOR, new String[] {"add_peer", id.toString()});
         closeMsg = String.join(SEPARATOR, new String[] {"remove_peer", id.toString()});
+        binary = false;
+        uuidIds = false;
+    }
+
+    void join(String roomName) {
+        wss.join(roomName, this);
+        announce(roomName, ADD_PEER, addMsg);
+    }
+
+    void announce(String roomName, int type, String text) {
+        announce(wss, roomName, id, sessionId, type, text);
+        if(wss.cluster != null) wss.cluster.sendRoom(roomName, id, new byte[] {(byte) type}, 0, 1);
+    }
+
+    //one shared frame per form the room's members want, text clients get the old message
+    //fromSession is -1 for a peer on another node
+    static void announce(WebSocketServer wss, String roomName, UUID from, int fromSession, int type, String text) {
+        ByteBuffer textFrame = null, compactFrame = null, uuidFrame = null;
+        for(WebSocketClient member : wss.clients.members(roomName)) {
+            if(member.id.equals(from)) continue;
+            ByteBuffer frame;
+            if(!(member instanceof RtcWSC rtc) || !rtc.binary) {
+                if(textFrame == null) textFrame = WebSocketServer.sharedFrame(0x81, text.getBytes(StandardCharsets.UTF_8));
+                frame = textFrame;
+            } else if(rtc.uuidIds || fromSession == -1) {
+                if(uuidFrame == null) uuidFrame = binaryFrame(type, true, from, fromSession, null, 0, 0)[0].asReadOnlyBuffer();
+                frame = uuidFrame;
+            } else {
+                if(compactFrame == null) compactFrame = binaryFrame(type, false, from, fromSession, null, 0, 0)[0].asReadOnlyBuffer();
+                frame = compactFrame;
+            }
+            member.sendFrame(frame.duplicate());
+        }
+    }
+
+    static boolean isBinary(WebSocketClient client) {
+        return client instanceof RtcWSC rtc && rtc.binary;
+    }
+
+    ByteBuffer[] binaryFrame(int type, boolean uuids, byte[] payload, int offset, int length) {
+        return binaryFrame(type, uuids, id, sessionId, payload, offset, length);
+    }
+
+    //frame header, type and the sender's id in one array, the payload is sent from the caller's array as is
+    static ByteBuffer[] binaryFrame(int type, boolean uuids, UUID from, int fromSession, byte[] payload, int offset, int length) {
+        int prefixLength = 1 + (uuids ? 16 : 4) + (payload == null ? 0 : varintLength(length));
+        int messageLength = prefixLength + (payload == null ? 0 : length);
+        byte[] head = new byte[FrameEncoder.headerLength(messageLength) + prefixLength];
+        int position = FrameEncoder.writeHeader(head, 0, 0x82, messageLength);
+
+        position = writeId(head, position, type, uuids, from, fromSession);
+        if(payload == null) return new ByteBuffer[] {ByteBuffer.wrap(head)};
+
+        writeVarint(head, position, length);
+        return new ByteBuffer[] {ByteBuffer.wrap(head), ByteBuffer.wrap(payload, offset, length)};
+    }
+
+    //the same event unframed and in one array, for when it gets compressed as a whole or crosses to another node
+    static byte[] binaryMessage(int type, boolean uuids, UUID from, int fromSession, byte[] payload, int offset, int length) {
+        int prefixLength = 1 + (uuids ? 16 : 4) + varintLength(length);
+        byte[] message = new byte[prefixLength + length];
+        writeVarint(message, writeId(message, 0, type, uuids, from, fromSession), length);
+        if(length > 0) System.arraycopy(payload, offset, message, prefixLength, length);
+        return message;
+    }
+
+    //sends an event from this client to peer in whichever form peer uses
+    void relay(WebSocketClient peer, int type, byte[] payload, int offset, int length) throws IOException {
+        relay(peer, id, sessionId, type, payload, offset, length);
+    }
+
+    static void relay(WebSocketClient peer, UUID from, int fromSession, int type, byte[] payload, int offset, int length) throws IOException {
+        if(peer instanceof RtcWSC rtc && rtc.binary) {
+            boolean uuids = rtc.uuidIds || fromSession == -1;
+            PerMessageDeflate deflate = peer.deflate;
+            if(payload != null && deflate != null && deflate.compresses(length)) {
+                peer.sendMessage(0x82, binaryMessage(type, uuids, from, fromSession, payload, offset, length));
+                return;
+            }
+            peer.sendFrame(binaryFrame(type, uuids, from, fromSession, payload, offset, length));
+            return;
+        }
+        String event = textEvents[type] + SEPARATOR + from;
+        if(payload != null) event += SEPARATOR + new String(payload, offset, length, StandardCharsets.UTF_8);
+        peer.sendText(event);
+    }
+
+    //for a peer that isn't connected here, the event goes to its node in the uuid binary form
+    //candidates skip the coalescing window since the link to the node batches whatever queues up
+    boolean relayRemote(UUID peerId, int type, byte[] payload, int offset, int length) {
+        Cluster cluster = wss.cluster;
+        if(cluster == null || !cluster.hosts(peerId)) return false;
+        if(type == CANDIDATE) factory.countCandidates(1);
+        byte[] message = binaryMessage(type, true, id, sessionId, payload, offset, length);
+        return cluster.sendDirect(peerId, message, 0, message.length);
+    }
+
+    //holds the candidate back for the coalescing window so a burst to the same peer goes out as one frame
+    void relayCandidate(WebSocketClient peer, byte[] payload, int offset, int length) throws IOException {
+        if(factory.candidateWindow <= 0) {
+            factory.countCandidates(1);
+            relay(peer, CANDIDATE, payload, offset, length);
+            return;
+        }
+        synchronized (this) {
+            CandidateBatch batch = pendingCandidates.computeIfAbsent(peer, key -> new CandidateBatch());
+            batch.candidates.add(ByteBuffer.wrap(payload, offset, length));
+            if(batch.candidates.size() >= factory.maxBatchedCandidates) {
+                flushCandidates(peer);
+                return;
+            }
+            if(batch.flush == null) batch.flush = factory.timer.schedule(() -> {
+                try {
+                    flushCandidates(peer);
+                } catch (IOException e) {
+                    Log.error(e, "%s: Candidate flush failed.", id);
+                }
+            }, factory.candidateWindow, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //sends whatever is pending for peer, an offer or answer calls this first so candidates never overtake it
+    synchronized void flushCandidates(WebSocketClient peer) throws IOException {
+        CandidateBatch batch = pendingCandidates.remove(peer);
+        if(batch == null) return;
+        if(batch.flush != null) batch.flush.cancel(false);
+
+        List<ByteBuffer> candidates = batch.candidates;
+        factory.countCandidates(candidates.size());
+        if(candidates.size() == 1) {
+            ByteBuffer candidate = candidates.get(0);
+            relay(peer, CANDIDATE, candidate.array(), candidate.position(), candidate.remaining());
+            return;
+        }
+        if(peer instanceof RtcWSC rtc && rtc.binary) {
+            peer.sendFrame(binaryBatch(candidates, rtc.uuidIds));
+            return;
+        }
+
+        //text clients only know the single candidate event, so they get one frame per candidate
+        //without compression the frames still share one buffer and go out in one write
+        if(peer.deflate != null) {
+            for(ByteBuffer candidate : candidates) {
+                relay(peer, CANDIDATE, candidate.array(), candidate.position(), candidate.remaining());
+            }
+            return;
+        }
+        peer.sendFrame(textBatch(candidates));
+    }
+
+    ByteBuffer textBatch(List<ByteBuffer> candidates) {
+        byte[] prefix = (textEvents[CANDIDATE] + SEPARATOR + id + SEPARATOR).getBytes(StandardCharsets.UTF_8);
+        int length = 0;
+        for(ByteBuffer candidate : candidates) {
+            int messageLength = prefix.length + candidate.remaining();
+            length += FrameEncoder.headerLength(messageLength) + messageLength;
+        }
+        byte[] frames = new byte[length];
+        int position = 0;
+        for(ByteBuffer candidate : candidates) {
+            position += FrameEncoder.writeHeader(frames, position, 0x81, prefix.length + candidate.remaining());
+            System.arraycopy(prefix, 0, frames, position, prefix.length);
+            position += prefix.length;
+            System.arraycopy(candidate.array(), candidate.position(), frames, position, candidate.remaining());
+            position += candidate.remaining();
+        }
+        return ByteBuffer.wrap(frames);
+    }
+
+    ByteBuffer binaryBatch(List<ByteBuffer> candidates, boolean uuids) {
+        int messageLength = 1 + (uuids ? 16 : 4) + varintLength(candidates.size());
+        for(ByteBuffer candidate : candidates) {
+            messageLength += varintLength(candidate.remaining()) + candidate.remaining();
+        }
+        byte[] frame = new byte[FrameEncoder.headerLength(messageLength) + messageLength];
+        int position = FrameEncoder.writeHeader(frame, 0, 0x82, messageLength);
+        position = writeId(frame, position, CANDIDATES, uuids, id, sessionId);
+        position = writeVarint(frame, position, candidates.size());
+        for(ByteBuffer candidate : candidates) {
+            position = writeVarint(frame, position, candidate.remaining());
+            System.arraycopy(candidate.array(), candidate.position(), frame, position, candidate.remaining());
+            position += candidate.remaining();
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) length++;
+        return length;
+    }
+
+    //the value in the low 32 bits and the position after it in the high ones, -1 if it runs off the end
+    static long readVarint(byte[] bytes, int position) {
+        int value = 0;
+        for (int shift = 0; shift < 32 && position < bytes.length; shift += 7) {
+            int b = bytes[position++];
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value < 0 ? -1 : (long) position << 32 | value;
+        }
+        return -1;
+    }
+
+    //the type byte followed by the sender's id in the form the receiver wants
+    static int writeId(byte[] dst, int position, int type, boolean uuids, UUID from, int fromSession) {
+        dst[position++] = (byte) (type | (uuids ? UUID_IDS : 0));
+        if(!uuids) return writeInt(dst, position, fromSession);
+        position = writeLong(dst, position, from.getMostSignificantBits());
+        return writeLong(dst, position, from.getLeastSignificantBits());
+    }
+
+    static int writeVarint(byte[] dst, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        dst[position++] = (byte) value;
+        return position;
+    }
+
+    static int writeInt(byte[] dst, int position, int value) {
+        for (int i = 0; i < 4; i++) {
+            dst[position + i] = (byte) (value >> (24 - i * 8));
+        }
+        return position + 4;
+    }
+
+    static int writeLong(byte[] dst, int position, long value) {
+        for (int i = 0; i < 8; i++) {
+            dst[position + i] = (byte) (value >> (56 - i * 8));
+        }
+        return position + 8;
+    }
+
+    static int readInt(byte[] bytes, int position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | (bytes[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static long readLong(byte[] bytes, int position) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (bytes[position + i] & 0xFF);
+        }
+        return value;
     }
 
     @Override
@@ -21,59 +317,211 @@ class RtcWSC extends WebSocketClient {
         String[] event = msg.split(SEPARATOR);
         if(event.length < 1) return;
         if(event[0].equals("join")) {
-            wss.sendElse(id, addMsg);
+            //old clients don't name a room and all share the default one
+            String roomName = event.length > 1 ? event[1] : DEFAULT_ROOM;
+            binary = false;
+            join(roomName);
             return;
         }
 
         if(event.length < 2) return;
-        UUID peerId = UUID.fromString(event[1]);
+        UUID peerId;
+        try {
+            peerId = UUID.fromString(event[1]);
+        } catch (IllegalArgumentException e) {
+            Log.warn("%s: Bad peer id '%s'.", id, event[1]);
+            return;
+        }
+        WebSocketClient peer = wss.clients.get(peerId);
         if(event.length < 3) {
-            wss.send(peerId, closeMsg);
+            if(peer == null && relayRemote(peerId, REMOVE_PEER, null, 0, 0)) return;
+            if(isBinary(peer)) relay(peer, REMOVE_PEER, null, 0, 0);
+            else wss.send(peerId, closeMsg);
             return;
         }
 
-        String eventResId = switch (event[0]) {
-            case "offer" -> "get_offer";
-            case "answer" -> "get_answer";
-            case "candidate" -> "candidate";
-            default -> null;
+        int type = switch (event[0]) {
+            case "offer" -> OFFER;
+            case "answer" -> ANSWER;
+            case "candidate" -> CANDIDATE;
+            default -> 0;
         };
 
-        if(eventResId == null) {
-            System.out.printf("%s: Unknown event '%s'.\n", id, event[0]);
+        if(type == 0) {
+            Log.warn("%s: Unknown event '%s'.", id, event[0]);
             return;
         }
 
-        String eventMsg = String.join(SEPARATOR, new String[] {eventResId, id.toString(), event[2]});
+        if(peer == null) {
+            byte[] payload = event[2].getBytes(StandardCharsets.UTF_8);
+            if(!relayRemote(peerId, type, payload, 0, payload.length)) Log.debug("No client %s.", peerId);
+            return;
+        }
+        if(type == CANDIDATE) {
+            byte[] payload = event[2].getBytes(StandardCharsets.UTF_8);
+            relayCandidate(peer, payload, 0, payload.length);
+            return;
+        }
+        flushCandidates(peer);
+        if(isBinary(peer)) {
+            byte[] payload = event[2].getBytes(StandardCharsets.UTF_8);
+            relay(peer, type, payload, 0, payload.length);
+            return;
+        }
+        String eventMsg = String.join(SEPARATOR, new String[] {textEvents[type], id.toString(), event[2]});
         wss.send(peerId, eventMsg);
     }
 
+    //routed straight from the received array, only a join allocates a string for the room name
     @Override
     void onBytes(byte[] bytes) throws IOException {
-        //never hit (if i did it right)
+        if(bytes.length < 1) return;
+        int type = bytes[0] & 0x7F;
+        boolean uuids = (bytes[0] & UUID_IDS) != 0;
+
+        if(type == JOIN) {
+            long varint = readVarint(bytes, 1);
+            int position = (int) (varint >>> 32), length = (int) varint;
+            if(varint == -1 || length > bytes.length - position) {
+                Log.warn("%s: Bad binary join.", id);
+                return;
+            }
+            binary = true;
+            uuidIds = uuids;
+            join(new String(bytes, position, length, StandardCharsets.UTF_8));
+            return;
+        }
+
+        int idLength = uuids ? 16 : 4;
+        if(bytes.length < 1 + idLength) {
+            Log.warn("%s: Binary event %d too short.", id, type);
+            return;
+        }
+        //session ids are only ever handed out for local peers, so only a uuid can name a peer on another node
+        UUID peerId = uuids ? new UUID(readLong(bytes, 1), readLong(bytes, 9)) : null;
+        WebSocketClient peer = uuids ? wss.clients.get(peerId) : wss.clients.session(readInt(bytes, 1));
+        if(peer == null && peerId == null) return;
+
+        if(type == REMOVE_PEER) {
+            if(peer == null) relayRemote(peerId, REMOVE_PEER, null, 0, 0);
+            else relay(peer, REMOVE_PEER, null, 0, 0);
+            return;
+        }
+        if(type != OFFER && type != ANSWER && type != CANDIDATE) {
+            Log.warn("%s: Unknown binary event %d.", id, type);
+            return;
+        }
+
+        long varint = readVarint(bytes, 1 + idLength);
+        int position = (int) (varint >>> 32), length = (int) varint;
+        if(varint == -1 || length > bytes.length - position) {
+            Log.warn("%s: Binary event %d has a bad length.", id, type);
+            return;
+        }
+        if(peer == null) {
+            relayRemote(peerId, type, bytes, position, length);
+            return;
+        }
+        if(type == CANDIDATE) {
+            relayCandidate(peer, bytes, position, length);
+            return;
+        }
+        flushCandidates(peer);
+        relay(peer, type, bytes, position, length);
     }
 
     @Override
     void onClose(byte[] payload) throws IOException {
-        wss.sendElse(id, closeMsg);
-        System.out.printf("%s disconnected.\n", id);
+        Room current = room;
+        if(current != null) announce(current.name, REMOVE_PEER, closeMsg);
+        Log.info("%s disconnected.", id);
     }
 
     @Override
     void onPing() throws IOException {
-        System.out.printf("%s: Ping!\n", id);
+        Log.debug("%s: Ping!", id);
     }
 
     @Override
     void onPong() throws IOException {
-        System.out.printf("%s: Pong!\n", id);
+        Log.debug("%s: Pong!", id);
     }
 }
 
 
-public class RtcWSCFactory implements WSCFactory{
+public class RtcWSCFactory implements WSCFactory, ClusterListener {
+    //how long candidates for the same peer are held back, 0 sends each one on its own
+    final long candidateWindow;
+    final int maxBatchedCandidates;
+    final ScheduledThreadPoolExecutor timer;
+
+    final LongAdder candidatesRelayed;
+    final LongAdder candidateFrames;
+
+    public RtcWSCFactory() {
+        this(10, 16);
+    }
+
+    public RtcWSCFactory(long candidateWindow, int maxBatchedCandidates) {
+        this.candidateWindow = candidateWindow;
+        this.maxBatchedCandidates = Math.max(maxBatchedCandidates, 1);
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "candidate-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.candidatesRelayed = new LongAdder();
+        this.candidateFrames = new LongAdder();
+        Metrics.shared.gauge("rtc_candidates_relayed", candidatesRelayed::sum);
+        Metrics.shared.gauge("rtc_candidate_frames", candidateFrames::sum);
+        Metrics.shared.gauge("rtc_candidate_frames_saved", this::framesSaved);
+    }
+
+    void countCandidates(int candidates) {
+        candidatesRelayed.add(candidates);
+        candidateFrames.increment();
+    }
+
+    //frames that batching kept off the wire compared to one frame per candidate
+    public long framesSaved() {
+        return candidatesRelayed.sum() - candidateFrames.sum();
+    }
+
     @Override
     public WebSocketClient build(Socket socket, UUID id, WebSocketServer wss) throws IOException {
-        return new RtcWSC(socket, id, wss);
+        return new RtcWSC(socket, id, wss, this);
+    }
+
+    //an offer, answer, candidate or remove_peer from a peer on another node, in the uuid binary form
+    @Override
+    public void onDirect(WebSocketServer wss, UUID target, byte[] record, int offset, int length) throws IOException {
+        WebSocketClient peer = wss.clients.get(target);
+        if(peer == null || length < 17) return;
+        int type = record[offset] & 0x7F;
+        UUID from = new UUID(RtcWSC.readLong(record, offset + 1), RtcWSC.readLong(record, offset + 9));
+        if(type == RtcWSC.REMOVE_PEER) {
+            RtcWSC.relay(peer, from, -1, type, null, 0, 0);
+            return;
+        }
+        long varint = RtcWSC.readVarint(record, offset + 17);
+        int position = (int) (varint >>> 32), payloadLength = (int) varint;
+        if(type != RtcWSC.OFFER && type != RtcWSC.ANSWER && type != RtcWSC.CANDIDATE) return;
+        if(varint == -1 || payloadLength > offset + length - position) return;
+        RtcWSC.relay(peer, from, -1, type, record, position, payloadLength);
+    }
+
+    //add_peer or remove_peer for a room, the sender is the peer that joined or left
+    @Override
+    public void onRoom(WebSocketServer wss, String room, UUID from, byte[] record, int offset, int length) throws IOException {
+        if(length < 1 || from == null) return;
+        int type = record[offset];
+        if(type != RtcWSC.ADD_PEER && type != RtcWSC.REMOVE_PEER) return;
+        RtcWSC.announce(wss, room, from, -1, type, RtcWSC.textEvents[type] + RtcWSC.SEPARATOR + from);
+    }
+
+    @Override
+    public void onPeerLost(WebSocketServer wss, UUID peer, String room) throws IOException {
+        RtcWSC.announce(wss, room, peer, -1, RtcWSC.REMOVE_PEER, RtcWSC.textEvents[RtcWSC.REMOVE_PEER] + RtcWSC.SEPARATOR + peer);
     }
 }
@@ -0,0 +1,365 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+//one encoding of a file, the response buffers are shared between requests so only ever written through duplicates
+class FileVariant {
+    final String etag;
+    //status line, headers and for small files the body, ready to write as is
+    final ByteBuffer response;
+    final ByteBuffer notModified;
+    //set when the body is streamed from disk instead of being part of response
+    final Path bodyPath;
+    final long bodyLength;
+
+    public FileVariant(String etag, ByteBuffer response, ByteBuffer notModified, Path bodyPath, long bodyLength) {
+        this.etag = etag;
+        this.response = response;
+        this.notModified = notModified;
+        this.bodyPath = bodyPath;
+        this.bodyLength = bodyLength;
+    }
+
+    long size() {
+        return response.capacity() + notModified.capacity();
+    }
+}
+
+class CachedFile {
+    final Path path;
+    final long length;
+    final long lastModified;
+    final String contentType;
+    final boolean compressible;
+    FileVariant identity;
+    //built on first request for the encoding, identity if compressing didn't pay off
+    volatile FileVariant gzip;
+    volatile FileVariant deflate;
+
+    public CachedFile(Path path, long length, long lastModified, String contentType, boolean compressible) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        this.compressible = compressible;
+    }
+
+    long size() {
+        long size = identity.size();
+        FileVariant current = gzip;
+        if(current != null && current != identity) size += current.size();
+        current = deflate;
+        if(current != null && current != identity) size += current.size();
+        return size;
+    }
+}
+
+//serves files under root, keeping recently used ones as pre-built responses until the directory changes
+public class StaticFiles {
+    final Path root;
+    final Function<String, String> fileTypes;
+    final LinkedHashMap<Path, CachedFile> cache;
+    long cachedBytes;
+    long maxCacheBytes;
+    long maxCachedFileSize;
+    long compressionThreshold;
+    Set<String> compressibleTypes;
+    Thread watchThread;
+
+    static final DateTimeFormatter httpDate = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    public StaticFiles(Path root, Function<String, String> fileTypes) {
+        this.root = root;
+        this.fileTypes = fileTypes;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.cachedBytes = 0;
+        this.maxCacheBytes = 16 * 1024 * 1024;
+        this.maxCachedFileSize = 256 * 1024;
+        this.compressionThreshold = 1024;
+        this.compressibleTypes = Set.of("text/html", "text/css", "text/javascript", "text/plain", "image/svg+xml",
+                "application/json", "application/xml", "application/wasm", "image/x-icon");
+    }
+
+    synchronized void setCacheLimits(long maxCacheBytes, long maxCachedFileSize) {
+        this.maxCacheBytes = maxCacheBytes;
+        this.maxCachedFileSize = maxCachedFileSize;
+        evict();
+    }
+
+    //other types are always sent as is, files under the threshold only if there's a .gz next to them
+    synchronized void setCompression(long threshold, Set<String> types) {
+        this.compressionThreshold = threshold;
+        this.compressibleTypes = Set.copyOf(types);
+        invalidateAll();
+    }
+
+    void evict() {
+        Iterator<CachedFile> entries = cache.values().iterator();
+        while (cachedBytes > maxCacheBytes && entries.hasNext()) {
+            cachedBytes -= entries.next().size();
+            entries.remove();
+        }
+    }
+
+    synchronized void invalidate(Path path) {
+        CachedFile removed = cache.remove(path);
+        if(removed != null) cachedBytes -= removed.size();
+    }
+
+    synchronized void invalidateAll() {
+        cache.clear();
+        cachedBytes = 0;
+    }
+
+    synchronized CachedFile cached(Path path) {
+        return cache.get(path);
+    }
+
+    synchronized void store(CachedFile file) {
+        CachedFile previous = cache.put(file.path, file);
+        if(previous != null) cachedBytes -= previous.size();
+        cachedBytes += file.size();
+        evict();
+    }
+
+    //a variant was added to a file that may or may not still be cached
+    synchronized void grown(CachedFile file, FileVariant variant) {
+        if(cache.get(file.path) != file || variant == file.identity) return;
+        cachedBytes += variant.size();
+        evict();
+    }
+
+    static String formatDate(long millis) {
+        return httpDate.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    FileVariant variant(CachedFile file, String encoding, String etag, byte[] body, Path bodyPath, long bodyLength) {
+        String validators = String.format("ETag: %s\r\nLast-Modified: %s\r\nCache-Control: no-cache\r\n%s",
+                etag, formatDate(file.lastModified), file.compressible ? "Vary: Accept-Encoding\r\n" : "");
+        String contentEncoding = encoding == null ? "" : String.format("Content-Encoding: %s\r\n", encoding);
+        long length = body != null ? body.length : bodyLength;
+
+        byte[] head = String.format("HTTP/1.1 200 OK\r\nContent-Type: %s\r\nContent-Length: %d\r\n%s%s\r\n", file.contentType, length, contentEncoding, validators).getBytes(StandardCharsets.UTF_8);
+        byte[] notModified = String.format("HTTP/1.1 304 Not Modified\r\n%s\r\n", validators).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer response = body == null ? ByteBuffer.wrap(head) : ByteBuffer.allocate(head.length + body.length).put(head).put(body).flip();
+        return new FileVariant(etag, response, ByteBuffer.wrap(notModified), bodyPath, bodyLength);
+    }
+
+    CachedFile load(Path path) throws IOException, HttpParseException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new HttpParseException(404, "File does not Exist");
+        }
+        if(attributes.isDirectory()) throw new HttpParseException(404, "File does not Exist");
+
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String contentType = fileTypes.apply(path.toString());
+        boolean compressible = compressibleTypes.contains(contentType);
+
+        boolean inMemory = length <= maxCachedFileSize;
+        byte[] body = null;
+        if(inMemory) {
+            body = Files.readAllBytes(path);
+            //changed between the stat and the read, the watcher will catch up
+            if(body.length != length) return load(path);
+        }
+
+        CachedFile file = new CachedFile(path, length, lastModified, contentType, compressible);
+        String etag = String.format("\"%x-%x\"", length, lastModified);
+        file.identity = variant(file, null, etag, body, inMemory ? null : path, length);
+        return file;
+    }
+
+    //a foo.gz next to foo that is at least as new wins over compressing it ourselves
+    FileVariant precompressed(CachedFile file) throws IOException {
+        Path sibling = Path.of(file.path + ".gz");
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(sibling, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if(attributes.isDirectory() || attributes.lastModifiedTime().toMillis() < file.lastModified) return null;
+
+        long length = attributes.size();
+        String etag = String.format("\"%x-%x-gz\"", file.length, file.lastModified);
+        if(length > maxCachedFileSize) return variant(file, "gzip", etag, null, sibling, length);
+        return variant(file, "gzip", etag, Files.readAllBytes(sibling), null, length);
+    }
+
+    FileVariant compress(CachedFile file, String encoding) throws IOException {
+        if("gzip".equals(encoding)) {
+            FileVariant sibling = precompressed(file);
+            if(sibling != null) return sibling;
+        }
+        //big files are only sent compressed if someone put a .gz next to them
+        if(file.identity.bodyPath != null || file.length < compressionThreshold) return file.identity;
+
+        byte[] body = new byte[(int) file.length];
+        file.identity.response.duplicate().position(file.identity.response.capacity() - body.length).get(body);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        try (OutputStream out = "gzip".equals(encoding) ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            out.write(body);
+        }
+        if(compressed.size() >= body.length) return file.identity;
+
+        String etag = String.format("\"%x-%x-%s\"", file.length, file.lastModified, "gzip".equals(encoding) ? "gz" : "df");
+        return variant(file, encoding, etag, compressed.toByteArray(), null, compressed.size());
+    }
+
+    //gzip before deflate, anything with q=0 is refused
+    static String negotiate(String acceptEncoding) {
+        if(acceptEncoding == null) return null;
+        boolean deflate = false;
+        for(String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String name = parts[0].trim();
+            if(parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) continue;
+            if(name.equalsIgnoreCase("gzip") || name.equals("*")) return "gzip";
+            if(name.equalsIgnoreCase("deflate")) deflate = true;
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    FileVariant select(CachedFile file, HttpHeaders headers) throws IOException {
+        if(!file.compressible) return file.identity;
+        String encoding = negotiate(headers.get("Accept-Encoding"));
+        if(encoding == null) return file.identity;
+
+        boolean gzip = encoding.equals("gzip");
+        FileVariant variant = gzip ? file.gzip : file.deflate;
+        if(variant != null) return variant;
+
+        synchronized (file) {
+            variant = gzip ? file.gzip : file.deflate;
+            if(variant != null) return variant;
+            variant = compress(file, encoding);
+            if(gzip) file.gzip = variant;
+            else file.deflate = variant;
+        }
+        grown(file, variant);
+        return variant;
+    }
+
+    static boolean isNotModified(CachedFile file, FileVariant variant, HttpHeaders headers) {
+        if(headers.containsKey("If-None-Match")) return headers.contains("If-None-Match", variant.etag) || headers.contains("If-None-Match", "*");
+
+        String modifiedSince = headers.get("If-Modified-Since");
+        if(modifiedSince == null) return false;
+        try {
+            long since = ZonedDateTime.parse(modifiedSince, httpDate).toInstant().toEpochMilli();
+            return file.lastModified / 1000 <= since / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    //returns the status that was sent
+    int send(Path path, ClientSocket client, HttpHeaders headers) throws IOException, HttpParseException {
+        CachedFile file = cached(path);
+        if(file == null) {
+            file = load(path);
+            store(file);
+        }
+
+        FileVariant variant = select(file, headers);
+        if(isNotModified(file, variant, headers)) {
+            client.write(variant.notModified.duplicate());
+            return 304;
+        }
+
+        client.write(variant.response.duplicate());
+        if(variant.bodyPath != null) sendBody(variant, client);
+        return 200;
+    }
+
+    //big files skip the heap, transferTo where there's a plain socket channel, otherwise a mapped buffer
+    void sendBody(FileVariant variant, ClientSocket client) throws IOException {
+        try (FileChannel channel = FileChannel.open(variant.bodyPath, StandardOpenOption.READ)) {
+            long length = Math.min(variant.bodyLength, channel.size());
+            SocketChannel socketChannel = client.socket.getChannel();
+            if(client.connection != null || socketChannel == null) {
+                client.write(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+                return;
+            }
+
+            long position = 0;
+            while (position < length) {
+                long sent = channel.transferTo(position, length - position, socketChannel);
+                if(sent <= 0) break;
+                position += sent;
+            }
+        }
+    }
+
+    //drops cached entries when anything under root changes
+    void watch() throws IOException {
+        WatchService watcher = root.getFileSystem().newWatchService();
+        Map<WatchKey, Path> directories = new LinkedHashMap<>();
+        registerTree(watcher, root, directories);
+
+        watchThread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+
+                Path directory = directories.get(key);
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                        invalidateAll();
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path) event.context()).normalize();
+                    invalidate(changed);
+                    String changedName = changed.toString();
+                    if(changedName.endsWith(".gz")) invalidate(Path.of(changedName.substring(0, changedName.length() - 3)));
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        try {
+                            registerTree(watcher, changed, directories);
+                        } catch (IOException e) {
+                            Log.error(e, "Can't watch new directory %s.", changed);
+                        }
+                    }
+                }
+                if(!key.reset()) directories.remove(key);
+            }
+        }, "static-files-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    static void registerTree(WatchService watcher, Path start, Map<WatchKey, Path> directories) throws IOException {
+        try (var paths = Files.walk(start)) {
+            for(Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                directories.put(directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory.normalize());
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+//one connection to another node, records are length prefixed and the writer sends everything that queued up
+//while it was busy in a single write, so a burst costs one syscall and a quiet link adds no delay
+class MeshLink {
+    final TcpMesh mesh;
+    final String node;
+    final Socket socket;
+    final LinkedBlockingQueue<byte[]> queue;
+    final AtomicBoolean closed;
+    final Thread writer;
+    final Thread reader;
+
+    static final int MAX_BATCH = 1024;
+
+    public MeshLink(TcpMesh mesh, String node, Socket socket) {
+        this.mesh = mesh;
+        this.node = node;
+        this.socket = socket;
+        this.queue = new LinkedBlockingQueue<>(mesh.maxQueuedRecords);
+        this.closed = new AtomicBoolean(false);
+        this.writer = new Thread(this::runWriter, "mesh-writer-" + node);
+        this.reader = new Thread(this::runReader, "mesh-reader-" + node);
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+    }
+
+    void start() {
+        writer.start();
+        reader.start();
+    }
+
+    //a link that can't keep up drops records rather than holding a sender
+    boolean send(byte[] record) {
+        if(closed.get()) return false;
+        if(queue.offer(record)) return true;
+        TcpMesh.droppedRecords.increment();
+        return false;
+    }
+
+    void runWriter() {
+        ArrayList<byte[]> batch = new ArrayList<>();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            while (!closed.get()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for(byte[] record : batch) {
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+                out.flush();
+                TcpMesh.batches.increment();
+                TcpMesh.recordsOut.add(batch.size());
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            close();
+        }
+    }
+
+    void runReader() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            while (!closed.get()) {
+                byte[] record = TcpMesh.readRecord(in);
+                mesh.cluster.receive(node, record);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            close();
+        }
+    }
+
+    void close() {
+        if(!closed.compareAndSet(false, true)) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        writer.interrupt();
+        mesh.linkClosed(this);
+    }
+}
+
+//a full mesh of tcp links between a fixed list of nodes, the node whose name sorts first dials so each pair
+//has one link, and keeps redialing while it's down
+//every node shares a secret and both ends of a link prove they know it before any record is read, a socket that
+//can't is closed, so being able to reach the mesh port isn't enough to join the cluster or pose as one of its nodes
+//the links themselves aren't encrypted, they belong on a private network
+public class TcpMesh implements ClusterTransport {
+    final String self;
+    final int port;
+    final Map<String, InetSocketAddress> peers;
+    //the hmac key for the handshake
+    final SecretKeySpec secret;
+    final ConcurrentHashMap<String, MeshLink> links;
+    final List<Thread> dialers;
+    Cluster cluster;
+    ServerSocket server;
+    Thread acceptThread;
+    ThreadPoolExecutor handshakes;
+    volatile boolean running;
+    int maxQueuedRecords;
+    long retryInterval;
+
+    static final int MAX_RECORD_LENGTH = 32 * 1024 * 1024;
+    static final int NONCE_LENGTH = 32;
+    static final int MAC_LENGTH = 32;
+    static final int MAX_NODE_NAME = 255;
+    //before the other side has proven itself it only gets to make us read a handshake's worth
+    static final int MAX_HANDSHAKE_RECORD = NONCE_LENGTH + MAC_LENGTH + MAX_NODE_NAME;
+    static final int HANDSHAKE_TIMEOUT = 5000;
+    //accepted sockets past this many at once are refused rather than queued behind ones that may never answer
+    static final int MAX_HANDSHAKES = 16;
+    static final SecureRandom random = new SecureRandom();
+
+    static final LongAdder recordsOut = Metrics.shared.counter("cluster_records_out_total");
+    static final LongAdder batches = Metrics.shared.counter("cluster_link_writes_total");
+    static final LongAdder droppedRecords = Metrics.shared.counter("cluster_dropped_records_total");
+    static final LongAdder refusedLinks = Metrics.shared.counter("cluster_refused_links_total");
+
+    //peers maps the other nodes' names to where their mesh listens, it may include this node
+    //secret is the same on every node, see secretFile
+    public TcpMesh(String self, int port, Map<String, InetSocketAddress> peers, byte[] secret) {
+        if(secret == null || secret.length == 0) throw new IllegalArgumentException("The mesh needs a shared secret.");
+        if(self.getBytes(StandardCharsets.UTF_8).length > MAX_NODE_NAME) throw new IllegalArgumentException("Node name " + self + " is too long.");
+        this.self = self;
+        this.port = port;
+        this.peers = peers;
+        this.secret = new SecretKeySpec(secret, "HmacSHA256");
+        this.links = new ConcurrentHashMap<>();
+        this.dialers = new ArrayList<>();
+        this.cluster = null;
+        this.server = null;
+        this.acceptThread = null;
+        this.handshakes = null;
+        this.running = false;
+        this.maxQueuedRecords = 64 * 1024;
+        this.retryInterval = 1000;
+    }
+
+    @Override
+    public void start(Cluster cluster) throws IOException {
+        this.cluster = cluster;
+        running = true;
+        server = new ServerSocket(port);
+        handshakes = new ThreadPoolExecutor(0, MAX_HANDSHAKES, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                Thread.ofPlatform().name("mesh-handshake-", 0).daemon().factory());
+        acceptThread = new Thread(this::runAccept, "mesh-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        for(Map.Entry<String, InetSocketAddress> peer : peers.entrySet()) {
+            if(self.compareTo(peer.getKey()) >= 0) continue;
+            Thread dialer = new Thread(() -> runDialer(peer.getKey(), peer.getValue()), "mesh-dial-" + peer.getKey());
+            dialer.setDaemon(true);
+            dialer.start();
+            dialers.add(dialer);
+        }
+    }
+
+    static byte[] readRecord(DataInputStream in) throws IOException {
+        return readRecord(in, MAX_RECORD_LENGTH);
+    }
+
+    static byte[] readRecord(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > maxLength) throw new IOException("Bad record length " + length + ".");
+        byte[] record = new byte[length];
+        in.readFully(record);
+        return record;
+    }
+
+    //read from a file so the secret isn't on the command line, a trailing newline isn't part of it
+    static byte[] secretFile(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        int length = bytes.length;
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) length--;
+        byte[] secret = Arrays.copyOf(bytes, length);
+        Arrays.fill(bytes, (byte) 0);
+        return secret;
+    }
+
+    static void writeRecord(DataOutputStream out, byte[]... parts) throws IOException {
+        int length = 0;
+        for(byte[] part : parts) {
+            length += part.length;
+        }
+        out.writeInt(length);
+        for(byte[] part : parts) {
+            out.write(part);
+        }
+        out.flush();
+    }
+
+    static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    //the label keeps a dialer's proof from being replayed as an acceptor's and the other way round
+    byte[] proof(String label, byte[] theirNonce, byte[] ourNonce, String node) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(label.getBytes(StandardCharsets.UTF_8));
+            mac.update(theirNonce);
+            mac.update(ourNonce);
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't compute the mesh handshake.", e);
+        }
+    }
+
+    //the acceptor sends a nonce, the dialer answers with its own, a proof over both and its name, and the acceptor
+    //proves itself back over them the other way round, returns the dialer's name
+    //streams aren't buffered here so nothing the link should read is taken early
+    String acceptHandshake(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        byte[] challenge = nonce();
+        writeRecord(out, challenge);
+        byte[] hello = readRecord(in, MAX_HANDSHAKE_RECORD);
+        if(hello.length <= NONCE_LENGTH + MAC_LENGTH) throw new IOException("Bad mesh hello.");
+        byte[] nonce = Arrays.copyOfRange(hello, 0, NONCE_LENGTH);
+        String node = new String(hello, NONCE_LENGTH + MAC_LENGTH, hello.length - NONCE_LENGTH - MAC_LENGTH, StandardCharsets.UTF_8);
+        //only a node that sorts before this one dials it
+        if(!peers.containsKey(node) || self.compareTo(node) <= 0) throw new IOException("Unexpected node " + node + ".");
+        byte[] expected = proof("dial", challenge, nonce, node);
+        if(!MessageDigest.isEqual(expected, Arrays.copyOfRange(hello, NONCE_LENGTH, NONCE_LENGTH + MAC_LENGTH))) {
+            throw new IOException("Node " + node + " failed to authenticate.");
+        }
+        writeRecord(out, proof("accept", nonce, challenge, self));
+        return node;
+    }
+
+    void dialHandshake(Socket socket, String node) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        byte[] challenge = readRecord(in, MAX_HANDSHAKE_RECORD);
+        if(challenge.length != NONCE_LENGTH) throw new IOException("Bad mesh challenge.");
+        byte[] nonce = nonce();
+        writeRecord(out, nonce, proof("dial", challenge, nonce, self), self.getBytes(StandardCharsets.UTF_8));
+        if(!MessageDigest.isEqual(proof("accept", nonce, challenge, node), readRecord(in, MAX_HANDSHAKE_RECORD))) {
+            throw new IOException("Node " + node + " failed to authenticate.");
+        }
+    }
+
+    //each handshake gets its own thread so a peer that connects and stays silent doesn't hold up the others
+    void runAccept() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if(!running) return;
+                Log.warn("Mesh accept failed: %s", e.getMessage());
+                continue;
+            }
+            try {
+                handshakes.execute(() -> accept(socket));
+            } catch (RejectedExecutionException e) {
+                refuse(socket, "too many handshakes");
+            }
+        }
+    }
+
+    void accept(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            String node = acceptHandshake(socket);
+            socket.setSoTimeout(0);
+            if(!running) throw new IOException("Mesh stopped.");
+            open(node, socket);
+        } catch (IOException e) {
+            refuse(socket, e.getMessage());
+        }
+    }
+
+    void refuse(Socket socket, String reason) {
+        if(running) {
+            refusedLinks.increment();
+            Log.warn("Mesh accept failed: %s", reason);
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    void runDialer(String node, InetSocketAddress address) {
+        while (running) {
+            MeshLink link = links.get(node);
+            if(link == null) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(address, (int) Math.max(retryInterval, 100));
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                    dialHandshake(socket, node);
+                    socket.setSoTimeout(0);
+                    open(node, socket);
+                } catch (IOException e) {
+                    Log.debug("Can't reach node %s: %s", node, e.getMessage());
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+            try {
+                Thread.sleep(retryInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    //a new link replaces one the other side gave up on, its peers are dropped and announced again by the sync
+    void open(String node, Socket socket) {
+        MeshLink old = links.get(node);
+        if(old != null) old.close();
+        MeshLink link = new MeshLink(this, node, socket);
+        links.put(node, link);
+        link.start();
+        cluster.nodeUp(node);
+    }
+
+    void linkClosed(MeshLink link) {
+        if(links.remove(link.node, link)) cluster.nodeDown(link.node);
+    }
+
+    @Override
+    public boolean send(String node, byte[] record) {
+        MeshLink link = links.get(node);
+        return link != null && link.send(record);
+    }
+
+    @Override
+    public Collection<String> nodes() {
+        return links.keySet();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if(server != null) server.close();
+        } catch (IOException ignored) {}
+        if(handshakes != null) handshakes.shutdownNow();
+        for(Thread dialer : dialers) {
+            dialer.interrupt();
+        }
+        for(MeshLink link : links.values()) {
+            link.close();
+        }
+    }
+}
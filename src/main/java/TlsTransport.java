@@ -0,0 +1,222 @@
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.*;
+
+//tls for one non-blocking connection, the event loop reads ciphertext into netIn and this unwraps it into the connection's
+//read buffer, outbound frames stay plaintext in the queue until flush wraps them into netOut
+//handshake messages are processed on the executor, the loop only moves bytes and never waits on a signature
+public class TlsTransport {
+    final SSLEngine engine;
+    final Executor tasks;
+    final int packetSize;
+    final long started;
+    //from the shared pool like the read buffer, netIn and netOut are kept ready for writing into between calls
+    ByteBuffer netIn;
+    ByteBuffer netOut;
+    boolean tasksRunning;
+    boolean handshakeDone;
+
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    static final LongAdder fullHandshakes = Metrics.shared.counter("tls_handshakes_total", "resumed", "false");
+    static final LongAdder resumedHandshakes = Metrics.shared.counter("tls_handshakes_total", "resumed", "true");
+    static final LongAdder failedHandshakes = Metrics.shared.counter("tls_handshake_failures_total");
+    static final Histogram fullHandshakeTime = Metrics.shared.histogram("tls_handshake_seconds", "resumed", "false");
+    static final Histogram resumedHandshakeTime = Metrics.shared.histogram("tls_handshake_seconds", "resumed", "true");
+
+    public TlsTransport(SSLEngine engine, Executor tasks) {
+        this.engine = engine;
+        this.tasks = tasks;
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        this.started = System.nanoTime();
+        this.netIn = BufferPool.shared.takeBuffer(packetSize);
+        this.netOut = BufferPool.shared.takeBuffer(packetSize);
+        this.tasksRunning = false;
+        this.handshakeDone = false;
+    }
+
+    int applicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    //a session that was created before this handshake started came out of the cache or a ticket
+    static boolean resumed(SSLSession session, long startedMillis) {
+        return session.getCreationTime() < startedMillis;
+    }
+
+    static void countHandshake(SSLSession session, long startedNanos) {
+        long elapsed = System.nanoTime() - startedNanos;
+        if(resumed(session, System.currentTimeMillis() - elapsed / 1_000_000)) {
+            resumedHandshakes.increment();
+            resumedHandshakeTime.record(elapsed);
+            return;
+        }
+        fullHandshakes.increment();
+        fullHandshakeTime.record(elapsed);
+    }
+
+    //unwraps whatever is in netIn and hands the plaintext to the connection's handler
+    void unwrap(NioConnection connection) throws IOException {
+        netIn.flip();
+        try {
+            while (!connection.closed && !tasksRunning && !connection.readsPaused) {
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, connection.readBuffer);
+                } catch (SSLException e) {
+                    if(!handshakeDone) failedHandshakes.increment();
+                    throw e;
+                }
+                if(result.bytesProduced() > 0) connection.deliver();
+                if(connection.closed) return;
+
+                switch (result.getStatus()) {
+                    case CLOSED -> {
+                        //the peer said close_notify, whatever is queued still goes out before ours
+                        connection.close();
+                        return;
+                    }
+                    case BUFFER_UNDERFLOW -> {
+                        if(netIn.limit() == netIn.capacity() && netIn.position() == 0) throw new SSLException("Record too big.");
+                        return;
+                    }
+                    //the handler left more than a record's worth of room can hold
+                    case BUFFER_OVERFLOW -> connection.growReadBuffer(connection.readBuffer.position() + applicationBufferSize());
+                }
+                if(!handshake(connection, result.getHandshakeStatus())) return;
+                if(result.bytesConsumed() == 0 && result.bytesProduced() == 0 && result.getStatus() == SSLEngineResult.Status.OK) return;
+            }
+        } finally {
+            if(!connection.closed) netIn.compact();
+        }
+    }
+
+    //false if the handshake has to wait for tasks or for the socket to take what's been wrapped
+    boolean handshake(NioConnection connection, SSLEngineResult.HandshakeStatus status) throws IOException {
+        switch (status) {
+            case NEED_TASK -> {
+                runTasks(connection);
+                return false;
+            }
+            case NEED_WRAP -> {
+                connection.flush();
+                return !connection.closed && engine.getHandshakeStatus() != NEED_WRAP;
+            }
+            case FINISHED -> {
+                handshakeDone = true;
+                countHandshake(engine.getSession(), started);
+                //frames queued while handshaking can go now
+                connection.scheduleFlush();
+            }
+        }
+        return true;
+    }
+
+    //reads pause while the executor works through the handshake, the loop picks up where it left off after
+    void runTasks(NioConnection connection) {
+        tasksRunning = true;
+        SelectionKey key = connection.key;
+        if(key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        try {
+            tasks.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                connection.loop.execute(() -> resume(connection));
+            });
+        } catch (RejectedExecutionException e) {
+            //the server is stopping, a handshake that hasn't finished by now won't be
+            connection.closeNow();
+        }
+    }
+
+    void resume(NioConnection connection) {
+        tasksRunning = false;
+        if(connection.closed) return;
+        try {
+            if(connection.key.isValid()) connection.key.interestOps(connection.key.interestOps() | connection.readOps());
+            unwrap(connection);
+            if(!connection.closed) connection.flush();
+        } catch (IOException e) {
+            connection.closeNow();
+        }
+    }
+
+    //wraps handshake messages and queued frames and writes them out, false if the socket didn't take everything
+    boolean flush(NioConnection connection) throws IOException {
+        while (true) {
+            boolean wrapped = false;
+            while (netOut.remaining() >= packetSize && !tasksRunning && wrap(connection)) {
+                wrapped = true;
+            }
+            if(netOut.position() == 0) return true;
+
+            netOut.flip();
+            long written = connection.channel.write(netOut);
+            netOut.compact();
+            if(written > 0) connection.lastActivity = System.currentTimeMillis();
+            if(netOut.position() > 0) return false;
+            if(!wrapped) return true;
+        }
+    }
+
+    //one record of handshake or application data into netOut, false if there's nothing that can be sent yet
+    boolean wrap(NioConnection connection) throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        SSLEngineResult result;
+        try {
+            if(status == NEED_WRAP) {
+                result = engine.wrap(EMPTY, netOut);
+            } else if(status != NOT_HANDSHAKING || connection.outbound.isEmpty()) {
+                return false;
+            } else {
+                OutboundQueue outbound = connection.outbound;
+                int count = outbound.gather(connection.gatherCache);
+                result = engine.wrap(connection.gatherCache, 0, count, netOut);
+                Arrays.fill(connection.gatherCache, 0, count, null);
+                outbound.written(result.bytesConsumed());
+                outbound.completed();
+            }
+        } catch (SSLException e) {
+            if(!handshakeDone) failedHandshakes.increment();
+            throw e;
+        }
+        if(result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("Engine closed.");
+        if(result.getHandshakeStatus() == NEED_TASK) runTasks(connection);
+        if(result.getHandshakeStatus() == FINISHED) {
+            handshakeDone = true;
+            countHandshake(engine.getSession(), started);
+        }
+        return result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+    }
+
+    //best effort close_notify, the socket is closed right after whether it went out or not
+    void closeOutbound(NioConnection connection) {
+        engine.closeOutbound();
+        try {
+            while (!engine.isOutboundDone() && netOut.remaining() >= packetSize) {
+                if(engine.wrap(EMPTY, netOut).bytesProduced() == 0) break;
+            }
+            netOut.flip();
+            connection.channel.write(netOut);
+        } catch (IOException ignored) {}
+    }
+
+    void release() {
+        BufferPool.shared.give(netIn);
+        BufferPool.shared.give(netOut);
+        netIn = null;
+        netOut = null;
+    }
+}
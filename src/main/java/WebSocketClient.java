@@ -1,90 +1,255 @@
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-class WebsocketMessage {
-    int flags;
-    byte[] payload;
-
-    public WebsocketMessage(int flags, byte[] payload) {
-        this.flags = flags;
-        this.payload = payload;
-    }
-}
-
-public abstract class WebSocketClient extends ClientSocket{
+public abstract class WebSocketClient extends ClientSocket implements NioHandler {
 
     UUID id;
     final WebSocketServer wss;
     final Thread runningThread;
-    boolean isRunning;
-    Deque<WebsocketMessage> messageQueue;
+    volatile boolean isRunning;
+    volatile Room room;
+    //short id handed out by the registry while connected, -1 before that
+    volatile int sessionId;
+    //encoded frames waiting for the writer thread, or the event loop's queue in non-blocking mode
+    OutboundQueue outbound;
+    final AtomicBoolean draining;
+    volatile boolean closeRequested;
+
+    //null unless permessage-deflate was negotiated
+    PerMessageDeflate deflate;
+
+    //heartbeat, times are System.nanoTime()
+    volatile long lastRead;
+    volatile long pingSentAt;
+    //round trip of the last answered ping and a smoothed average like tcp's srtt, -1 until the first pong
+    volatile long rtt;
+    volatile long smoothedRtt;
+    volatile Timeout heartbeat;
+    //onClose or onLost runs once, whichever way the connection ends
+    final AtomicBoolean closeHandled;
+
+    //fragment reassembly, the buffer is only borrowed while a message spans several frames
+    byte opcodeCache;
+    boolean compressedCache;
+    MessageBuffer messageBuffer;
+
+    final FrameDecoder decoder;
+
+    //null runs handlers on the thread that read the frame, otherwise calls queued on the stripe and not yet run
+    final Stripe stripe;
+    final int dispatchLimit;
+    final AtomicInteger dispatched;
+    //set by the reader when it stopped for the handlers to catch up, whoever clears it wakes the reader
+    final AtomicBoolean readsBlocked;
 
     static final byte[] emptyPayload = new byte[0];
+    static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    //indexed by opcode, outbound frames are counted once per recipient
+    static final LongAdder[] framesIn = opcodeCounters("websocket_frames_in_total");
+    static final LongAdder[] bytesIn = opcodeCounters("websocket_bytes_in_total");
+    static final LongAdder[] framesOut = opcodeCounters("websocket_frames_out_total");
+    static final LongAdder[] bytesOut = opcodeCounters("websocket_bytes_out_total");
+    static final LongAdder overflows = Metrics.shared.counter("websocket_overflow_closes_total");
+    static final LongAdder evictions = Metrics.shared.counter("websocket_evictions_total");
+    static final Histogram pingRtt = Metrics.shared.histogram("websocket_ping_rtt_seconds");
+    static final int SEND_BUFFER_SIZE = 16 * 1024;
 
     public WebSocketClient(Socket clientSocket, UUID id, WebSocketServer wss) throws IOException {
         super(clientSocket);
         this.id = id;
         this.wss = wss;
-        this.runningThread = new Thread(this::runThread);
-        this.messageQueue = new ArrayDeque<>();
+        this.sessionId = -1;
+        this.runningThread = wss.readerThreads.newThread(this::runThread);
+        this.outbound = new OutboundQueue();
+        this.outbound.limit(wss.maxQueuedMessages, wss.maxQueuedBytes, wss.overflowPolicy);
+        this.draining = new AtomicBoolean(false);
+        this.closeRequested = false;
+        this.deflate = null;
+        this.lastRead = System.nanoTime();
+        this.pingSentAt = 0;
+        this.rtt = -1;
+        this.smoothedRtt = -1;
+        this.heartbeat = null;
+        this.closeHandled = new AtomicBoolean(false);
+        this.opcodeCache = 0;
+        this.compressedCache = false;
+        this.messageBuffer = null;
+        this.decoder = new FrameDecoder(wss.maxMessageSize, BufferPool.shared);
+        Dispatcher dispatcher = wss.dispatcher;
+        this.stripe = dispatcher == null ? null : dispatcher.stripe();
+        this.dispatchLimit = dispatcher == null ? 0 : dispatcher.maxPending;
+        this.dispatched = new AtomicInteger(0);
+        this.readsBlocked = new AtomicBoolean(false);
+        clientSocket.setTcpNoDelay(true);
+        //the http keep-alive timeout doesn't apply once upgraded
+        clientSocket.setSoTimeout(0);
     }
 
     public void run() {
         isRunning = true;
+        if(wss.pingInterval > 0) heartbeat = wss.timer.schedule(this::heartbeat, wss.pingInterval, TimeUnit.MILLISECONDS);
+        if(connection != null) {
+            connection.setHandler(this);
+            return;
+        }
         if(!runningThread.isAlive()) runningThread.start();
     }
 
     public void stop() {
-        if(runningThread.isAlive()) isRunning = false;
+        if(runningThread.isAlive() || connection != null) isRunning = false;
     }
 
-    byte readByte() throws IOException, WebsocketException {
-        int b = in.read();
-        if(b == -1) throw new WebsocketException("Reached End of InputStream");
-        return (byte) b;
+    @Override
+    void adopt(ClientSocket other) {
+        super.adopt(other);
+        if(connection == null) return;
+        connection.outbound.limit(wss.maxQueuedMessages, wss.maxQueuedBytes, wss.overflowPolicy);
+        outbound = connection.outbound;
     }
 
-    byte[] readMessage() throws IOException, WebsocketException {
-        int length = readByte();
-        if((length & 0x80) == 0) throw new WebsocketException("Not Encrypted.");
-
-        length &= 0x7f;
-        if(length == 127) throw new WebsocketException("Way too long frame Length.");
-        if(length == 126) length = ((readByte() << 8) | (readByte() & 0xff)) & 0xffff;
-        byte[] mask = new byte[] {readByte(), readByte(), readByte(), readByte()};
+    long queuedBytes() {
+        return outbound.queuedBytes();
+    }
 
-        byte[] payload = new byte[length];
-        for (int i = 0; i < length; i++) {
-            payload[i] = (byte) (readByte() ^ mask[i & 0x3]);
+    //frame may be shared with other clients, so it is only ever read
+    void sendFrame(ByteBuffer... frame) {
+        if(closeRequested) return;
+        countOut(frame);
+        if(!outbound.offer(frame)) {
+            overflow();
+            return;
         }
-        return payload;
+        flushOutbound();
     }
 
     void sendMessage(int flags, byte[] payload) throws IOException {
-        messageQueue.add(new WebsocketMessage(flags, payload));
-        if(messageQueue.size() > 1) return;
+        if(sendCompressed(flags, payload)) return;
+        sendFrame(FrameEncoder.header(flags, payload.length), ByteBuffer.wrap(payload));
+    }
 
-        while (!messageQueue.isEmpty()) {
-            WebsocketMessage msg = messageQueue.peek();
-            int payloadLength = msg.payload.length;
+    //false if the message should go out as is
+    boolean sendCompressed(int flags, byte[] payload) {
+        PerMessageDeflate deflate = this.deflate;
+        if(deflate == null || (flags & 0x08) != 0 || !deflate.compresses(payload.length)) return false;
+        //with context takeover the frames have to be queued in the order they were compressed
+        synchronized (deflate) {
+            byte[] compressed = deflate.compress(payload);
+            if(compressed == null) return false;
+            sendFrame(FrameEncoder.header(flags | 0x40, compressed.length), ByteBuffer.wrap(compressed));
+            return true;
+        }
+    }
 
-            out.write(msg.flags);
-            int length = payloadLength > 125 ? 126 : payloadLength;
-            out.write(length);
+    static LongAdder[] opcodeCounters(String name) {
+        String[] opcodes = {"continuation", "text", "binary", "close", "ping", "pong"};
+        LongAdder[] counters = new LongAdder[16];
+        for (int i = 0; i < counters.length; i++) {
+            String opcode = i < 3 ? opcodes[i] : i >= 8 && i < 11 ? opcodes[i - 5] : "reserved";
+            counters[i] = Metrics.shared.counter(name, "opcode", opcode);
+        }
+        return counters;
+    }
 
-            if (length == 126) {
-                out.write(payloadLength >> 8);
-                out.write(payloadLength);
-            }
+    //payload bytes, the header is the first buffer of every frame
+    static void countOut(ByteBuffer[] frame) {
+        ByteBuffer header = frame[0];
+        int opcode = header.get(header.position()) & 0xf;
+        int lengthCode = header.get(header.position() + 1) & 0x7f;
+        framesOut[opcode].increment();
+        bytesOut[opcode].add(OutboundQueue.length(frame) - (lengthCode == 127 ? 10 : lengthCode == 126 ? 4 : 2));
+    }
 
-            for (int i = 0; i < payloadLength; i++) {
-                out.write(msg.payload[i]);
-            }
+    void flushOutbound() {
+        if(connection != null) {
+            connection.scheduleFlush();
+            return;
+        }
+        scheduleDrain();
+    }
+
+    //slow consumer, drop what it hasn't read yet and close with the policy's code
+    void overflow() {
+        Log.warn("%s: Outbound queue full.", id);
+        overflows.increment();
+        outbound.clear();
+        sendClose(wss.overflowPolicy.closeCode);
+        isRunning = false;
+        try {
+            close();
+        } catch (IOException e) {
+            Log.error(e, "%s: Close failed.", id);
+        }
+    }
+
+    void scheduleDrain() {
+        if(!draining.compareAndSet(false, true)) return;
+        try {
+            wss.writerPool.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            //the server was drained and let its writers go, nothing queued now will be sent
+            outbound.clear();
+            try {
+                super.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    //only one writer at a time, queued frames are coalesced into the send buffer so small ones share a write
+    //the buffer is only held while draining, idle clients don't keep one
+    void drain() {
+        byte[] sendBuffer = BufferPool.shared.take(SEND_BUFFER_SIZE);
+        try {
+            do {
+                int pending = 0;
+                ByteBuffer[] frame;
+                while ((frame = outbound.poll()) != null) {
+                    for(ByteBuffer buffer : frame) {
+                        while (buffer.hasRemaining()) {
+                            if(pending == sendBuffer.length) {
+                                out.write(sendBuffer, 0, pending);
+                                pending = 0;
+                            }
+                            int length = Math.min(buffer.remaining(), sendBuffer.length - pending);
+                            buffer.get(sendBuffer, pending, length);
+                            pending += length;
+                        }
+                    }
+                }
+                if(pending > 0) out.write(sendBuffer, 0, pending);
+                draining.set(false);
+            } while (!outbound.isEmpty() && draining.compareAndSet(false, true));
+
+            if(closeRequested && outbound.isEmpty()) super.close();
+        } catch (IOException e) {
+            outbound.clear();
+            draining.set(false);
+            try {
+                super.close();
+            } catch (IOException ignored) {}
+        } finally {
+            BufferPool.shared.give(sendBuffer);
+        }
+    }
 
-            messageQueue.poll();
+    //closes once everything queued before this has been flushed
+    @Override
+    void close() throws IOException {
+        closeRequested = true;
+        if(connection != null) {
+            super.close();
+            return;
         }
+        scheduleDrain();
     }
 
     void sendText(String text) throws IOException {
@@ -95,8 +260,182 @@ public abstract class WebSocketClient extends ClientSocket{
         sendMessage(0x82, bytes);
     }
 
-    void sendClose(int reason) throws IOException {
-        sendMessage(0x88, new byte[] {(byte) (reason >> 8), (byte) reason});
+    //ignores the queue limits so the close still gets out to a slow consumer
+    void sendClose(int reason) {
+        if(closeRequested) return;
+        ByteBuffer[] frame = {FrameEncoder.header(0x88, 2), ByteBuffer.wrap(new byte[] {(byte) (reason >> 8), (byte) reason})};
+        countOut(frame);
+        outbound.add(frame);
+        flushOutbound();
+    }
+
+    //runs on the heartbeat timer, pings a connection that went quiet and evicts it if nothing comes back in time
+    void heartbeat() {
+        if(!isRunning || closeRequested || wss.pingInterval <= 0) return;
+        long now = System.nanoTime();
+        long pingInterval = TimeUnit.MILLISECONDS.toNanos(wss.pingInterval);
+        long pongTimeout = TimeUnit.MILLISECONDS.toNanos(wss.pongTimeout);
+
+        //anything read after the ping proves the peer is still there, not just the pong
+        long sent = pingSentAt;
+        if(sent != 0 && lastRead - sent < 0) {
+            long waited = now - sent;
+            if(waited >= pongTimeout) {
+                evict();
+                return;
+            }
+            heartbeat = wss.timer.schedule(this::heartbeat, pongTimeout - waited, TimeUnit.NANOSECONDS);
+            return;
+        }
+        pingSentAt = 0;
+
+        long idle = now - lastRead;
+        if(idle < pingInterval) {
+            heartbeat = wss.timer.schedule(this::heartbeat, pingInterval - idle, TimeUnit.NANOSECONDS);
+            return;
+        }
+        pingSentAt = now;
+        sendFrame(FrameEncoder.header(0x89, 8), ByteBuffer.allocate(8).putLong(0, now));
+        heartbeat = wss.timer.schedule(this::heartbeat, pongTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    //a pong echoes the ping's payload, which is the time it was sent
+    void measureRtt(byte[] payload, int length) {
+        if(length != 8) return;
+        long now = System.nanoTime();
+        long sample = now - ByteBuffer.wrap(payload).getLong(0);
+        //unsolicited pongs carry whatever the client likes
+        if(sample < 0 || sample > TimeUnit.MILLISECONDS.toNanos(wss.pingInterval + wss.pongTimeout)) return;
+        rtt = sample;
+        pingRtt.record(sample);
+        long smoothed = smoothedRtt;
+        smoothedRtt = smoothed < 0 ? sample : smoothed + (sample - smoothed) / 8;
+    }
+
+    //milliseconds, -1 until a ping has been answered
+    double rttMillis() {
+        long rtt = this.rtt;
+        return rtt < 0 ? -1 : rtt / 1e6;
+    }
+
+    double smoothedRttMillis() {
+        long smoothedRtt = this.smoothedRtt;
+        return smoothedRtt < 0 ? -1 : smoothedRtt / 1e6;
+    }
+
+    //a half-open connection never errors on its own, so it's closed and the peers are told it went away
+    void evict() {
+        if(connection != null && !connection.loop.inLoop()) {
+            connection.loop.execute(this::evict);
+            return;
+        }
+        if(!isRunning) return;
+        Log.info("%s: No answer to ping, evicting.", id);
+        evictions.increment();
+        leave(1001);
+    }
+
+    //the server is draining, the client should reconnect to another node
+    void goAway() {
+        if(connection != null && !connection.loop.inLoop()) {
+            connection.loop.execute(this::goAway);
+            return;
+        }
+        if(!isRunning) return;
+        leave(1001);
+    }
+
+    //tells the peers it's gone now and closes once what's already queued has been sent
+    void leave(int closeCode) {
+        lost();
+        sendClose(closeCode);
+        isRunning = false;
+        unregister();
+        try {
+            close();
+        } catch (IOException e) {
+            Log.error(e, "%s: Close failed.", id);
+        }
+    }
+
+    //true once the socket itself is closed, not just asked to close after flushing
+    boolean isReleased() {
+        return socket.isClosed();
+    }
+
+    //drops whatever is still queued, for when waiting for it to flush took too long
+    void closeNow() {
+        outbound.clear();
+        if(connection != null) {
+            connection.closeNow();
+            return;
+        }
+        try {
+            super.close();
+        } catch (IOException e) {
+            Log.error(e, "%s: Close failed.", id);
+        }
+    }
+
+    void lost() {
+        if(!closeHandled.compareAndSet(false, true)) return;
+        try {
+            dispatch(this::onLost);
+        } catch (IOException e) {
+            Log.error(e, "%s: onLost failed.", id);
+        }
+    }
+
+    //queued behind any onClose or onLost still waiting on the stripe, so the handler sees the room the client was in
+    void unregister() {
+        if(stripe == null) {
+            wss.remove(this);
+            return;
+        }
+        dispatched.incrementAndGet();
+        stripe.execute(this, () -> wss.remove(this));
+    }
+
+    //handler calls go through here so they keep their order whichever thread ends up running them
+    void dispatch(ClientTask task) throws IOException {
+        if(stripe == null) {
+            task.run();
+            return;
+        }
+        dispatched.incrementAndGet();
+        stripe.execute(this, task);
+    }
+
+    //false if enough is queued that the reader should stop until the stripe catches up
+    boolean dispatchReady() {
+        if(stripe == null || dispatched.get() < dispatchLimit) return true;
+        readsBlocked.set(true);
+        //the stripe may have caught up before it could see the flag
+        if(dispatched.get() < dispatchLimit) {
+            readsBlocked.set(false);
+            return true;
+        }
+        Dispatcher.pauses.increment();
+        return false;
+    }
+
+    //runs on the stripe after every call
+    void dispatchDone() {
+        if(dispatched.decrementAndGet() > dispatchLimit / 2 || !readsBlocked.compareAndSet(true, false)) return;
+        if(connection != null) connection.resumeReads();
+        else LockSupport.unpark(runningThread);
+    }
+
+    //a dispatched handler threw, the connection is closed like an inline one would have been, calls already queued still run
+    void handlerFailed(Exception e) {
+        Log.error(e, "%s: Handler failed.", id);
+        sendClose(1011);
+        isRunning = false;
+        try {
+            close();
+        } catch (IOException closeFailed) {
+            Log.error(closeFailed, "%s: Close failed.", id);
+        }
     }
 
     abstract void onMessage(String msg) throws IOException;
@@ -105,101 +444,237 @@ public abstract class WebSocketClient extends ClientSocket{
     abstract void onPing() throws IOException;
     abstract void onPong() throws IOException;
 
-    void handleControlFrame(byte opcode, byte[] payload) throws IOException, WebsocketException {
+    //clients that return true get onMessageStart, onMessageChunk per frame and onMessageEnd instead of onMessage/onBytes
+    //chunks are raw bytes, text isn't decoded, and the array is only valid during the call
+    //a compressed message can only be inflated whole, so it arrives as a single chunk
+    boolean streamsMessages() {
+        return false;
+    }
+
+    //the connection ended without a close frame, dropped, errored or evicted, by default it's treated like one
+    void onLost() throws IOException {
+        onClose(emptyPayload);
+    }
+
+    void onMessageStart(byte opcode) throws IOException {}
+    void onMessageChunk(byte[] chunk, int offset, int length) throws IOException {}
+    void onMessageEnd() throws IOException {}
+
+    void handleControlFrame(byte opcode, byte[] payload, int length) throws IOException, WebsocketException {
         switch (opcode) {
             case 0x8:
-                onClose(payload);
+                if(closeHandled.compareAndSet(false, true)) {
+                    byte[] reason = stripe == null ? payload : Arrays.copyOf(payload, length);
+                    dispatch(() -> onClose(reason));
+                }
                 stop();
                 break;
             case 0x9:
-                onPing();
-                sendMessage(0x8A, emptyPayload);
+                dispatch(this::onPing);
+                sendMessage(0x8A, Arrays.copyOf(payload, length));
                 break;
             case 0xA:
-                onPong();
+                measureRtt(payload, length);
+                dispatch(this::onPong);
                 break;
             default:
                 throw new WebsocketException("Unknown control opcode.");
         }
     }
 
-    void handleNonControlFrame(byte opcode, byte[] payload) throws WebsocketException, IOException {
+    //shared payloads belong to a reused buffer, so binary messages get a copy of them
+    //text is decoded on the reading thread either way, only the handler is dispatched
+    //inline calls skip dispatch here so the common case doesn't make a task per message
+    void handleNonControlFrame(byte opcode, byte[] payload, int length, boolean shared) throws WebsocketException, IOException {
         switch (opcode) {
             case 0x1:
-                onMessage(new String(payload));
+                String text = new String(payload, 0, length, StandardCharsets.UTF_8);
+                if(stripe == null) onMessage(text);
+                else dispatch(() -> onMessage(text));
                 break;
             case 0x2:
-                onBytes(payload);
+                byte[] bytes = shared || length != payload.length ? Arrays.copyOf(payload, length) : payload;
+                if(stripe == null) onBytes(bytes);
+                else dispatch(() -> onBytes(bytes));
                 break;
             default:
                 throw new WebsocketException("Unknown non-control opcode.");
         }
     }
 
-    void runThread() {
+    void handleFrame(byte flags, byte[] payload, int length) throws IOException, WebsocketException {
+        lastRead = System.nanoTime();
+        boolean isFinal = (flags & 0x80) != 0;
+        byte opcode = (byte) (flags & 0xf);
+        framesIn[opcode].increment();
+        bytesIn[opcode].add(length);
+
+        //rsv1 marks the first frame of a compressed message, nothing uses the other two
+        boolean compressed = (flags & 0x40) != 0;
+        if((flags & 0x30) != 0) throw new WebsocketException("Reserved bits set.");
+        if(compressed && (deflate == null || opcode == 0 || (opcode & 0x8) != 0)) throw new WebsocketException("Unexpected compressed frame.");
+
+        if((opcode & 0x8) != 0) {
+            if(!isFinal) throw new WebsocketException("Fragmented control frame.");
+            handleControlFrame(opcode, payload, length);
+            return;
+        }
+        if(opcode != 0) {
+            if(opcodeCache != 0) throw new WebsocketException("Expected continuation frame.");
+            opcodeCache = opcode;
+            compressedCache = compressed;
+            if(streamsMessages()) dispatch(() -> onMessageStart(opcode));
+        } else if(opcodeCache == 0) {
+            throw new WebsocketException("Unexpected continuation frame.");
+        }
+
+        //a message in a single frame is used as is, fragments are appended to a pooled buffer
+        boolean streaming = streamsMessages() && !compressedCache;
+        if(streaming) {
+            streamChunk(payload, length);
+        } else if(!isFinal || messageBuffer != null) {
+            if(messageBuffer == null) messageBuffer = wss.messageBuffers.borrow();
+            messageBuffer.append(payload, 0, length);
+        }
+        if(!isFinal) return;
+
+        byte messageOpcode = opcodeCache;
+        MessageBuffer buffer = messageBuffer;
+        opcodeCache = 0;
+        messageBuffer = null;
         try {
-            try {
-                //listen loop
-                byte opcodeCache = 0;
-                List<byte[]> payloadCache = new ArrayList<>();
-
-                while (isRunning) {
-                    byte flags = readByte();
-                    boolean isFinal = (flags & 0x80) != 0;
-                    byte opcode = (byte) (flags & 0xf);
-                    byte[] payload = readMessage();
-
-                    if(!isFinal && opcode != 0) {
-                        opcodeCache = opcode;
-                        payloadCache.add(payload);
-                    } else if(!isFinal) {
-                        payloadCache.add(payload);
-                    } else if((opcode & 0x8) != 0){
-                        //do control frame
-                        handleControlFrame(opcode, payload);
-                        //System.out.printf("Control frame: %x", opcode);
-                    } else {
-                        opcodeCache = opcodeCache != 0 ? opcodeCache : opcode;
-                        payloadCache.add(payload);
-
-                        //concatenate fragments
-                        int totalLength = 0;
-                        for (byte[] bytes : payloadCache) {
-                            totalLength += bytes.length;
-                        }
+            if(streaming) {
+                dispatch(this::onMessageEnd);
+                return;
+            }
+            byte[] message = buffer != null ? buffer.bytes : payload;
+            int messageLength = buffer != null ? buffer.length : length;
+            boolean shared = buffer != null || decoder.pooled;
+            if(compressedCache) {
+                message = deflate.decompress(message, 0, messageLength, decoder.maxMessageLength);
+                messageLength = message.length;
+                shared = false;
+            }
+            if(streamsMessages()) {
+                streamChunk(message, messageLength);
+                dispatch(this::onMessageEnd);
+            } else {
+                handleNonControlFrame(messageOpcode, message, messageLength, shared);
+            }
+        } finally {
+            compressedCache = false;
+            if(buffer != null) wss.messageBuffers.release(buffer);
+        }
+    }
 
-                        byte[] totalPayload = new byte[totalLength];
+    //chunks are only valid during the call, so a dispatched one gets its own copy
+    void streamChunk(byte[] chunk, int length) throws IOException {
+        if(stripe == null) {
+            onMessageChunk(chunk, 0, length);
+            return;
+        }
+        byte[] copy = Arrays.copyOf(chunk, length);
+        dispatch(() -> onMessageChunk(copy, 0, copy.length));
+    }
 
-                        int startIndex = 0;
-                        for (byte[] bytes: payloadCache) {
-                            System.arraycopy(bytes, 0, totalPayload, startIndex, bytes.length);
-                            startIndex += bytes.length;
-                        }
+    void stopHeartbeat() {
+        Timeout heartbeat = this.heartbeat;
+        if(heartbeat != null) heartbeat.cancel();
+    }
+
+    //protocol errors that carry their own close code send it instead of the default one
+    void fail(WebsocketException e) {
+        Log.info("%s: %s", id, e.getMessage());
+        if(e.closeCode == 0 || !isRunning) return;
+        sendClose(e.closeCode);
+        isRunning = false;
+    }
 
-                        //do operation
-                        handleNonControlFrame(opcodeCache, totalPayload);
+    void shutdown() throws IOException {
+        if(isRunning) sendClose(2000);
+        isRunning = false;
 
-                        //reset
-                        opcodeCache = 0;
-                        payloadCache = new ArrayList<>();
-                    }
-                }
+        stopHeartbeat();
+        lost();
+        unregister();
+        if(deflate != null) deflate.release();
+        close();
+    }
 
-            } catch (WebsocketException e) {
-                System.out.println(e.getMessage());
+    @Override
+    public void onRead(NioConnection connection, ByteBuffer buffer) throws IOException {
+        try {
+            while (isRunning) {
+                //what's left in the buffer is delivered again when the stripe resumes reads
+                if(!dispatchReady()) {
+                    connection.pauseReads();
+                    return;
+                }
+                if(!decoder.decode(buffer)) return;
+                try {
+                    handleFrame((byte) decoder.flags, decoder.payload, decoder.length);
+                } finally {
+                    decoder.reset();
+                }
             }
+        } catch (WebsocketException e) {
+            fail(e);
+        }
+        shutdown();
+    }
 
+    @Override
+    public void onDisconnect(NioConnection connection) {
+        isRunning = false;
+        stopHeartbeat();
+        lost();
+        unregister();
+        if(deflate != null) deflate.release();
+        decoder.reset();
+    }
 
-            if(isRunning) sendClose(2000);
-            isRunning = false;
+    void runThread() {
+        //listen loop, reads in bulk and decodes as many frames as the buffer holds
+        ByteBuffer buffer = BufferPool.shared.takeBuffer(READ_BUFFER_SIZE).flip();
+        try {
+            while (isRunning) {
+                //waiting here leaves the rest in the socket, so tcp slows the sender down instead of a queue growing
+                if(!dispatchReady()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                boolean complete;
+                if(decoder.hasHeader() && !buffer.hasRemaining()) {
+                    complete = decoder.readPayload(in);
+                } else if(!(complete = decoder.decode(buffer))) {
+                    buffer.compact();
+                    int length = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                    if(length == -1) throw new WebsocketException("Reached End of InputStream");
+                    buffer.position(buffer.position() + length).flip();
+                }
+                if(!complete) continue;
 
-            wss.clients.remove(id);
-            close();
+                try {
+                    handleFrame((byte) decoder.flags, decoder.payload, decoder.length);
+                } finally {
+                    decoder.reset();
+                }
+            }
 
+        } catch (WebsocketException e) {
+            fail(e);
+        } catch (IOException e) {
+            //closing the socket from the writer side is how a reader gets woken up
+            if(!closeRequested) Log.error(e, "%s: Read failed.", id);
+        }
+
+        decoder.reset();
+        BufferPool.shared.give(buffer);
+        try {
+            shutdown();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error(e, "%s: Close failed.", id);
         }
-        //System.out.println("END");
     }
 
 
@@ -1,76 +1,457 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+//one message going to many clients, framed once plain and at most once compressed for clients that can share it
+class SharedMessage {
+    final int flags;
+    final byte[] payload;
+    final ByteBuffer plain;
+    ByteBuffer compressed;
+    boolean compressTried;
+
+    public SharedMessage(int flags, byte[] payload) {
+        this.flags = flags;
+        this.payload = payload;
+        this.plain = WebSocketServer.sharedFrame(flags, payload);
+        this.compressed = null;
+        this.compressTried = false;
+    }
+
+    void sendTo(WebSocketClient client) {
+        PerMessageDeflate deflate = client.deflate;
+        //with context takeover every client's stream is different, so its copy is compressed on its own
+        if(deflate != null && !deflate.sharesFrames() && client.sendCompressed(flags, payload)) return;
+        client.sendFrame(frameFor(client));
+    }
+
+    ByteBuffer frameFor(WebSocketClient client) {
+        PerMessageDeflate deflate = client.deflate;
+        if(deflate == null || !deflate.sharesFrames() || !deflate.compresses(payload.length)) return plain.duplicate();
+        if(!compressTried) {
+            compressTried = true;
+            byte[] bytes = deflate.compress(payload);
+            if(bytes != null) compressed = FrameEncoder.frame(flags | 0x40, bytes).asReadOnlyBuffer();
+        }
+        return compressed != null ? compressed.duplicate() : plain.duplicate();
+    }
+}
 
 public class WebSocketServer {
-    Map<UUID, WebSocketClient> clients;
+    final ClientRegistry clients;
     WSCFactory clientFactory;
+    final ThreadFactory readerThreads;
+    final ExecutorService writerPool;
+    int maxQueuedMessages;
+    long maxQueuedBytes;
+    OverflowPolicy overflowPolicy;
+    //smallest message that gets compressed, negative turns permessage-deflate off
+    int deflateThreshold;
+    boolean deflateContextTakeover;
+    final ZipPool zipPool;
+    //largest message a client may send, after inflating, bigger ones are closed with 1009
+    int maxMessageSize;
+    final MessageBufferPool messageBuffers;
+    //milliseconds a connection can be quiet before it's pinged, and then how long it has to answer, 0 turns pings off
+    long pingInterval;
+    long pongTimeout;
+    final HashedWheelTimer timer;
+    //null runs handlers inline on the thread that read the frame, lowest latency but a slow one holds up its reader
+    Dispatcher dispatcher;
+    //null when this is the only node
+    Cluster cluster;
+    //set for good once drain starts, upgrades are refused from then on
+    volatile boolean draining;
     Random rand;
 
+    static final Histogram upgradeTime = Metrics.shared.histogram("websocket_upgrade_seconds");
+    static final Histogram broadcastTime = Metrics.shared.histogram("websocket_broadcast_seconds");
+    static final LongAdder broadcastRecipients = Metrics.shared.counter("websocket_broadcast_recipients_total");
+    static final LongAdder drainGoAways = Metrics.shared.counter("websocket_drain_goaways_total");
+    static final LongAdder drainForced = Metrics.shared.counter("websocket_drain_forced_closes_total");
+    static final Histogram drainTime = Metrics.shared.histogram("websocket_drain_seconds");
+    static final long DRAIN_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    static final long CLOSE_FLUSH_MILLIS = 1000;
+    //one wheel thread for every server in the process, it outlives them since its thread is a daemon that only starts when needed
+    static final HashedWheelTimer heartbeats = new HashedWheelTimer("ws-heartbeat", 100, TimeUnit.MILLISECONDS, 512);
+
+    //the gauges are registered once and sum over every server in the process, a server is counted until it's released
+    static final Set<WebSocketServer> servers = ConcurrentHashMap.newKeySet();
+
+    //summed over the clients when /metrics is read, so sending never touches them
+    static {
+        Metrics.shared.gauge("websocket_connections", () -> sum(server -> server.clients.size()));
+        Metrics.shared.gauge("websocket_outbound_queued_bytes", () -> sum(server -> server.sumClients(WebSocketClient::queuedBytes)));
+        Metrics.shared.gauge("websocket_outbound_queued_frames", () -> sum(server -> server.sumClients(client -> client.outbound.size())));
+        Metrics.shared.gauge("websocket_outbound_dropped_frames", () -> sum(server -> server.sumClients(client -> client.outbound.droppedFrames())));
+        Metrics.shared.gauge("websocket_draining", () -> sum(server -> server.draining ? 1 : 0));
+        Metrics.shared.gauge("websocket_dispatch_queued", () -> sum(server -> {
+            Dispatcher dispatcher = server.dispatcher;
+            return dispatcher == null ? 0 : dispatcher.queued();
+        }));
+    }
+
     final static byte[] upgradeResponse = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: websocket\r\nSec-Websocket-Accept: ".getBytes(StandardCharsets.UTF_8);
+    final static byte[] extensionsHeader = "\r\nSec-WebSocket-Extensions: ".getBytes(StandardCharsets.UTF_8);
     final static byte[] endResponse = "\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+    final static byte[] keyGuid = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.ISO_8859_1);
+    final static byte[] base64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.ISO_8859_1);
+    static final int ACCEPT_LENGTH = 28;
+
+    //getInstance looks the provider up every time, a digest per thread skips that
+    static final MessageDigest sha1Prototype = newSha1();
+    static final ThreadLocal<MessageDigest> sha1Cache = ThreadLocal.withInitial(WebSocketServer::newSha1);
 
     public WebSocketServer(WSCFactory clientFactory) {
+        this(clientFactory, Thread::new);
+    }
+
+    //e.g. Thread.ofVirtual().factory() to run each blocking reader loop on a virtual thread
+    public WebSocketServer(WSCFactory clientFactory, ThreadFactory readerThreads) {
         this.clientFactory = clientFactory;
-        clients = new HashMap<>();
+        this.readerThreads = readerThreads;
+        this.writerPool = Executors.newCachedThreadPool(readerThreads);
+        maxQueuedMessages = 1024;
+        maxQueuedBytes = 8 * 1024 * 1024;
+        overflowPolicy = OverflowPolicy.CLOSE_TRY_AGAIN_LATER;
+        deflateThreshold = 256;
+        deflateContextTakeover = false;
+        zipPool = new ZipPool(64, 6);
+        maxMessageSize = 16 * 1024 * 1024;
+        messageBuffers = new MessageBufferPool(64, 16 * 1024, 1024 * 1024);
+        pingInterval = 30000;
+        pongTimeout = 10000;
+        timer = heartbeats;
+        dispatcher = null;
+        clients = new ClientRegistry();
+        cluster = null;
+        draining = false;
         rand = new Random();
+
+        servers.add(this);
     }
 
-    static byte[] encodeKey(String key) throws HttpParseException {
+    //applies to clients upgraded after this call
+    public void setOutboundLimit(int maxMessages, long maxBytes, OverflowPolicy policy) {
+        this.maxQueuedMessages = maxMessages;
+        this.maxQueuedBytes = maxBytes;
+        this.overflowPolicy = policy;
+    }
+
+    //context takeover compresses better but keeps a deflater and inflater alive per connection instead of borrowing them
+    public void setPerMessageDeflate(int threshold, boolean contextTakeover) {
+        this.deflateThreshold = threshold;
+        this.deflateContextTakeover = contextTakeover;
+    }
+
+    //clients already connected pick the new values up at their next heartbeat
+    public void setHeartbeat(long pingInterval, long pongTimeout) {
+        this.pingInterval = pingInterval;
+        this.pongTimeout = pongTimeout;
+    }
+
+    //applies to clients upgraded after this call
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = Math.min(maxMessageSize, FrameDecoder.MAX_PAYLOAD_LENGTH);
+    }
+
+    //applies to clients upgraded after this call, 0 stripes goes back to running handlers inline
+    //the old stripes are stopped once what's queued on them has run, their clients run handlers on their own threads from then on
+    public void setDispatch(int stripes, int maxPending) {
+        Dispatcher old = dispatcher;
+        this.dispatcher = stripes > 0 ? new Dispatcher("ws-dispatch", stripes, maxPending) : null;
+        if(old != null) old.stop();
+    }
+
+    //sends, broadcasts and the client factory's events reach peers on the other nodes from now on
+    public void joinCluster(Cluster cluster) throws IOException {
+        this.cluster = cluster;
+        cluster.attach(this);
+        cluster.start();
+    }
+
+    //every java platform has to have SHA-1
+    static MessageDigest newSha1() {
         try {
-            byte[] hexString = MessageDigest.getInstance("SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8));
-            return Base64.getEncoder().encodeToString(hexString).getBytes(StandardCharsets.UTF_8);
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-1.", e);
+        }
+    }
+
+    //virtual threads come and go with their requests so one kept per thread would never be used twice, they clone instead
+    static MessageDigest sha1() {
+        if(!Thread.currentThread().isVirtual()) return sha1Cache.get();
+        try {
+            return (MessageDigest) sha1Prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return newSha1();
+        }
+    }
+
+    static byte[] encodeKey(String key) throws HttpParseException {
+        byte[] accept = new byte[ACCEPT_LENGTH];
+        writeAccept(key, accept, 0);
+        return accept;
+    }
+
+    //Sec-WebSocket-Accept straight into dst, returns the position after it
+    //the hash lands in the last 20 of the 28 bytes and is encoded front to back, each group is written before the next one it reads
+    static int writeAccept(String key, byte[] dst, int offset) throws HttpParseException {
+        MessageDigest digest = sha1();
+        //header values are latin-1, so every char is one byte
+        //a real key is 24 chars, it's staged where the accept goes so the digest takes it in one update
+        if(key.length() <= ACCEPT_LENGTH) {
+            for (int i = 0; i < key.length(); i++) {
+                dst[offset + i] = (byte) key.charAt(i);
+            }
+            digest.update(dst, offset, key.length());
+        } else {
+            for (int i = 0; i < key.length(); i++) {
+                digest.update((byte) key.charAt(i));
+            }
+        }
+        digest.update(keyGuid);
+        int hash = offset + ACCEPT_LENGTH - 20;
+        try {
+            digest.digest(dst, hash, 20);
+        } catch (DigestException e) {
             throw new HttpParseException(500, "Cannot compute accept key.");
         }
+
+        int position = offset;
+        for (int i = 0; i < 18; i += 3) {
+            int bits = (dst[hash + i] & 0xFF) << 16 | (dst[hash + i + 1] & 0xFF) << 8 | dst[hash + i + 2] & 0xFF;
+            dst[position++] = base64[bits >>> 18];
+            dst[position++] = base64[bits >>> 12 & 0x3F];
+            dst[position++] = base64[bits >>> 6 & 0x3F];
+            dst[position++] = base64[bits & 0x3F];
+        }
+        int bits = (dst[hash + 18] & 0xFF) << 16 | (dst[hash + 19] & 0xFF) << 8;
+        dst[position++] = base64[bits >>> 18];
+        dst[position++] = base64[bits >>> 12 & 0x3F];
+        dst[position++] = base64[bits >>> 6 & 0x3F];
+        dst[position++] = '=';
+        return position;
+    }
+
+    //the whole 101 in one array, so it goes out in one write
+    static byte[] upgradeResponse(String key, String extensions) throws HttpParseException {
+        int length = upgradeResponse.length + ACCEPT_LENGTH + endResponse.length;
+        if(extensions != null) length += extensionsHeader.length + extensions.length();
+        byte[] response = new byte[length];
+        System.arraycopy(upgradeResponse, 0, response, 0, upgradeResponse.length);
+        int position = writeAccept(key, response, upgradeResponse.length);
+        if(extensions != null) {
+            System.arraycopy(extensionsHeader, 0, response, position, extensionsHeader.length);
+            position += extensionsHeader.length;
+            for (int i = 0; i < extensions.length(); i++) {
+                response[position++] = (byte) extensions.charAt(i);
+            }
+        }
+        System.arraycopy(endResponse, 0, response, position, endResponse.length);
+        return response;
     }
 
-    void handleUpgrade(UUID id, ClientSocket clientSocket, Map<String, Set<String>> headers) throws HttpParseException, IOException {
-        //headers.forEach((key, value) -> System.out.println(key + ": " + value));
-        if(!headers.containsKey("Connection") || !headers.get("Connection").contains("Upgrade")) throw new HttpParseException(400, "Connection Header Bad.");
-        if(!headers.containsKey("Upgrade") || !headers.get("Upgrade").contains("websocket")) throw new HttpParseException(400, "Upgrade Header Bad.");
-        if(!headers.containsKey("Sec-WebSocket-Version") || !headers.get("Sec-WebSocket-Version").contains("13")) throw new HttpParseException(400, "Version Header Bad.");
-        if(!headers.containsKey("Sec-WebSocket-Key")) throw new HttpParseException(400, "No Websocket Key");
-        byte[] accept = WebSocketServer.encodeKey(headers.get("Sec-WebSocket-Key").toArray(String[]::new)[0]);
-        clientSocket.out.write(upgradeResponse);
-        clientSocket.out.write(accept);
-        clientSocket.out.write(endResponse);
+    void handleUpgrade(UUID id, ClientSocket clientSocket, HttpHeaders headers) throws HttpParseException, IOException {
+        long start = System.nanoTime();
+        if(draining) throw new HttpParseException(503, "Service Unavailable.");
+        if(!headers.contains("Connection", "Upgrade")) throw new HttpParseException(400, "Connection Header Bad.");
+        if(!headers.contains("Upgrade", "websocket")) throw new HttpParseException(400, "Upgrade Header Bad.");
+        if(!headers.contains("Sec-WebSocket-Version", "13")) throw new HttpParseException(400, "Version Header Bad.");
+        String key = headers.get("Sec-WebSocket-Key");
+        if(key == null) throw new HttpParseException(400, "No Websocket Key");
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(headers.get("Sec-WebSocket-Extensions"), this);
+        clientSocket.write(ByteBuffer.wrap(upgradeResponse(key, deflate == null ? null : deflate.response)));
         WebSocketClient wsc = clientFactory.build(clientSocket.socket, id, this);
+        wsc.deflate = deflate;
+        wsc.adopt(clientSocket);
         if(clients.containsKey(id)) wsc.sendClose(1000);
         clients.put(id, wsc);
+        if(cluster != null) cluster.peerUp(id);
         wsc.run();
+        upgradeTime.record(System.nanoTime() - start);
+        Log.info("%s connected.", id);
     }
 
-    void handleUpgrade(ClientSocket clientSocket, Map<String, Set<String>> headers) throws IOException, HttpParseException {
+    void handleUpgrade(ClientSocket clientSocket, HttpHeaders headers) throws IOException, HttpParseException {
         handleUpgrade(UUID.randomUUID(), clientSocket, headers);
     }
 
     void send(UUID id, String msg) throws IOException {
-        if(!clients.containsKey(id)) {
-            System.out.printf("no id %s", id);
+        WebSocketClient client = clients.get(id);
+        if(client == null) {
+            if(cluster != null && cluster.sendText(id, msg)) return;
+            Log.debug("No client %s.", id);
             return;
-        };
-        System.out.println("Sending " + msg);
-        clients.get(id).sendText(msg);
+        }
+        Log.debug("Sending %s", msg);
+        client.sendText(msg);
     }
 
-    void sendAll(String msg) throws IOException {
+    void join(String room, WebSocketClient client) {
+        clients.join(room, client);
+        if(cluster != null) cluster.peerRoom(client.id, room);
+    }
+
+    void remove(WebSocketClient client) {
+        if(clients.remove(client.id, client) && cluster != null) cluster.peerDown(client.id);
+    }
+
+    //frames the message once, every client gets a view of the same read-only buffer
+    static ByteBuffer sharedFrame(int flags, byte[] payload) {
+        return FrameEncoder.frame(flags, payload).asReadOnlyBuffer();
+    }
+
+    void broadcast(UUID except, int flags, byte[] payload) {
+        broadcastLocal(except, flags, payload);
+        //every other node gets the one record and fans it out to its own clients
+        if(cluster != null) cluster.broadcast(except, flags, payload);
+    }
+
+    void broadcastLocal(UUID except, int flags, byte[] payload) {
+        long start = System.nanoTime();
+        SharedMessage message = new SharedMessage(flags, payload);
+        int recipients = 0;
         for(WebSocketClient client : clients.values()) {
-            client.sendText(msg);
+            if(client.id.equals(except)) continue;
+            message.sendTo(client);
+            recipients++;
+        }
+        countBroadcast(recipients, start);
+    }
+
+    void broadcast(WebSocketClient[] targets, UUID except, int flags, byte[] payload) {
+        if(targets.length == 0) return;
+        long start = System.nanoTime();
+        SharedMessage message = new SharedMessage(flags, payload);
+        int recipients = 0;
+        for(WebSocketClient client : targets) {
+            if(client.id.equals(except)) continue;
+            message.sendTo(client);
+            recipients++;
         }
+        countBroadcast(recipients, start);
+    }
+
+    //time to frame and queue the message for everyone, not to deliver it
+    static void countBroadcast(int recipients, long start) {
+        broadcastTime.record(System.nanoTime() - start);
+        broadcastRecipients.add(recipients);
+    }
+
+    void sendRoom(String room, UUID except, String msg) throws IOException {
+        byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+        broadcast(clients.members(room), except, 0x81, payload);
+        if(cluster != null) cluster.broadcastRoom(room, except, 0x81, payload);
+    }
+
+    void sendAll(String msg) throws IOException {
+        broadcast(null, 0x81, msg.getBytes(StandardCharsets.UTF_8));
     }
 
     void sendElse(UUID id, String msg) throws IOException {
+        broadcast(id, 0x81, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //for rolling deploys, once the http server has stopped accepting
+    //every client gets 1001 (going away), at most closesPerSecond a second so they reconnect to the other nodes a few
+    //at a time instead of all at once, and the rate is raised if that wouldn't tell everyone within three quarters of
+    //the timeout, what's left of it is for their queues to flush, anything still open at the deadline is cut off
+    //a rate or timeout of 0 tells everyone at once, returns how many had to be cut off, the threads are released either way
+    public int drain(int closesPerSecond, long timeoutMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        draining = true;
+        List<WebSocketClient> leaving = new ArrayList<>(clients.values());
+        double rate = closesPerSecond <= 0 || timeoutMillis <= 0 ? 0 : Math.max(closesPerSecond, leaving.size() / (timeoutMillis * 0.75 / 1000));
+        long interval = rate == 0 ? 0 : (long) (1e9 / rate);
+        Log.info("Draining %d clients at %s.", leaving.size(), rate == 0 ? "once" : String.format("%.0f/s", rate));
+
+        long nextLog = start + DRAIN_LOG_INTERVAL;
+        for (int i = 0; i < leaving.size(); i++) {
+            long wait = start + i * interval - System.nanoTime();
+            if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            leaving.get(i).goAway();
+            drainGoAways.increment();
+            if(System.nanoTime() - nextLog >= 0) {
+                Log.info("Draining: %d of %d told to go away.", i + 1, leaving.size());
+                nextLog += DRAIN_LOG_INTERVAL;
+            }
+        }
+
+        //queued frames, the close frame last, and the handlers' onLost calls
+        int open;
+        while ((open = stillOpen(leaving)) > 0 || dispatcher != null && dispatcher.queued() > 0) {
+            if(System.nanoTime() - deadline >= 0) break;
+            if(System.nanoTime() - nextLog >= 0) {
+                Log.info("Draining: %d of %d still flushing.", open, leaving.size());
+                nextLog += DRAIN_LOG_INTERVAL;
+            }
+            Thread.sleep(10);
+        }
+        int forced = 0;
+        for(WebSocketClient client : leaving) {
+            if(client.isReleased()) continue;
+            client.closeNow();
+            forced++;
+        }
+        drainForced.add(forced);
+        long elapsed = System.nanoTime() - start;
+        drainTime.record(elapsed);
+        Log.info("Drained %d clients in %.2f s, %d cut off with frames still queued.", leaving.size(), elapsed / 1e9, forced);
+        release();
+        return forced;
+    }
+
+    static long sum(ToLongFunction<WebSocketServer> value) {
+        long sum = 0;
+        for(WebSocketServer server : servers) {
+            sum += value.applyAsLong(server);
+        }
+        return sum;
+    }
+
+    long sumClients(ToLongFunction<WebSocketClient> value) {
+        long sum = 0;
         for(WebSocketClient client : clients.values()) {
-            if(!client.id.equals(id)) client.sendText(msg);
+            sum += value.applyAsLong(client);
+        }
+        return sum;
+    }
+
+    static int stillOpen(List<WebSocketClient> clients) {
+        int open = 0;
+        for(WebSocketClient client : clients) {
+            if(!client.isReleased()) open++;
         }
+        return open;
+    }
+
+    void release() {
+        servers.remove(this);
+        if(cluster != null) cluster.stop();
+        if(dispatcher != null) dispatcher.stop();
+        writerPool.shutdown();
     }
 
+    //no pacing, everyone gets the 1001 at once and a moment for it to flush, for when there's nowhere for the clients to go anyway
     void close() {
-        for(WebSocketClient client : clients.values()) {
-            client.stop();
+        try {
+            drain(0, CLOSE_FLUSH_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -1,5 +1,13 @@
 public class WebsocketException extends Exception {
+    //close code sent before hanging up, 0 keeps the default
+    final int closeCode;
+
     public WebsocketException(String msg) {
+        this(msg, 0);
+    }
+
+    public WebsocketException(String msg, int closeCode) {
         super(msg);
+        this.closeCode = closeCode;
     }
 }
@@ -0,0 +1,154 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DispatcherTest {
+    ServerSocket listener;
+    List<Socket> sockets;
+    WebSocketServer wss;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        listener = new ServerSocket(0);
+        sockets = new ArrayList<>();
+        wss = new WebSocketServer(new RtcWSCFactory());
+        wss.setHeartbeat(0, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        wss.close();
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+        listener.close();
+    }
+
+    //never started, only here to be dispatched for
+    WebSocketClient client() throws IOException {
+        Socket socket = new Socket("localhost", listener.getLocalPort());
+        sockets.add(socket);
+        sockets.add(listener.accept());
+        return wss.clientFactory.build(socket, UUID.randomUUID(), wss);
+    }
+
+    static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(5, TimeUnit.SECONDS), "Timed out.");
+    }
+
+    @Test
+    void eachClientsCallsRunInOrderAndOneAtATime() throws Exception {
+        wss.setDispatch(2, 1 << 20);
+        int calls = 2000;
+        WebSocketClient[] clients = {client(), client(), client()};
+        List<List<Integer>> seen = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(clients.length * calls);
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        for(WebSocketClient ignored : clients) {
+            seen.add(new ArrayList<>());
+        }
+        for (int i = 0; i < calls; i++) {
+            for (int c = 0; c < clients.length; c++) {
+                List<Integer> order = seen.get(c);
+                AtomicBoolean running = new AtomicBoolean(false);
+                int call = i;
+                clients[c].dispatch(() -> {
+                    if(!running.compareAndSet(false, true)) overlapped.set(true);
+                    order.add(call);
+                    running.set(false);
+                    done.countDown();
+                });
+            }
+        }
+        await(done);
+        assertFalse(overlapped.get());
+        for(List<Integer> order : seen) {
+            for (int i = 0; i < calls; i++) {
+                assertEquals(i, order.get(i));
+            }
+        }
+    }
+
+    @Test
+    void stopRunsWhatIsQueued() throws Exception {
+        wss.setDispatch(1, 1 << 20);
+        WebSocketClient client = client();
+        CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger(0);
+        client.dispatch(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        await(blocked);
+        for (int i = 0; i < 10; i++) {
+            client.dispatch(ran::incrementAndGet);
+        }
+        Thread stopping = new Thread(wss.dispatcher::stop);
+        stopping.start();
+        release.countDown();
+        stopping.join(5000);
+        assertEquals(10, ran.get());
+
+        //with the worker gone a late call runs on the caller
+        client.dispatch(ran::incrementAndGet);
+        assertEquals(11, ran.get());
+        assertEquals(0, client.stripe.size());
+    }
+
+    @Test
+    void pausedReaderResumesOnStop() throws Exception {
+        wss.setDispatch(1, 4);
+        WebSocketClient client = client();
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            client.dispatch(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertFalse(client.dispatchReady());
+        assertTrue(client.readsBlocked.get());
+
+        Thread stopping = new Thread(wss.dispatcher::stop);
+        stopping.start();
+        release.countDown();
+        stopping.join(5000);
+        assertFalse(client.readsBlocked.get());
+        assertTrue(client.dispatchReady());
+    }
+
+    @Test
+    void replacingTheDispatcherStopsTheOldOne() throws Exception {
+        wss.setDispatch(2, 16);
+        Dispatcher old = wss.dispatcher;
+        WebSocketClient client = client();
+        wss.setDispatch(1, 16);
+        for(Stripe stripe : old.stripes) {
+            assertFalse(stripe.worker.isAlive());
+        }
+        AtomicInteger ran = new AtomicInteger(0);
+        client.dispatch(ran::incrementAndGet);
+        assertEquals(1, ran.get());
+        assertNotSame(old, wss.dispatcher);
+    }
+}
@@ -0,0 +1,166 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameDecoderTest {
+    static final int MASK = 0x1B2C3D4E;
+
+    //one byte at a time, what the word-at-a-time version has to match
+    static void unmaskBytes(byte[] bytes, int offset, int length, int mask) {
+        for (int i = offset; i < offset + length; i++) {
+            bytes[i] ^= (byte) (mask >>> (24 - (i & 0x3) * 8));
+        }
+    }
+
+    static byte[] maskedFrame(int flags, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(14 + payload.length);
+        frame.put((byte) flags);
+        if(payload.length < 126) {
+            frame.put((byte) (0x80 | payload.length));
+        } else if(payload.length < 65536) {
+            frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        } else {
+            frame.put((byte) (0x80 | 127)).putLong(payload.length);
+        }
+        frame.putInt(MASK);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ (MASK >>> (24 - (i & 0x3) * 8))));
+        }
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    @Test
+    void unmaskMatchesBytewiseAtEveryOffset() {
+        Random random = new Random(1);
+        for (int offset = 0; offset < 8; offset++) {
+            for (int length = 0; length <= 40; length++) {
+                int mask = random.nextInt();
+                byte[] bytes = new byte[offset + length + 3];
+                random.nextBytes(bytes);
+                byte[] expected = bytes.clone();
+                unmaskBytes(expected, offset, length, mask);
+                FrameDecoder.unmask(bytes, offset, length, mask);
+                assertArrayEquals(expected, bytes, "offset " + offset + " length " + length);
+            }
+        }
+    }
+
+    @Test
+    void decodesEachLengthForm() throws Exception {
+        for(int length : new int[] {0, 1, 125, 126, 1000, 65535, 65536, 70000}) {
+            byte[] payload = payload(length);
+            FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, null);
+            assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(0x82, payload))));
+            assertEquals(0x82, decoder.flags);
+            assertEquals(length, decoder.length);
+            assertArrayEquals(payload, Arrays.copyOf(decoder.payload, decoder.length));
+        }
+    }
+
+    //the payload is unmasked in pieces as it arrives, each piece starting wherever the last one stopped
+    @Test
+    void decodesAFrameSplitAnywhere() throws Exception {
+        byte[] payload = payload(300);
+        byte[] frame = maskedFrame(0x81, payload);
+        for (int split = 1; split < frame.length; split += 7) {
+            FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, null);
+            ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+            buffer.put(frame, 0, split).flip();
+            assertFalse(decoder.decode(buffer));
+            buffer.compact().put(frame, split, frame.length - split).flip();
+            assertTrue(decoder.decode(buffer));
+            assertArrayEquals(payload, Arrays.copyOf(decoder.payload, decoder.length));
+        }
+    }
+
+    @Test
+    void decodesOneByteAtATime() throws Exception {
+        byte[] payload = payload(200);
+        byte[] frame = maskedFrame(0x81, payload);
+        FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, null);
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        boolean complete = false;
+        for (int i = 0; i < frame.length; i++) {
+            buffer.put(frame[i]).flip();
+            assertFalse(complete);
+            complete = decoder.decode(buffer);
+            buffer.compact();
+        }
+        assertTrue(complete);
+        assertArrayEquals(payload, Arrays.copyOf(decoder.payload, decoder.length));
+    }
+
+    @Test
+    void frameAfterFrameInOneBuffer() throws Exception {
+        byte[] first = payload(10), second = payload(20);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(maskedFrame(0x81, first)).put(maskedFrame(0x89, second)).flip();
+        FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, null);
+        assertTrue(decoder.decode(buffer));
+        assertArrayEquals(first, Arrays.copyOf(decoder.payload, decoder.length));
+        decoder.reset();
+        assertTrue(decoder.decode(buffer));
+        assertEquals(0x89, decoder.flags);
+        assertArrayEquals(second, Arrays.copyOf(decoder.payload, decoder.length));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void readsThePayloadStraightFromTheStream() throws Exception {
+        byte[] payload = payload(5000);
+        byte[] frame = maskedFrame(0x82, payload);
+        FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, null);
+        assertTrue(decoder.readHeader(ByteBuffer.wrap(frame, 0, 8)));
+        ByteArrayInputStream in = new ByteArrayInputStream(frame, 8, frame.length - 8);
+        while (!decoder.readPayload(in)) {
+            assertTrue(decoder.position < decoder.length);
+        }
+        assertArrayEquals(payload, Arrays.copyOf(decoder.payload, decoder.length));
+    }
+
+    @Test
+    void pooledPayloadsGoBackOnReset() throws Exception {
+        BufferPool pool = new BufferPool(256, 64 * 1024, 1024 * 1024, true);
+        FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, pool);
+        byte[] payload = payload(1000);
+        assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(0x81, payload))));
+        assertTrue(decoder.pooled);
+        assertArrayEquals(payload, Arrays.copyOf(decoder.payload, decoder.length));
+        decoder.reset();
+        assertNull(decoder.payload);
+
+        //a whole binary message is handed out as is, so it gets its own array
+        assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(0x82, payload))));
+        assertFalse(decoder.pooled);
+        assertEquals(payload.length, decoder.payload.length);
+    }
+
+    @Test
+    void unmaskedFramesAreRefused() {
+        FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE, null);
+        assertThrows(WebsocketException.class, () -> decoder.decode(ByteBuffer.wrap(new byte[] {(byte) 0x81, 0x01, 0x41})));
+    }
+
+    @Test
+    void messagesOverTheLimitCloseWith1009() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(100, null);
+        assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(0x01, payload(60)))));
+        decoder.reset();
+        //control frames don't count toward the message
+        assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(0x89, payload(100)))));
+        decoder.reset();
+        WebsocketException e = assertThrows(WebsocketException.class, () -> decoder.decode(ByteBuffer.wrap(maskedFrame(0x80, payload(60)))));
+        assertEquals(1009, e.closeCode);
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameEncoderTest {
+
+    //the length as a reader would take it from the header, -1 if the header is malformed
+    static long readLength(byte[] header) {
+        int code = header[1] & 0xFF;
+        if((code & 0x80) != 0) return -1;
+        if(code < 126) return code;
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if(code == 126) return buffer.getShort(2) & 0xFFFF;
+        return buffer.getLong(2);
+    }
+
+    @Test
+    void headerLengthAtEachBoundary() {
+        assertEquals(2, FrameEncoder.headerLength(0));
+        assertEquals(2, FrameEncoder.headerLength(125));
+        assertEquals(4, FrameEncoder.headerLength(126));
+        assertEquals(4, FrameEncoder.headerLength(65535));
+        assertEquals(10, FrameEncoder.headerLength(65536));
+        assertEquals(10, FrameEncoder.headerLength(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void writtenLengthsReadBack() {
+        for(long length : new long[] {0, 1, 125, 126, 127, 255, 256, 65535, 65536, 1L << 32, Long.MAX_VALUE}) {
+            byte[] header = new byte[FrameEncoder.MAX_HEADER_LENGTH];
+            int written = FrameEncoder.writeHeader(header, 0, 0x82, length);
+            assertEquals(FrameEncoder.headerLength(length), written);
+            assertEquals((byte) 0x82, header[0]);
+            assertEquals(length, readLength(header), "length " + length);
+        }
+    }
+
+    @Test
+    void writesAtAnOffset() {
+        byte[] dst = new byte[16];
+        Arrays.fill(dst, (byte) 0x55);
+        int written = FrameEncoder.writeHeader(dst, 3, 0x81, 300);
+        assertEquals(4, written);
+        assertEquals(0x55, dst[2]);
+        assertEquals(300, readLength(Arrays.copyOfRange(dst, 3, 3 + written)));
+        assertEquals(0x55, dst[7]);
+    }
+
+    //cached headers are shared between frames, so each caller has to get its own position
+    @Test
+    void cachedHeadersAreIndependentViews() {
+        ByteBuffer first = FrameEncoder.header(0x81, 5), second = FrameEncoder.header(0x81, 5);
+        assertTrue(first.isReadOnly());
+        first.get();
+        assertEquals(2, second.remaining());
+        assertEquals((byte) 0x81, second.get(0));
+        assertEquals(5, second.get(1));
+
+        ByteBuffer uncached = FrameEncoder.header(0x80, 5);
+        assertEquals((byte) 0x80, uncached.get(0));
+        ByteBuffer big = FrameEncoder.header(0x81, 70000);
+        assertEquals(10, big.remaining());
+        assertEquals(70000, readLength(big.array()));
+    }
+
+    @Test
+    void encodeIsHeaderThenPayload() {
+        for(int length : new int[] {0, 125, 126, 65536}) {
+            byte[] payload = new byte[length];
+            Arrays.fill(payload, (byte) 7);
+            byte[] frame = FrameEncoder.encode(0x82, payload);
+            int headerLength = FrameEncoder.headerLength(length);
+            assertEquals(headerLength + length, frame.length);
+            assertEquals(length, readLength(Arrays.copyOf(frame, headerLength)));
+            assertArrayEquals(payload, Arrays.copyOfRange(frame, headerLength, frame.length));
+            assertEquals(frame.length, FrameEncoder.frame(0x82, payload).remaining());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedWheelTimerTest {
+    //a small wheel so a short delay already takes several rounds
+    final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 4);
+
+    @AfterEach
+    void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    void wheelSizeIsAPowerOfTwo() {
+        assertEquals(4, timer.wheel.length);
+        assertEquals(8, new HashedWheelTimer("unused", 1, TimeUnit.MILLISECONDS, 5).wheel.length);
+    }
+
+    @Test
+    void runsNoEarlierThanItsDelay() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(fired::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(60));
+    }
+
+    @Test
+    void cancelledTasksNeverRun() throws Exception {
+        AtomicInteger ran = new AtomicInteger(0);
+        CountDownLatch later = new CountDownLatch(1);
+        Timeout cancelled = timer.schedule(ran::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        timer.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheWheel() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(() -> {
+            throw new IllegalStateException("Expected.");
+        }, 0, TimeUnit.MILLISECONDS);
+        timer.schedule(fired::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void tasksInTheSameBucketWaitForTheirRound() throws Exception {
+        //whole wheel turns apart, so both land in the same bucket
+        CountDownLatch first = new CountDownLatch(1), second = new CountDownLatch(1);
+        timer.schedule(second::countDown, 105, TimeUnit.MILLISECONDS);
+        timer.schedule(first::countDown, 25, TimeUnit.MILLISECONDS);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        assertEquals(1, second.getCount());
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+}
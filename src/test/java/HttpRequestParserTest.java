@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpRequestParserTest {
+    static final String REQUEST = "POST /rooms/a?x=1 HTTP/1.1\r\nHost: localhost\r\ncontent-length: 5\r\nX-Custom:  spaced value \t\r\n"
+            + "Accept-Encoding: gzip\r\naccept-encoding: br\r\n\r\nhello";
+
+    static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static int status(String request) {
+        HttpRequestParser parser = new HttpRequestParser(64, 256, 16);
+        HttpParseException e = assertThrows(HttpParseException.class, () -> parser.parse(bytes(request)));
+        return e.status;
+    }
+
+    static void assertParsed(HttpRequestParser parser) {
+        assertEquals("POST", parser.method);
+        assertEquals("/rooms/a?x=1", parser.path);
+        assertFalse(parser.http10);
+        assertEquals("localhost", parser.headers.get("host"));
+        assertEquals(5, parser.contentLength);
+        assertEquals("spaced value", parser.headers.get("X-Custom"));
+        assertEquals("gzip, br", parser.headers.get("Accept-Encoding"));
+        assertTrue(parser.headers.contains("accept-encoding", "BR"));
+        assertEquals("hello", new String(parser.body, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void parsesAWholeRequest() throws Exception {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue(parser.parse(bytes(REQUEST)));
+        assertParsed(parser);
+        //known names come back as the shared constant
+        assertSame("Content-Length", parser.headers.name(1));
+    }
+
+    //every split point, including inside the CRLF and the body, has to give the same request
+    @Test
+    void parsesARequestSplitAnywhere() throws Exception {
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestParser parser = new HttpRequestParser();
+        for (int split = 0; split <= request.length; split++) {
+            parser.reset();
+            ByteBuffer first = ByteBuffer.wrap(request, 0, split).slice();
+            boolean complete = parser.parse(first);
+            assertFalse(first.hasRemaining());
+            if(split < request.length) {
+                assertFalse(complete, "split " + split);
+                assertTrue(parser.parse(ByteBuffer.wrap(request, split, request.length - split).slice()));
+            }
+            assertParsed(parser);
+        }
+    }
+
+    @Test
+    void parsesOneByteAtATime() throws Exception {
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestParser parser = new HttpRequestParser();
+        for (int i = 0; i < request.length; i++) {
+            assertEquals(i == request.length - 1, parser.parse(ByteBuffer.wrap(request, i, 1).slice()));
+            assertFalse(parser.isIdle());
+        }
+        assertParsed(parser);
+    }
+
+    //a pipelined request stays in the buffer for the next parse
+    @Test
+    void stopsAtTheEndOfEachRequest() throws Exception {
+        ByteBuffer src = bytes("GET /a HTTP/1.1\r\nHost: x\r\n\r\nGET /b HTTP/1.0\r\n\r\n");
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue(parser.parse(src));
+        assertEquals("/a", parser.path);
+        assertNull(parser.body);
+        assertTrue(src.hasRemaining());
+
+        parser.reset();
+        assertTrue(parser.isIdle());
+        assertTrue(parser.parse(src));
+        assertEquals("/b", parser.path);
+        assertTrue(parser.http10);
+        assertFalse(src.hasRemaining());
+    }
+
+    @Test
+    void bareLinefeedsAndLeadingEmptyLinesAreAccepted() throws Exception {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue(parser.parse(bytes("\r\n\nget / HTTP/1.1\nHost: x\n\n")));
+        assertEquals("GET", parser.method);
+        assertEquals("x", parser.headers.get("Host"));
+    }
+
+    @Test
+    void badRequestsGetTheirStatus() {
+        assertEquals(400, status("GET\r\n\r\n"));
+        assertEquals(400, status("GET nopath HTTP/1.1\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/2\r\n\r\n"));
+        assertEquals(505, status("GET / HTTP/1.2\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nNo colon\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nA: b\r\n folded\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+        assertEquals(501, status("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertEquals(413, status("POST / HTTP/1.1\r\nContent-Length: 17\r\n\r\n"));
+        assertEquals(414, status("GET /" + "a".repeat(64) + " HTTP/1.1\r\n\r\n"));
+        assertEquals(431, status("GET / HTTP/1.1\r\nA: " + "a".repeat(256) + "\r\n\r\n"));
+    }
+
+    @Test
+    void headerValuesAreMatchedAsLists() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Connection", "keep-alive, Upgrade");
+        headers.add("Sec-WebSocket-Extensions", "permessage-deflate; client_max_window_bits");
+        assertTrue(headers.contains("connection", "upgrade"));
+        assertFalse(headers.contains("Connection", "Upgrad"));
+        assertTrue(headers.contains("Sec-WebSocket-Extensions", "permessage-deflate"));
+        assertFalse(headers.contains("Missing", "x"));
+    }
+}
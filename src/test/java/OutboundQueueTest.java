@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    static ByteBuffer frame(int tag, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(0, (byte) tag);
+        return frame;
+    }
+
+    static int tag(ByteBuffer[] frame) {
+        return frame[0].get(0);
+    }
+
+    static OutboundQueue queue(OverflowPolicy policy) {
+        OutboundQueue queue = new OutboundQueue();
+        queue.limit(3, 1024, policy);
+        return queue;
+    }
+
+    @Test
+    void dropNewestKeepsWhatIsQueued() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(frame(i, 10)));
+        }
+        assertEquals(3, queue.size());
+        assertEquals(30, queue.queuedBytes());
+        assertEquals(2, queue.droppedFrames());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, tag(queue.poll()));
+        }
+    }
+
+    @Test
+    void dropOldestMakesRoomForTheNewest() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(frame(i, 10)));
+        }
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.droppedFrames());
+        for (int i = 2; i < 5; i++) {
+            assertEquals(i, tag(queue.poll()));
+        }
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    void dropOldestByBytes() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST);
+        queue.offer(frame(0, 400));
+        queue.offer(frame(1, 400));
+        assertTrue(queue.offer(frame(2, 600)));
+        assertEquals(2, queue.size());
+        assertEquals(1000, queue.queuedBytes());
+        assertEquals(1, tag(queue.poll()));
+    }
+
+    //frames a writer has started on can't be dropped, with nothing else to drop the new frame goes instead
+    @Test
+    void dropOldestSparesFramesInFlight() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(frame(i, 10));
+        }
+        assertEquals(3, queue.gather(new ByteBuffer[8]));
+        assertTrue(queue.offer(frame(3, 10)));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.droppedFrames());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, tag(queue.poll()));
+        }
+    }
+
+    @Test
+    void closePoliciesRefuseTheFrame() {
+        for(OverflowPolicy policy : new OverflowPolicy[] {OverflowPolicy.CLOSE_POLICY_VIOLATION, OverflowPolicy.CLOSE_TRY_AGAIN_LATER}) {
+            OutboundQueue queue = queue(policy);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(queue.offer(frame(i, 10)));
+            }
+            assertFalse(queue.offer(frame(3, 10)));
+            assertEquals(3, queue.size());
+            assertEquals(0, queue.droppedFrames());
+        }
+    }
+
+    @Test
+    void addIgnoresTheLimits() {
+        OutboundQueue queue = queue(OverflowPolicy.CLOSE_TRY_AGAIN_LATER);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(frame(i, 10));
+        }
+        queue.add(frame(3, 2));
+        assertEquals(4, queue.size());
+        assertEquals(32, queue.queuedBytes());
+    }
+
+    @Test
+    void clearKeepsAPartlyWrittenHead() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_NEWEST);
+        ByteBuffer head = frame(0, 10);
+        queue.offer(head);
+        queue.offer(frame(1, 10));
+        queue.gather(new ByteBuffer[1]);
+        head.position(4);
+        queue.written(4);
+        assertFalse(queue.completed());
+        queue.clear();
+        assertEquals(1, queue.size());
+        assertEquals(6, queue.queuedBytes());
+    }
+}
@@ -0,0 +1,103 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouterTest {
+    static final HttpPathHandler handler = (bundle) -> {};
+
+    Router router;
+
+    @BeforeEach
+    void setUp() {
+        router = new Router();
+    }
+
+    String route(String method, String path) {
+        RouteMatch match = router.route(method, path);
+        return match == null ? null : match.route;
+    }
+
+    @Test
+    void exactBeatsPrefixBeatsRegex() {
+        router.add("GET", "/files/[a-z]+\\.txt", handler);
+        router.add("GET", "/files/(.*)", handler);
+        router.add("GET", "/files/index.html", handler);
+        assertEquals("/files/index.html", route("GET", "/files/index.html"));
+        assertEquals("/files/(.*)", route("GET", "/files/notes.txt"));
+        router.remove("GET", "/files/(.*)");
+        assertEquals("/files/[a-z]+\\.txt", route("GET", "/files/notes.txt"));
+        assertNull(route("GET", "/files/Notes.txt"));
+    }
+
+    @Test
+    void theLongestPrefixWins() {
+        router.add("GET", "/.*", handler);
+        router.add("GET", "/api/.*", handler);
+        router.add("GET", "/api/rooms/(.*)", handler);
+        assertEquals("/api/rooms/(.*)", route("GET", "/api/rooms/a"));
+        assertEquals("/api/.*", route("GET", "/api/users"));
+        assertEquals("/.*", route("GET", "/index.html"));
+        //a prefix also matches the path that is exactly its literal text
+        assertEquals("/api/.*", route("GET", "/api/"));
+    }
+
+    //regex routes are tried in the order they were added
+    @Test
+    void regexRoutesInOrder() {
+        router.add("GET", "/r/[0-9]+", handler);
+        router.add("GET", "/r/\\d+", handler);
+        assertEquals("/r/[0-9]+", route("GET", "/r/42"));
+        router.remove("GET", "/r/[0-9]+");
+        assertEquals("/r/\\d+", route("GET", "/r/42"));
+    }
+
+    @Test
+    void patternsThatOnlyMatchOneStringAreExact() {
+        Route anchored = new Route("GET", "^/index\\.html$", handler);
+        assertEquals("/index.html", anchored.literal);
+        assertFalse(anchored.prefix);
+        Route dotted = new Route("GET", "/favicon.ico", handler);
+        assertEquals("/favicon.ico", dotted.literal);
+        Route capture = new Route("GET", "/static/(.*)", handler);
+        assertEquals("/static/", capture.literal);
+        assertTrue(capture.prefix && capture.capture);
+        assertNull(new Route("GET", "/a+", handler).literal);
+        assertNull(new Route("GET", "/\\w", handler).literal);
+    }
+
+    @Test
+    void capturedRestIsGroupOne() {
+        router.add("GET", "/static/(.*)", handler);
+        router.add("GET", "/user/([0-9]+)/name", handler);
+        RouteMatch prefix = router.route("GET", "/static/css/site.css");
+        assertEquals(1, prefix.result().groupCount());
+        assertEquals("css/site.css", prefix.result().group(1));
+        RouteMatch regex = router.route("GET", "/user/7/name");
+        assertEquals("7", regex.result().group(1));
+    }
+
+    @Test
+    void methodsAreMatchedPerRoute() {
+        router.add("GET", "/rooms", handler);
+        router.add("POST", "/rooms/(.*)", handler);
+        router.add(null, "/any", handler);
+        assertEquals("/rooms", route("get", "/rooms"));
+        assertEquals("/any", route("DELETE", "/any"));
+        //the exact route is for another method, the prefix one still only takes POST
+        RouteMatch wrongMethod = router.route("PUT", "/rooms");
+        assertNull(wrongMethod.route);
+        assertSame(Router.methodNotAllowed, wrongMethod.handler);
+        assertSame(Router.methodNotAllowed, router.route("GET", "/rooms/a").handler);
+        assertNull(router.route("GET", "/nothing"));
+    }
+
+    //a route for another method at a longer prefix doesn't hide a shorter one that fits
+    @Test
+    void aShorterPrefixForTheMethodStillMatches() {
+        router.add("GET", "/api/.*", handler);
+        router.add("POST", "/api/rooms/.*", handler);
+        assertEquals("/api/.*", route("GET", "/api/rooms/a"));
+        assertEquals("/api/rooms/.*", route("POST", "/api/rooms/a"));
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RtcWSCCodecTest {
+    static final UUID FROM = new UUID(0x0102030405060708L, 0x090A0B0C0D0E0F10L);
+
+    static byte[] join(ByteBuffer[] frame) {
+        int length = 0;
+        for(ByteBuffer buffer : frame) {
+            length += buffer.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for(ByteBuffer buffer : frame) {
+            joined.put(buffer.duplicate());
+        }
+        return joined.array();
+    }
+
+    @Test
+    void varintsRoundTripAtEachByteBoundary() {
+        for(int value : new int[] {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE}) {
+            byte[] bytes = new byte[8];
+            int end = RtcWSC.writeVarint(bytes, 2, value);
+            assertEquals(RtcWSC.varintLength(value), end - 2, "value " + value);
+            long read = RtcWSC.readVarint(bytes, 2);
+            assertEquals(value, (int) read);
+            assertEquals(end, (int) (read >>> 32));
+        }
+    }
+
+    @Test
+    void badVarintsReadAsMinusOne() {
+        //runs off the end
+        assertEquals(-1, RtcWSC.readVarint(new byte[] {(byte) 0x80, (byte) 0x80}, 0));
+        assertEquals(-1, RtcWSC.readVarint(new byte[0], 0));
+        //more than 31 bits
+        assertEquals(-1, RtcWSC.readVarint(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}, 0));
+        //too many bytes
+        assertEquals(-1, RtcWSC.readVarint(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}, 0));
+    }
+
+    @Test
+    void intsAndLongsAreBigEndian() {
+        byte[] bytes = new byte[12];
+        assertEquals(4, RtcWSC.writeInt(bytes, 0, 0x01020304));
+        assertEquals(12, RtcWSC.writeLong(bytes, 4, -2));
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, Arrays.copyOf(bytes, 4));
+        assertEquals(0x01020304, RtcWSC.readInt(bytes, 0));
+        assertEquals(-2, RtcWSC.readLong(bytes, 4));
+        assertEquals(Integer.MIN_VALUE, RtcWSC.readInt(new byte[] {(byte) 0x80, 0, 0, 0}, 0));
+    }
+
+    @Test
+    void idsInBothForms() {
+        byte[] bytes = new byte[17];
+        assertEquals(5, RtcWSC.writeId(bytes, 0, RtcWSC.OFFER, false, FROM, 0x0A0B0C0D));
+        assertEquals(RtcWSC.OFFER, bytes[0]);
+        assertEquals(0x0A0B0C0D, RtcWSC.readInt(bytes, 1));
+
+        assertEquals(17, RtcWSC.writeId(bytes, 0, RtcWSC.OFFER, true, FROM, 0x0A0B0C0D));
+        assertEquals(RtcWSC.OFFER | RtcWSC.UUID_IDS, bytes[0] & 0xFF);
+        assertEquals(FROM, new UUID(RtcWSC.readLong(bytes, 1), RtcWSC.readLong(bytes, 9)));
+    }
+
+    //the framed event and the one that's compressed or sent across the cluster carry the same message
+    @Test
+    void frameAndMessageAgree() {
+        byte[] payload = "v=0 o=- 1 2 IN IP4 127.0.0.1".getBytes(StandardCharsets.UTF_8);
+        for(boolean uuids : new boolean[] {false, true}) {
+            byte[] message = RtcWSC.binaryMessage(RtcWSC.ANSWER, uuids, FROM, 42, payload, 2, payload.length - 2);
+            byte[] frame = join(RtcWSC.binaryFrame(RtcWSC.ANSWER, uuids, FROM, 42, payload, 2, payload.length - 2));
+            int headerLength = FrameEncoder.headerLength(message.length);
+            assertEquals((byte) 0x82, frame[0]);
+            assertEquals(message.length, frame[1]);
+            assertArrayEquals(message, Arrays.copyOfRange(frame, headerLength, frame.length));
+
+            int idLength = uuids ? 16 : 4;
+            long varint = RtcWSC.readVarint(message, 1 + idLength);
+            int position = (int) (varint >>> 32);
+            assertEquals(payload.length - 2, (int) varint);
+            assertArrayEquals(Arrays.copyOfRange(payload, 2, payload.length), Arrays.copyOfRange(message, position, message.length));
+        }
+    }
+
+    @Test
+    void eventsWithoutAPayloadAreTypeAndIdOnly() {
+        byte[] frame = join(RtcWSC.binaryFrame(RtcWSC.REMOVE_PEER, true, FROM, -1, null, 0, 0));
+        assertEquals(2 + 17, frame.length);
+        assertEquals(17, frame[1]);
+        assertEquals(RtcWSC.REMOVE_PEER | RtcWSC.UUID_IDS, frame[2] & 0xFF);
+        assertEquals(FROM, new UUID(RtcWSC.readLong(frame, 3), RtcWSC.readLong(frame, 11)));
+    }
+
+    @Test
+    void longPayloadsGetTheLongerHeader() {
+        byte[] payload = new byte[300];
+        byte[] frame = join(RtcWSC.binaryFrame(RtcWSC.OFFER, false, FROM, 7, payload, 0, payload.length));
+        int messageLength = 1 + 4 + RtcWSC.varintLength(300) + 300;
+        assertEquals(126, frame[1]);
+        assertEquals(messageLength, ByteBuffer.wrap(frame).getShort(2) & 0xFFFF);
+        assertEquals(4 + messageLength, frame.length);
+    }
+}
@@ -0,0 +1,147 @@
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RtcWSCTest {
+
+    //the peer that stays has to hear about the one that left however it left, handlers inline or on a stripe
+    @ParameterizedTest
+    @CsvSource({"false, 0, close", "true, 0, close", "false, 2, close", "true, 2, close", "false, 2, drop", "true, 2, drop"})
+    void removePeerReachesTheRoom(boolean nio, int stripes, String leave) throws Exception {
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory(0, 16));
+        wss.setHeartbeat(0, 0);
+        wss.setDispatch(stripes, 16);
+        HttpServer server = TestClient.server(nio, wss);
+        try (TestClient a = new TestClient(TestClient.port(server)); TestClient b = new TestClient(TestClient.port(server))) {
+            a.sendText("join::::room");
+            //joins from two connections can run in either order, b only announces itself to members already there
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (wss.clients.members("room").length < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            b.sendText("join::::room");
+            String added = a.readText();
+            assertTrue(added.startsWith("add_peer::::"), added);
+            String bId = added.substring("add_peer::::".length());
+
+            if(leave.equals("close")) b.send(0x88, new byte[] {0x03, (byte) 0xE8});
+            else b.close();
+            assertEquals("remove_peer::::" + bId, a.readText());
+        } finally {
+            server.stop();
+            wss.close();
+        }
+    }
+
+    //a text peer only knows the single candidate event, a coalesced burst still reaches it one candidate per frame
+    @ParameterizedTest
+    @CsvSource({"false", "true"})
+    void textPeersGetCandidatesOneByOne(boolean nio) throws Exception {
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory(10_000, 3));
+        wss.setHeartbeat(0, 0);
+        HttpServer server = TestClient.server(nio, wss);
+        try (TestClient a = new TestClient(TestClient.port(server)); TestClient b = new TestClient(TestClient.port(server))) {
+            a.sendText("join::::room");
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (wss.clients.members("room").length < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            b.sendText("join::::room");
+            String bId = a.readText().substring("add_peer::::".length());
+
+            //the third fills the batch, so all three go out long before the window ends
+            for (int i = 0; i < 3; i++) {
+                a.sendText("candidate::::" + bId + "::::c" + i);
+            }
+            for (int i = 0; i < 3; i++) {
+                String candidate = b.readText();
+                assertTrue(candidate.startsWith("candidate::::"), candidate);
+                assertTrue(candidate.endsWith("::::c" + i), candidate);
+            }
+        } finally {
+            server.stop();
+            wss.close();
+        }
+    }
+
+    //a malformed peer id is dropped like a bad binary event, the client stays in the room
+    @ParameterizedTest
+    @CsvSource({"false", "true"})
+    void badTextPeerIdsAreIgnored(boolean nio) throws Exception {
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory());
+        wss.setHeartbeat(0, 0);
+        HttpServer server = TestClient.server(nio, wss);
+        try (TestClient a = new TestClient(TestClient.port(server)); TestClient b = new TestClient(TestClient.port(server))) {
+            a.sendText("join::::room");
+            a.sendText("offer::::not-a-uuid::::x");
+            a.sendText("remove_peer::::not-a-uuid");
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (wss.clients.members("room").length < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            b.sendText("join::::room");
+            String added = a.readText();
+            assertTrue(added.startsWith("add_peer::::"), added);
+        } finally {
+            server.stop();
+            wss.close();
+        }
+    }
+
+    static byte[] binaryEvent(int type, UUID peer, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] event = new byte[17 + RtcWSC.varintLength(bytes.length) + bytes.length];
+        int position = RtcWSC.writeId(event, 0, type, true, peer, -1);
+        position = RtcWSC.writeVarint(event, position, bytes.length);
+        System.arraycopy(bytes, 0, event, position, bytes.length);
+        return event;
+    }
+
+    //binary peers in the uuid form, a burst of candidates reaches the peer as one candidates event
+    @ParameterizedTest
+    @CsvSource({"false", "true"})
+    void binaryPeersGetOneCandidatesEvent(boolean nio) throws Exception {
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory(10_000, 3));
+        wss.setHeartbeat(0, 0);
+        HttpServer server = TestClient.server(nio, wss);
+        try (TestClient a = new TestClient(TestClient.port(server)); TestClient b = new TestClient(TestClient.port(server))) {
+            byte[] join = {(byte) (RtcWSC.JOIN | RtcWSC.UUID_IDS), 4, 'r', 'o', 'o', 'm'};
+            a.send(0x82, join);
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (wss.clients.members("room").length < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            b.send(0x82, join);
+            a.read();
+            assertEquals(0x2, a.opcode);
+            assertEquals(RtcWSC.ADD_PEER | RtcWSC.UUID_IDS, a.payload[0] & 0xFF);
+            UUID bId = new UUID(RtcWSC.readLong(a.payload, 1), RtcWSC.readLong(a.payload, 9));
+
+            for (int i = 0; i < 3; i++) {
+                a.send(0x82, binaryEvent(RtcWSC.CANDIDATE, bId, "c" + i));
+            }
+            b.read();
+            assertEquals(0x2, b.opcode);
+            byte[] batch = b.payload;
+            assertEquals(RtcWSC.CANDIDATES | RtcWSC.UUID_IDS, batch[0] & 0xFF);
+            long varint = RtcWSC.readVarint(batch, 17);
+            assertEquals(3, (int) varint);
+            int position = (int) (varint >>> 32);
+            for (int i = 0; i < 3; i++) {
+                varint = RtcWSC.readVarint(batch, position);
+                position = (int) (varint >>> 32);
+                assertEquals("c" + i, new String(batch, position, (int) varint, StandardCharsets.UTF_8));
+                position += (int) varint;
+            }
+            assertEquals(batch.length, position);
+        } finally {
+            server.stop();
+            wss.close();
+        }
+    }
+}
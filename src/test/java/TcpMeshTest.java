@@ -0,0 +1,133 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpMeshTest {
+    static final byte[] SECRET = "mesh-test-secret".getBytes(StandardCharsets.UTF_8);
+
+    final List<WebSocketServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for(WebSocketServer server : servers) {
+            server.close();
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    TcpMesh node(String self, int port, Map<String, InetSocketAddress> peers, byte[] secret) throws IOException {
+        TcpMesh mesh = new TcpMesh(self, port, peers, secret);
+        mesh.retryInterval = 50;
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory());
+        servers.add(wss);
+        wss.joinCluster(new Cluster(self, mesh));
+        return mesh;
+    }
+
+    static boolean linked(TcpMesh mesh, String node) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            if(mesh.links.containsKey(node)) return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    @Test
+    void nodesWithTheSecretLink() throws Exception {
+        int portA = freePort(), portB = freePort();
+        TcpMesh a = node("a", portA, Map.of("b", new InetSocketAddress("localhost", portB)), SECRET);
+        TcpMesh b = node("b", portB, Map.of("a", new InetSocketAddress("localhost", portA)), SECRET);
+        assertTrue(linked(a, "b"));
+        assertTrue(linked(b, "a"));
+    }
+
+    @Test
+    void aWrongSecretIsRefused() throws Exception {
+        int portA = freePort(), portB = freePort();
+        TcpMesh a = node("a", portA, Map.of("b", new InetSocketAddress("localhost", portB)), "not-the-secret".getBytes(StandardCharsets.UTF_8));
+        TcpMesh b = node("b", portB, Map.of("a", new InetSocketAddress("localhost", portA)), SECRET);
+        long refused = TcpMesh.refusedLinks.sum();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (TcpMesh.refusedLinks.sum() < refused + 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(TcpMesh.refusedLinks.sum() >= refused + 2);
+        assertTrue(a.links.isEmpty());
+        assertTrue(b.links.isEmpty());
+    }
+
+    //what any socket could do before, name a node and start sending records
+    @Test
+    void claimingANameIsNotEnough() throws Exception {
+        int portB = freePort();
+        TcpMesh b = node("b", portB, Map.of("a", new InetSocketAddress("localhost", freePort())), SECRET);
+        try (Socket socket = new Socket("localhost", portB)) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            assertEquals(TcpMesh.NONCE_LENGTH, TcpMesh.readRecord(in).length);
+            byte[] forged = new byte[TcpMesh.NONCE_LENGTH + TcpMesh.MAC_LENGTH];
+            TcpMesh.writeRecord(out, forged, "a".getBytes(StandardCharsets.UTF_8));
+            assertThrows(IOException.class, () -> TcpMesh.readRecord(in));
+        }
+        assertTrue(b.links.isEmpty());
+    }
+
+    //an unauthenticated peer can't make the acceptor allocate a full record
+    @Test
+    void oversizedHellosAreRefused() throws Exception {
+        int portB = freePort();
+        TcpMesh b = node("b", portB, Map.of("a", new InetSocketAddress("localhost", freePort())), SECRET);
+        long refused = TcpMesh.refusedLinks.sum();
+        try (Socket socket = new Socket("localhost", portB)) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            assertEquals(TcpMesh.NONCE_LENGTH, TcpMesh.readRecord(in).length);
+            out.writeInt(TcpMesh.MAX_HANDSHAKE_RECORD + 1);
+            out.flush();
+            //closed right away rather than waiting out the handshake timeout for the rest
+            assertEquals(-1, in.read());
+        }
+        assertTrue(TcpMesh.refusedLinks.sum() > refused);
+        assertTrue(b.links.isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> new TcpMesh("n".repeat(TcpMesh.MAX_NODE_NAME + 1), 0, Map.of(), SECRET));
+    }
+
+    //peers that connect and never answer don't hold up a real node's handshake
+    @Test
+    void silentSocketsDontBlockTheAccept() throws Exception {
+        int portA = freePort(), portB = freePort();
+        TcpMesh b = node("b", portB, Map.of("a", new InetSocketAddress("localhost", portA)), SECRET);
+        try (Socket first = new Socket("localhost", portB); Socket second = new Socket("localhost", portB)) {
+            long start = System.nanoTime();
+            TcpMesh a = node("a", portA, Map.of("b", new InetSocketAddress("localhost", portB)), SECRET);
+            assertTrue(linked(b, "a"));
+            assertTrue(System.nanoTime() - start < TcpMesh.HANDSHAKE_TIMEOUT * 1_000_000L / 2);
+            assertTrue(linked(a, "b"));
+        }
+    }
+
+    @Test
+    void aSecretIsRequired() {
+        assertThrows(IllegalArgumentException.class, () -> new TcpMesh("a", 0, Map.of(), new byte[0]));
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+//a bare websocket client for the tests, blocking reads with a timeout so a missing frame fails instead of hanging
+class TestClient implements AutoCloseable {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    int opcode;
+    byte[] payload;
+
+    TestClient(int port) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        out.write(("GET /upgrade HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: websocket\r\n"
+                + "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if(b == -1) throw new IOException("No upgrade response: " + response);
+            response.append((char) b);
+        }
+        if(!response.toString().startsWith("HTTP/1.1 101")) throw new IOException("Upgrade refused: " + response);
+    }
+
+    //client frames are masked, the key is fixed since nothing here cares about it
+    static byte[] frame(int flags, byte[] payload) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(flags);
+        if(payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        byte[] mask = {0x1B, 0x2C, 0x3D, 0x4E};
+        frame.writeBytes(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ mask[i & 0x3]);
+        }
+        return frame.toByteArray();
+    }
+
+    void send(int flags, byte[] payload) throws IOException {
+        out.write(frame(flags, payload));
+    }
+
+    void sendText(String text) throws IOException {
+        send(0x81, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //the next frame from the server, pings are skipped
+    void read() throws IOException {
+        do {
+            int flags = in.read();
+            if(flags == -1) throw new IOException("Connection closed.");
+            int length = in.read() & 0x7F;
+            if(length == 126) length = in.read() << 8 | in.read();
+            opcode = flags & 0xF;
+            payload = in.readNBytes(length);
+        } while (opcode == 0x9);
+    }
+
+    String readText() throws IOException {
+        read();
+        if(opcode != 0x1) throw new IOException("Expected text, got opcode " + opcode);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    //blocking or event loop server on an ephemeral port with /upgrade going to wss
+    static HttpServer server(boolean nio, WebSocketServer wss) throws IOException {
+        String resources = Files.createTempDirectory("ws-test").toString();
+        HttpServer server = nio
+                ? new HttpServer(ServerSocketChannel.open().bind(new InetSocketAddress(0)), 1, resources)
+                : new HttpServer(new ServerSocket(0), resources);
+        server.addPath("GET", "/upgrade", (bundle) -> wss.handleUpgrade(bundle.detach(), bundle.headers));
+        server.run();
+        return server;
+    }
+
+    static int port(HttpServer server) {
+        return server.server.getLocalPort();
+    }
+}
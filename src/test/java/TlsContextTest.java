@@ -0,0 +1,74 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TlsContextTest {
+    static final String SECRET = "test-secret";
+
+    @TempDir
+    static Path directory;
+    static Path keystore;
+
+    //made with keytool for the run so nothing secret has to be checked in
+    @BeforeAll
+    static void keystore() throws Exception {
+        keystore = directory.resolve("keystore.jks");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "2", "-storetype", "JKS", "-keystore", keystore.toString(),
+                "-storepass", SECRET, "-keypass", SECRET).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        assertEquals(0, process.waitFor(), output);
+    }
+
+    @Test
+    void theSecretIsAskedForEachLoadAndZeroedAfter() throws Exception {
+        List<char[]> handedOut = new ArrayList<>();
+        TlsContext tls = new TlsContext(keystore.toString(), () -> {
+            char[] secret = SECRET.toCharArray();
+            handedOut.add(secret);
+            return secret;
+        });
+        tls.load();
+        tls.stop();
+        assertEquals(2, handedOut.size());
+        for(char[] secret : handedOut) {
+            assertEquals(new String(zeros(secret.length)), new String(secret));
+        }
+    }
+
+    static char[] zeros(int length) {
+        char[] zeros = new char[length];
+        Arrays.fill(zeros, '0');
+        return zeros;
+    }
+
+    @Test
+    void aSecretFileIsReadWithoutItsNewline() throws Exception {
+        Path secretFile = directory.resolve("secret");
+        Files.writeString(secretFile, SECRET + "\n");
+        assertEquals(SECRET, new String(TlsContext.secretFile(secretFile).get()));
+        TlsContext tls = new TlsContext(keystore.toString(), TlsContext.secretFile(secretFile));
+        assertNotNull(tls.context);
+        tls.stop();
+    }
+
+    @Test
+    void stopZeroesAKeptPasswordAndTheHandshakePool() throws Exception {
+        TlsContext tls = new TlsContext(keystore.toString(), SECRET);
+        char[] kept = tls.keptSecret;
+        assertEquals(SECRET, new String(kept));
+        tls.stop();
+        assertEquals(new String(zeros(SECRET.length())), new String(kept));
+        assertTrue(tls.handshakeTasks.isShutdown());
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebSocketServerTest {
+
+    //closing without a drain still tells clients it's going away instead of cutting them off
+    @ParameterizedTest
+    @CsvSource({"false", "true"})
+    void closeSendsGoingAway(boolean nio) throws Exception {
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory());
+        wss.setHeartbeat(0, 0);
+        HttpServer server = TestClient.server(nio, wss);
+        try (TestClient client = new TestClient(TestClient.port(server))) {
+            client.sendText("join::::room");
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (wss.clients.members("room").length < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            server.stopAccepting();
+            wss.close();
+            client.read();
+            assertEquals(0x8, client.opcode);
+            assertEquals(1001, (client.payload[0] & 0xFF) << 8 | client.payload[1] & 0xFF);
+        } finally {
+            server.stop();
+        }
+    }
+
+    //a handler that throws on the event loop closes its own connection, the next upgrade on that loop still goes through
+    @Test
+    void aThrowingHandlerOnlyClosesItsConnection() throws Exception {
+        WebSocketServer wss = new WebSocketServer(new RtcWSCFactory() {
+            @Override
+            public WebSocketClient build(Socket socket, UUID id, WebSocketServer wss) throws IOException {
+                return new RtcWSC(socket, id, wss, this) {
+                    @Override
+                    void onMessage(String msg) throws IOException {
+                        if(msg.equals("boom")) throw new IllegalStateException(msg);
+                        super.onMessage(msg);
+                    }
+                };
+            }
+        });
+        wss.setHeartbeat(0, 0);
+        HttpServer server = TestClient.server(true, wss);
+        try (TestClient bad = new TestClient(TestClient.port(server))) {
+            bad.sendText("boom");
+            assertThrows(IOException.class, () -> {
+                while (true) bad.read();
+            });
+            try (TestClient good = new TestClient(TestClient.port(server))) {
+                good.sendText("join::::room");
+                long deadline = System.nanoTime() + 5_000_000_000L;
+                while (wss.clients.members("room").length < 1 && System.nanoTime() < deadline) {
+                    Thread.sleep(5);
+                }
+                assertEquals(1, wss.clients.members("room").length);
+            }
+        } finally {
+            server.stop();
+            wss.close();
+        }
+    }
+
+    //a second server in the process adds to the gauges instead of replacing the first one's
+    @Test
+    void gaugesSumOverServers() {
+        WebSocketServer a = new WebSocketServer(new RtcWSCFactory()), b = new WebSocketServer(new RtcWSCFactory());
+        long before = Metrics.shared.gauges.get("websocket_draining").getAsLong();
+        a.draining = true;
+        b.draining = true;
+        assertEquals(before + 2, Metrics.shared.gauges.get("websocket_draining").getAsLong());
+        a.close();
+        assertEquals(before + 1, Metrics.shared.gauges.get("websocket_draining").getAsLong());
+        b.close();
+        assertEquals(before, Metrics.shared.gauges.get("websocket_draining").getAsLong());
+    }
+
+    @Test
+    void serversShareOneHeartbeatTimer() {
+        WebSocketServer a = new WebSocketServer(new RtcWSCFactory()), b = new WebSocketServer(new RtcWSCFactory());
+        assertSame(a.timer, b.timer);
+        a.close();
+        assertTrue(b.timer.running);
+        b.close();
+    }
+}